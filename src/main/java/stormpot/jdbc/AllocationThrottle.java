@@ -0,0 +1,103 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the load that the pool puts on the database when it creates
+ * connections. At most a given number of connections can be in the process
+ * of being created at the same time, and after a failure, the attempts fail
+ * immediately until an exponential backoff with jitter has passed. The
+ * jitter spreads out the attempts of pools that all lost their connections
+ * at the same time, such as after a fail-over.
+ * <p>
+ * The backoff is not waited out, because the allocations are made by the
+ * single allocation thread of the pool, which also has to replace the
+ * expired connections. The failed allocations are retried by the pool.
+ */
+class AllocationThrottle {
+  private final Semaphore permits;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final AtomicInteger consecutiveFailures;
+  // The System.nanoTime before which no new attempt should be made:
+  private volatile long nextAttemptAt;
+
+  /**
+   * Create a throttle. A maxConcurrent of zero means that the number of
+   * concurrent attempts is not limited, and an initialBackoffNanos of zero
+   * means that failed attempts are not followed by a backoff.
+   */
+  public AllocationThrottle(
+      int maxConcurrent, long initialBackoffNanos, long maxBackoffNanos) {
+    this.permits = maxConcurrent > 0? new Semaphore(maxConcurrent) : null;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+    this.consecutiveFailures = new AtomicInteger();
+  }
+
+  /**
+   * Throw if the backoff from earlier failures has not passed yet.
+   */
+  public void checkBackoff() throws SQLException {
+    int failures = consecutiveFailures.get();
+    if (failures > 0 && nextAttemptAt - System.nanoTime() > 0) {
+      // SQLState 08001 means that the client is unable to establish a
+      // connection.
+      throw new SQLTransientConnectionException(
+          "Not creating a connection, because of the backoff after " +
+          failures + " consecutive failures to connect.", "08001");
+    }
+  }
+
+  /**
+   * Wait until a permit to connect is available. This fails immediately if
+   * the backoff from earlier failures has not passed yet. Every successful
+   * call must be followed by a call to {@link #release(boolean)}.
+   */
+  public void acquire() throws SQLException {
+    checkBackoff();
+    try {
+      if (permits != null) {
+        permits.acquire();
+      }
+    } catch (InterruptedException e) {
+      // Keep the interruption visible to the pool, so it can shut down.
+      Thread.currentThread().interrupt();
+      throw new SQLException(
+          "Interrupted while waiting to create a connection.", e);
+    }
+  }
+
+  /**
+   * Give back the permit, and record whether the attempt to connect
+   * succeeded or failed.
+   */
+  public void release(boolean success) {
+    if (permits != null) {
+      permits.release();
+    }
+    if (success) {
+      consecutiveFailures.set(0);
+    } else if (initialBackoffNanos > 0) {
+      int failures = consecutiveFailures.incrementAndGet();
+      nextAttemptAt = System.nanoTime() + backoff(failures);
+    }
+  }
+
+  /**
+   * The "full jitter" backoff: a random delay between zero and the
+   * exponentially growing limit.
+   */
+  long backoff(int failures) {
+    // Cap the shift, so the limit does not overflow:
+    int shift = Math.min(failures - 1, 30);
+    long limit = initialBackoffNanos << shift;
+    if (limit <= 0 || limit > maxBackoffNanos) {
+      limit = maxBackoffNanos;
+    }
+    return (long) (limit * Math.random());
+  }
+}
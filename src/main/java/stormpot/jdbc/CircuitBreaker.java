@@ -0,0 +1,87 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks consecutive failures to connect to the database, so that claims can
+ * fail fast while the database is down, instead of waiting out their timeout.
+ * <p>
+ * The breaker is closed as long as there are fewer consecutive failures than
+ * the threshold. Once the threshold is reached, the breaker opens, and claims
+ * are refused. After the open time has passed, a single claim is let through
+ * as a probe; it will cause a new allocation if it finds a failed slot. The
+ * allocations are also refused while the breaker is open, except for one
+ * attempt to connect per open time. Any successful allocation closes the
+ * breaker again. If the database is still down, the breaker stays open, and
+ * the next probe is let through after another open time has passed.
+ */
+class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openNanos;
+  private final AtomicInteger consecutiveFailures;
+  // The System.nanoTime at which the next probe is allowed, while open:
+  private final AtomicLong nextProbeAt;
+  // The System.nanoTime at which the next attempt to connect is allowed:
+  private final AtomicLong nextConnectAt;
+  private volatile Throwable lastFailure;
+
+  public CircuitBreaker(int failureThreshold, long openNanos) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openNanos;
+    this.consecutiveFailures = new AtomicInteger();
+    this.nextProbeAt = new AtomicLong();
+    this.nextConnectAt = new AtomicLong();
+  }
+
+  public boolean isOpen() {
+    return consecutiveFailures.get() >= failureThreshold;
+  }
+
+  /**
+   * Returns true if the claim should proceed, either because the breaker is
+   * closed, or because the calling thread won the right to probe.
+   */
+  public boolean allowClaim() {
+    return !isOpen() || allowOnce(nextProbeAt);
+  }
+
+  /**
+   * Returns true if the allocator should try to connect, either because the
+   * breaker is closed, or because the calling thread won the right to probe
+   * the database.
+   */
+  public boolean allowConnect() {
+    return !isOpen() || allowOnce(nextConnectAt);
+  }
+
+  private boolean allowOnce(AtomicLong nextAt) {
+    long at = nextAt.get();
+    long now = System.nanoTime();
+    return now - at >= 0 && nextAt.compareAndSet(at, now + openNanos);
+  }
+
+  public void recordSuccess() {
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+      lastFailure = null;
+    }
+  }
+
+  public void recordFailure(Throwable cause) {
+    lastFailure = cause;
+    if (consecutiveFailures.incrementAndGet() == failureThreshold) {
+      long openUntil = System.nanoTime() + openNanos;
+      nextProbeAt.set(openUntil);
+      nextConnectAt.set(openUntil);
+    }
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures.get();
+  }
+
+  public Throwable getLastFailure() {
+    return lastFailure;
+  }
+}
@@ -0,0 +1,103 @@
+package stormpot.jdbc;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import stormpot.ResizablePool;
+
+/**
+ * Orders the claims that have to wait for a connection, so the most urgent
+ * claim gets the next connection that is released. The pool itself wakes up
+ * its waiters in no particular order, so the claims are admitted here first,
+ * and only as many claims as the pool has connections are let through to the
+ * pool at a time.
+ * <p>
+ * Claims with a higher priority go first. Among claims with the same
+ * priority, the one with the earliest deadline goes first, and among claims
+ * with the same deadline, the one that has waited the longest.
+ */
+class ClaimQueue {
+  static final int DEFAULT_PRIORITY = 0;
+
+  private static final Comparator<Waiter> URGENCY = new Comparator<Waiter>() {
+    public int compare(Waiter a, Waiter b) {
+      if (a.priority != b.priority) {
+        return a.priority > b.priority? -1 : 1;
+      }
+      // Compare by difference, because System.nanoTime can overflow:
+      long deadlineDiff = a.deadline - b.deadline;
+      if (deadlineDiff != 0) {
+        return deadlineDiff < 0? -1 : 1;
+      }
+      return a.sequence < b.sequence? -1 : a.sequence == b.sequence? 0 : 1;
+    }
+  };
+
+  private final ResizablePool<?> pool;
+  // Guarded by the 'this' lock:
+  private final PriorityQueue<Waiter> waiters;
+  private long sequence;
+  private int inUse;
+
+  public ClaimQueue(ResizablePool<?> pool) {
+    this.pool = pool;
+    this.waiters = new PriorityQueue<Waiter>(16, URGENCY);
+  }
+
+  /**
+   * Wait until the claim is the most urgent one, and a connection is free,
+   * then count the connection as claimed. Returns false, without counting
+   * anything, if the deadline passed first. The deadline is in the time
+   * scale of {@link System#nanoTime()}.
+   */
+  synchronized boolean acquire(int priority, long deadlineNanos)
+      throws InterruptedException {
+    if (waiters.isEmpty() && inUse < pool.getTargetSize()) {
+      inUse++;
+      return true;
+    }
+    Waiter waiter = new Waiter(priority, deadlineNanos, sequence++);
+    waiters.add(waiter);
+    try {
+      while (waiters.peek() != waiter || inUse >= pool.getTargetSize()) {
+        long timeLeft = deadlineNanos - System.nanoTime();
+        if (timeLeft <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, timeLeft);
+      }
+      inUse++;
+      return true;
+    } finally {
+      waiters.remove(waiter);
+      // Whether we got in or gave up, another waiter is now at the head:
+      notifyAll();
+    }
+  }
+
+  /**
+   * Count a connection as no longer claimed, and let the most urgent waiter
+   * have it.
+   */
+  synchronized void release() {
+    inUse--;
+    notifyAll();
+  }
+
+  synchronized int getWaiting() {
+    return waiters.size();
+  }
+
+  private static final class Waiter {
+    final int priority;
+    final long deadline;
+    final long sequence;
+
+    Waiter(int priority, long deadline, long sequence) {
+      this.priority = priority;
+      this.deadline = deadline;
+      this.sequence = sequence;
+    }
+  }
+}
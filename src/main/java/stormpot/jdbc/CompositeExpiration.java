@@ -0,0 +1,37 @@
+package stormpot.jdbc;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+/**
+ * An Expiration that considers a connection expired, if either of the two
+ * given Expirations does. The first Expiration is checked first, so put the
+ * cheapest one first. Composites can be nested to combine more Expirations.
+ */
+public class CompositeExpiration implements Expiration<ConnectionProxy> {
+  private final Expiration<? super ConnectionProxy> first;
+  private final Expiration<? super ConnectionProxy> second;
+
+  public CompositeExpiration(
+      Expiration<? super ConnectionProxy> first,
+      Expiration<? super ConnectionProxy> second) {
+    if (first == null || second == null) {
+      throw new IllegalArgumentException("The Expirations cannot be null.");
+    }
+    this.first = first;
+    this.second = second;
+  }
+
+  @Override
+  public boolean hasExpired(SlotInfo<? extends ConnectionProxy> info) {
+    return first.hasExpired(info) || second.hasExpired(info);
+  }
+
+  Expiration<? super ConnectionProxy> getFirst() {
+    return first;
+  }
+
+  Expiration<? super ConnectionProxy> getSecond() {
+    return second;
+  }
+}
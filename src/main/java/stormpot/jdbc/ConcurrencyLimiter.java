@@ -0,0 +1,142 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of connections that can be claimed at the same time, and
+ * adapts the limit to how long the connections are held. This is a gradient
+ * limiter, in the style of TCP Vegas: as long as the hold times stay close to
+ * their long-term average, the limit grows by about the square root of the
+ * limit in every window. When the hold times go up, the database is
+ * queueing the work, and the limit shrinks in proportion to the ratio of
+ * the long-term and the recent hold times.
+ * <p>
+ * Hold times are aggregated in windows, so the limit is only recomputed by
+ * one thread every once in a while, rather than on every release.
+ */
+class ConcurrencyLimiter {
+  private static final long DEFAULT_WINDOW_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int MIN_WINDOW_SAMPLES = 10;
+  // How much slower than the long-term hold time the recent hold time can be,
+  // before the limit starts to shrink:
+  private static final double TOLERANCE = 1.5;
+  // How quickly the long-term hold time follows the recent hold times:
+  private static final double LONG_TERM_DECAY = 0.05;
+  // How quickly the limit follows the computed new limit:
+  private static final double SMOOTHING = 0.2;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long windowNanos;
+  private final AtomicInteger inflight;
+  private volatile int limit;
+
+  // The current window of samples:
+  private final AtomicLong windowStart;
+  private final AtomicLong windowHoldNanos;
+  private final AtomicLong windowSamples;
+  private final AtomicInteger windowMaxInflight;
+
+  // Guarded by 'this', and only touched when a window is closed:
+  private double estimatedLimit;
+  private double longTermHoldNanos;
+
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this(initialLimit, minLimit, maxLimit, DEFAULT_WINDOW_NANOS);
+  }
+
+  ConcurrencyLimiter(
+      int initialLimit, int minLimit, int maxLimit, long windowNanos) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.windowNanos = windowNanos;
+    this.inflight = new AtomicInteger();
+    this.limit = initialLimit;
+    this.estimatedLimit = initialLimit;
+    this.windowStart = new AtomicLong(System.nanoTime());
+    this.windowHoldNanos = new AtomicLong();
+    this.windowSamples = new AtomicLong();
+    this.windowMaxInflight = new AtomicInteger();
+  }
+
+  /**
+   * Take a permit to claim a connection. Returns false if the limit has been
+   * reached. Every successful call must be followed by either a call to
+   * {@link #release(long)}, or a call to {@link #cancel()}.
+   */
+  public boolean tryAcquire() {
+    int current;
+    do {
+      current = inflight.get();
+      if (current >= limit) {
+        return false;
+      }
+    } while (!inflight.compareAndSet(current, current + 1));
+    int max;
+    while ((max = windowMaxInflight.get()) <= current
+        && !windowMaxInflight.compareAndSet(max, current + 1));
+    return true;
+  }
+
+  /**
+   * Give back a permit, without recording a hold time, because no connection
+   * was claimed.
+   */
+  public void cancel() {
+    inflight.decrementAndGet();
+  }
+
+  /**
+   * Give back a permit, and record for how long the connection was held.
+   */
+  public void release(long holdNanos) {
+    inflight.decrementAndGet();
+    windowHoldNanos.addAndGet(holdNanos);
+    long samples = windowSamples.incrementAndGet();
+    long start = windowStart.get();
+    long now = System.nanoTime();
+    if (samples >= MIN_WINDOW_SAMPLES
+        && now - start >= windowNanos
+        && windowStart.compareAndSet(start, now)) {
+      closeWindow();
+    }
+  }
+
+  private synchronized void closeWindow() {
+    long samples = windowSamples.getAndSet(0);
+    long holdNanos = windowHoldNanos.getAndSet(0);
+    int maxInflight = windowMaxInflight.getAndSet(0);
+    if (samples == 0) {
+      return;
+    }
+    double recentHoldNanos = (double) holdNanos / samples;
+    if (longTermHoldNanos == 0) {
+      longTermHoldNanos = recentHoldNanos;
+    } else {
+      longTermHoldNanos = longTermHoldNanos * (1 - LONG_TERM_DECAY)
+          + recentHoldNanos * LONG_TERM_DECAY;
+    }
+    if (maxInflight < estimatedLimit / 2) {
+      // The limit was not what held the claims back, so the samples tell us
+      // nothing about whether the limit is too high or too low.
+      return;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0,
+        TOLERANCE * longTermHoldNanos / recentHoldNanos));
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    limit = (int) estimatedLimit;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInflight() {
+    return inflight.get();
+  }
+}
@@ -7,6 +7,9 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import stormpot.Poolable;
 import stormpot.Slot;
@@ -18,12 +21,36 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
       new HashMap<String, Class<?>>();
   private static final Properties CLIENT_INFO_NULL = new Properties();
   private static final String CLOSED_MESSAGE = "The connection is closed.";
+  private static final int NETWORK_TIMEOUT_UNKNOWN = -1;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  
+  private static final int IDLE = 0;
+  private static final int CLAIMED = 1;
+  private static final int REFRESHING = 2;
+  private static final int DEAD = 3;
+  private static final int ABORTING = 4;
+  private static final AtomicIntegerFieldUpdater<ConnectionProxy> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(ConnectionProxy.class, "state");
 
   private final Slot slot;
-  private final Jdbc41ConnectionDelegate con;
-  private final Map<String, Class<?>> baseTypeMap;
-  private final Properties baseClientInfo;
-  private final int defaultHoldability;
+  // The physical connection, and the state we derive from it, can be
+  // replaced by the ConnectionRefresher while the proxy is idle. The state
+  // field makes sure that this never happens while it is claimed, and that
+  // claimers see the replaced values. The connection is also volatile,
+  // because the Expirations read it before the claim marks the connection
+  // as claimed.
+  private volatile Jdbc41ConnectionDelegate con;
+  private Map<String, Class<?>> baseTypeMap;
+  private Properties baseClientInfo;
+  private int defaultHoldability;
+  private volatile int state;
+  // The executor is shared by all connections in the pool, and is given to
+  // the driver when network timeouts are reset, or connections are aborted.
+  private final Executor executor;
+  // Decides which SQLExceptions mean that the connection is broken. This is
+  // null if we don't classify exceptions, in which case the statements are
+  // not wrapped either.
+  private final FatalErrorClassifier classifier;
   
   // These fields are unprotected because a ConnectionProxy is, by virtue of the
   // pool, only ever accessed by a single thread at a time.
@@ -31,9 +58,75 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
   private boolean isClosed;
   private boolean touchedTypeMap;
   private boolean touchedClientInfo;
+  private boolean touchedNetworkTimeout;
+  private int baseNetworkTimeout = NETWORK_TIMEOUT_UNKNOWN;
+  
+  // These fields are volatile because they are read by the watchdog thread,
+  // while the connection is claimed by someone else. The claimer is written
+  // after the claim time, and read before it, so the two are consistent.
+  private volatile long claimedAt;
+  private volatile Thread claimer;
+  private volatile boolean evicted;
+  private volatile Throwable claimSite;
+  // Only ever accessed by the housekeeping thread:
+  long watchdogReportedClaim;
+  long leakReportedClaim;
+  // Only ever accessed by the claiming thread:
+  private int claimsSinceSample;
+  // The limiter that gave the permit for the current claim, if any. Set by
+  // the claiming thread, and cleared when the connection is released.
+  private ConcurrencyLimiter limiter;
+  // The workload partition that the current claim counts against, if any.
+  // Set by the claiming thread, and cleared when the connection is released.
+  private WorkloadPartitions partitions;
+  private WorkloadPartitions.Partition partition;
+  // The claim queue that admitted the current claim, if any. Set by the
+  // claiming thread, and cleared when the connection is released.
+  private ClaimQueue claimQueue;
+  // The credential pool that the connection came from, if any. Set by the
+  // claiming thread, and cleared when the connection is released.
+  private CredentialPools credentialPools;
+  private CredentialPools.CredentialPool credentialPool;
+  // Counts the claimed connections of the data source that the connection
+  // was claimed through. Set by the claiming thread, and cleared when the
+  // connection is released.
+  private AtomicInteger claimCounter;
+  // Where to record the release time of a write, for the read-your-writes
+  // window of a ReplicatedDataSource. Set by the claiming thread, and
+  // cleared when the connection is released.
+  private AtomicLong releaseTime;
+  // The deadline of the current claim, if it has one, as a System.nanoTime.
+  // Only ever accessed by the claiming thread.
+  private boolean hasDeadline;
+  private long deadlineNanos;
+  // Written when the connection is released, validated or refreshed, and
+  // read by the Expirations when the connection is claimed. They are
+  // volatile, since a refresh happens outside of the pool, so the pool does
+  // not order it with the claim. The times are from the MillisClock.
+  private volatile long lastUsedAt;
+  private volatile long releasedAt;
+  private volatile long createdAt;
+  // A random number between 0 and 1, that is used to spread out the
+  // expiration deadlines of the connections in the pool:
+  private final double jitter;
 
   public ConnectionProxy(Slot slot, Jdbc41ConnectionDelegate con)
       throws SQLException {
+    this(slot, con, null, null);
+  }
+
+  public ConnectionProxy(
+      Slot slot,
+      Jdbc41ConnectionDelegate con,
+      Executor executor) throws SQLException {
+    this(slot, con, executor, null);
+  }
+
+  public ConnectionProxy(
+      Slot slot,
+      Jdbc41ConnectionDelegate con,
+      Executor executor,
+      FatalErrorClassifier classifier) throws SQLException {
     if (slot == null) {
       throw new IllegalArgumentException("The slot parameter cannot be null.");
     }
@@ -45,6 +138,12 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
     this.baseTypeMap = buildBaseTypeMap(con);
     this.baseClientInfo = buildBaseClientInfo(con);
     this.defaultHoldability = getDefaultHoldability(con);
+    this.executor = executor;
+    this.classifier = classifier;
+    this.createdAt = MillisClock.currentTimeMillis();
+    this.releasedAt = createdAt;
+    this.lastUsedAt = createdAt;
+    this.jitter = Math.random();
   }
 
   private Map<String, Class<?>> buildBaseTypeMap(Jdbc41ConnectionDelegate con)
@@ -79,13 +178,298 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
     return metaData.getResultSetHoldability();
   }
 
+  /**
+   * Returns the physical connection from the delegate DataSource.
+   */
+  Connection getDelegateConnection() {
+    return con._stormpot_delegate();
+  }
+
   void closeDelegateConnection() throws SQLException {
+    markDead();
     con.close();
   }
 
+  private void markDead() {
+    for (;;) {
+      int current = state;
+      if (current == REFRESHING || current == ABORTING) {
+        Thread.yield();
+      } else if (STATE.compareAndSet(this, current, DEAD)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Mark the connection as claimed, waiting for any on-going refresh of the
+   * physical connection to finish first. The refresh does not do any IO
+   * while it holds the connection, so the wait is short.
+   */
+  private void markClaimed() {
+    for (;;) {
+      int current = state;
+      if (current == REFRESHING) {
+        Thread.yield();
+      } else if (current != IDLE || STATE.compareAndSet(this, IDLE, CLAIMED)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Replace the physical connection with the given one, if this connection
+   * is idle in the pool. Returns the old physical connection, which the
+   * caller must close, or null if the connection was not idle, in which case
+   * nothing is changed.
+   */
+  Jdbc41ConnectionDelegate replaceDelegate(Jdbc41ConnectionDelegate newCon)
+      throws SQLException {
+    // Everything that requires talking to the database is done up front:
+    Map<String, Class<?>> newTypeMap = buildBaseTypeMap(newCon);
+    Properties newClientInfo = buildBaseClientInfo(newCon);
+    int newHoldability = getDefaultHoldability(newCon);
+    if (evicted || !STATE.compareAndSet(this, IDLE, REFRESHING)) {
+      return null;
+    }
+    Jdbc41ConnectionDelegate oldCon = con;
+    con = newCon;
+    baseTypeMap = newTypeMap;
+    baseClientInfo = newClientInfo;
+    defaultHoldability = newHoldability;
+    baseNetworkTimeout = NETWORK_TIMEOUT_UNKNOWN;
+    touchedTypeMap = false;
+    touchedClientInfo = false;
+    touchedNetworkTimeout = false;
+    createdAt = MillisClock.currentTimeMillis();
+    releasedAt = createdAt;
+    lastUsedAt = createdAt;
+    state = IDLE;
+    return oldCon;
+  }
+
+  boolean isIdle() {
+    return state == IDLE;
+  }
+
+  /**
+   * Ask the underlying connection if it is valid. Unlike isValid, this works
+   * regardless of whether the proxy is closed or not.
+   */
+  boolean isDelegateValid(int timeoutSeconds) throws SQLException {
+    return con.isValid(timeoutSeconds);
+  }
+
+  /**
+   * Get the MillisClock time of when this connection was last known to be
+   * working, which is when it was created, validated or last released.
+   */
+  long getLastUsedAt() {
+    return lastUsedAt;
+  }
+
+  void setLastUsedAt(long millis) {
+    lastUsedAt = millis;
+  }
+
+  /**
+   * Get the MillisClock time of when this connection was last released, or
+   * created if it has never been released.
+   */
+  long getReleasedAt() {
+    return releasedAt;
+  }
+
+  /**
+   * Get the MillisClock time of when this connection was created.
+   */
+  long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * Get the per-connection random number between 0 and 1, that expirations
+   * use to spread out their deadlines.
+   */
+  double getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Abort the physical connection, and evict it, but only if the claim that
+   * started at the given claim time is still active. The connection cannot
+   * be released while this is going on, so a connection that has been
+   * released and claimed again is never aborted under its new claimer.
+   * Returns false if the claim has ended.
+   */
+  boolean abortClaim(long claimedAt) throws SQLException {
+    if (!STATE.compareAndSet(this, CLAIMED, ABORTING)) {
+      return false;
+    }
+    try {
+      if (this.claimedAt != claimedAt) {
+        return false;
+      }
+      evict();
+      con.abort(executor);
+      return true;
+    } finally {
+      state = CLAIMED;
+    }
+  }
+
+  private void markReleased() {
+    for (;;) {
+      int current = state;
+      if (current == ABORTING) {
+        Thread.yield();
+      } else if (current != CLAIMED
+          || STATE.compareAndSet(this, CLAIMED, IDLE)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Mark this connection as unfit for further use. It will be deallocated by
+   * the pool, instead of being claimed again.
+   */
+  void evict() {
+    evicted = true;
+  }
+
+  boolean isEvicted() {
+    return evicted;
+  }
+
+  long getClaimedAt() {
+    return claimedAt;
+  }
+
+  Thread getClaimer() {
+    return claimer;
+  }
+
+  /**
+   * Record the stack of the current thread as the claim site, for one in
+   * every sampleRate claims of this connection. Capturing a stack trace is
+   * expensive, so we don't want to do it on every claim.
+   */
+  void sampleClaimSite(int sampleRate) {
+    claimsSinceSample++;
+    if (claimsSinceSample >= sampleRate) {
+      claimsSinceSample = 0;
+      claimSite = new Throwable();
+    } else {
+      claimSite = null;
+    }
+  }
+
+  Throwable getClaimSite() {
+    return claimSite;
+  }
+
+  /**
+   * Give all statements created through this claim a query timeout, that
+   * ends at the given deadline.
+   */
+  void setDeadline(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+    this.hasDeadline = true;
+  }
+
+  /**
+   * Give the permit for this claim back to the limiter, along with the hold
+   * time, when the connection is released.
+   */
+  void attachLimiter(ConcurrencyLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Count this claim against the given partition, until the connection is
+   * released.
+   */
+  void attachPartition(
+      WorkloadPartitions partitions, WorkloadPartitions.Partition partition) {
+    this.partitions = partitions;
+    this.partition = partition;
+  }
+
+  /**
+   * Let the next waiter in the given claim queue have a connection, when
+   * this connection is released.
+   */
+  void attachClaimQueue(ClaimQueue claimQueue) {
+    this.claimQueue = claimQueue;
+  }
+
+  /**
+   * Count this claim against the given credential pool, until the
+   * connection is released, so the pool is not shut down while in use.
+   */
+  void attachCredentialPool(
+      CredentialPools pools, CredentialPools.CredentialPool pool) {
+    this.credentialPools = pools;
+    this.credentialPool = pool;
+  }
+
+  /**
+   * Decrement the given counter when the connection is released.
+   */
+  void attachClaimCounter(AtomicInteger claimCounter) {
+    this.claimCounter = claimCounter;
+  }
+
+  /**
+   * Set the given time to the MillisClock time of the release, when the
+   * connection is released.
+   */
+  void attachReleaseTime(AtomicLong releaseTime) {
+    this.releaseTime = releaseTime;
+  }
+
   @Override
   public void release() {
     isClosed = true;
+    hasDeadline = false;
+    claimer = null;
+    claimSite = null;
+    releasedAt = MillisClock.currentTimeMillis();
+    lastUsedAt = releasedAt;
+    ConcurrencyLimiter permitLimiter = limiter;
+    if (permitLimiter != null) {
+      limiter = null;
+      permitLimiter.release(System.nanoTime() - claimedAt);
+    }
+    WorkloadPartitions claimPartitions = partitions;
+    if (claimPartitions != null) {
+      partitions = null;
+      claimPartitions.release(partition);
+      partition = null;
+    }
+    ClaimQueue admittedBy = claimQueue;
+    if (admittedBy != null) {
+      claimQueue = null;
+      admittedBy.release();
+    }
+    CredentialPools claimPools = credentialPools;
+    if (claimPools != null) {
+      credentialPools = null;
+      claimPools.release(credentialPool);
+      credentialPool = null;
+    }
+    AtomicInteger counter = claimCounter;
+    if (counter != null) {
+      claimCounter = null;
+      counter.decrementAndGet();
+    }
+    AtomicLong time = releaseTime;
+    if (time != null) {
+      releaseTime = null;
+      time.set(releasedAt);
+    }
+    markReleased();
     slot.release(this);
   }
 
@@ -97,7 +481,20 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
   }
   
   void reopen() throws SQLException {
+    // The claim time is written before the connection is marked as claimed,
+    // so abortClaim never sees the new claim with the old claim time.
+    claimedAt = System.nanoTime();
+    markClaimed();
+    claimer = Thread.currentThread();
     isClosed = false;
+    try {
+      resetDelegate();
+    } catch (SQLException e) {
+      throw check(e);
+    }
+  }
+
+  private void resetDelegate() throws SQLException {
     con.setAutoCommit(true);
     con.clearWarnings();
     con.setHoldability(defaultHoldability);
@@ -122,6 +519,11 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
         con.setClientInfo(null);
       }
     }
+    
+    if (touchedNetworkTimeout) {
+      con.setNetworkTimeout(executor, baseNetworkTimeout);
+      touchedNetworkTimeout = false;
+    }
   }
 
   @Override
@@ -135,6 +537,75 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
     }
   }
 
+  /**
+   * Evict this connection from the pool, if the given exception means that
+   * the connection is broken. Returns the exception, for the caller to throw.
+   */
+  <E extends SQLException> E check(E exception) {
+    if (classifier != null && classifier.isFatal(exception)) {
+      evict();
+    }
+    return exception;
+  }
+
+  private Statement wrap(Statement statement) throws SQLException {
+    if (hasDeadline && statement != null) {
+      applyDeadline(statement);
+    }
+    if (classifier == null || statement == null) {
+      return statement;
+    }
+    return StatementInterceptor.wrap(statement, this);
+  }
+
+  private PreparedStatement wrap(PreparedStatement statement) throws SQLException {
+    if (hasDeadline && statement != null) {
+      applyDeadline(statement);
+    }
+    if (classifier == null || statement == null) {
+      return statement;
+    }
+    return StatementInterceptor.wrap(statement, this);
+  }
+
+  private CallableStatement wrap(CallableStatement statement) throws SQLException {
+    if (hasDeadline && statement != null) {
+      applyDeadline(statement);
+    }
+    if (classifier == null || statement == null) {
+      return statement;
+    }
+    return StatementInterceptor.wrap(statement, this);
+  }
+
+  private void applyDeadline(Statement statement) throws SQLException {
+    long timeLeft = deadlineNanos - System.nanoTime();
+    if (timeLeft <= 0) {
+      statement.close();
+      throw new SQLTimeoutException(
+          "The deadline of the connection has passed.");
+    }
+    // Round up, because a query timeout of zero means no timeout at all:
+    long seconds = (timeLeft + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
+    try {
+      statement.setQueryTimeout((int) Math.min(seconds, Integer.MAX_VALUE));
+    } catch (SQLException e) {
+      closeAfterFailure(statement);
+      throw e;
+    } catch (RuntimeException e) {
+      closeAfterFailure(statement);
+      throw e;
+    }
+  }
+
+  private static void closeAfterFailure(Statement statement) {
+    try {
+      statement.close();
+    } catch (SQLException ignore) {
+      // The original exception is the one worth reporting.
+    }
+  }
+
   private SQLNonTransientException newConnectionClosedException() {
     return new SQLNonTransientException(CLOSED_MESSAGE);
   }
@@ -195,63 +666,105 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
 
   @Override
   public PreparedStatement prepareStatement(String sql) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(con.prepareStatement(sql));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(
+          con.prepareStatement(sql, autoGeneratedKeys));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(
+          con.prepareStatement(sql, columnIndexes));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, String[] columnNames)
       throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(con.prepareStatement(sql, columnNames));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public PreparedStatement prepareStatement(String sql, int resultSetType,
       int resultSetConcurrency) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(
+          con.prepareStatement(sql, resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
   
   @Override
   public PreparedStatement prepareStatement(String sql, int resultSetType,
       int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(con.prepareStatement(
+          sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public CallableStatement prepareCall(String sql) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(con.prepareCall(sql));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public CallableStatement prepareCall(String sql, int resultSetType,
       int resultSetConcurrency) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(
+          con.prepareCall(sql, resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public CallableStatement prepareCall(String sql, int resultSetType,
       int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-    // TODO Auto-generated method stub
-    return null;
+    assertNotClosed();
+    try {
+      return wrap(con.prepareCall(
+          sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
   
   
@@ -260,14 +773,23 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
   @Override
   public Statement createStatement() throws SQLException {
     assertNotClosed();
-    return con.createStatement();
+    try {
+      return wrap(con.createStatement());
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Statement createStatement(int resultSetType, int resultSetConcurrency)
       throws SQLException {
     assertNotClosed();
-    return con.createStatement(resultSetType, resultSetConcurrency);
+    try {
+      return wrap(
+          con.createStatement(resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
@@ -276,166 +798,274 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
       int resultSetConcurrency,
       int resultSetHoldability) throws SQLException {
     assertNotClosed();
-    return con.createStatement(
-        resultSetType, resultSetConcurrency, resultSetHoldability);
+    try {
+      return wrap(con.createStatement(
+          resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public String nativeSQL(String sql) throws SQLException {
     assertNotClosed();
-    return con.nativeSQL(sql);
+    try {
+      return con.nativeSQL(sql);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setAutoCommit(boolean autoCommit) throws SQLException {
     assertNotClosed();
-    con.setAutoCommit(autoCommit);
+    try {
+      con.setAutoCommit(autoCommit);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public boolean getAutoCommit() throws SQLException {
     assertNotClosed();
-    return con.getAutoCommit();
+    try {
+      return con.getAutoCommit();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void commit() throws SQLException {
     assertNotClosed();
-    con.commit();
+    try {
+      con.commit();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void rollback() throws SQLException {
     assertNotClosed();
-    con.rollback();
+    try {
+      con.rollback();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void rollback(Savepoint savepoint) throws SQLException {
     assertNotClosed();
-    con.rollback(savepoint);
+    try {
+      con.rollback(savepoint);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Savepoint setSavepoint() throws SQLException {
     assertNotClosed();
-    return con.setSavepoint();
+    try {
+      return con.setSavepoint();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Savepoint setSavepoint(String name) throws SQLException {
     assertNotClosed();
-    return con.setSavepoint(name);
+    try {
+      return con.setSavepoint(name);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void releaseSavepoint(Savepoint savepoint) throws SQLException {
     assertNotClosed();
-    con.releaseSavepoint(savepoint);
+    try {
+      con.releaseSavepoint(savepoint);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public DatabaseMetaData getMetaData() throws SQLException {
     assertNotClosed();
-    return con.getMetaData();
+    try {
+      return con.getMetaData();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setReadOnly(boolean readOnly) throws SQLException {
     assertNotClosed();
-    con.setReadOnly(readOnly);
+    try {
+      con.setReadOnly(readOnly);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public boolean isReadOnly() throws SQLException {
     assertNotClosed();
-    return con.isReadOnly();
+    try {
+      return con.isReadOnly();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setCatalog(String catalog) throws SQLException {
     assertNotClosed();
-    con.setCatalog(catalog);
+    try {
+      con.setCatalog(catalog);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public String getCatalog() throws SQLException {
     assertNotClosed();
-    return con.getCatalog();
+    try {
+      return con.getCatalog();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setTransactionIsolation(int level) throws SQLException {
     assertNotClosed();
-    con.setTransactionIsolation(level);
+    try {
+      con.setTransactionIsolation(level);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public int getTransactionIsolation() throws SQLException {
     assertNotClosed();
-    return con.getTransactionIsolation();
+    try {
+      return con.getTransactionIsolation();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public SQLWarning getWarnings() throws SQLException {
     assertNotClosed();
-    return con.getWarnings();
+    try {
+      return con.getWarnings();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void clearWarnings() throws SQLException {
     assertNotClosed();
-    con.clearWarnings();
+    try {
+      con.clearWarnings();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Map<String, Class<?>> getTypeMap() throws SQLException {
     assertNotClosed();
-    touchedTypeMap = true;
-    return con.getTypeMap();
+    try {
+      touchedTypeMap = true;
+      return con.getTypeMap();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
     assertNotClosed();
-    touchedTypeMap = true;
-    con.setTypeMap(map);
+    try {
+      touchedTypeMap = true;
+      con.setTypeMap(map);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void setHoldability(int holdability) throws SQLException {
     assertNotClosed();
-    con.setHoldability(holdability);
+    try {
+      con.setHoldability(holdability);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public int getHoldability() throws SQLException {
     assertNotClosed();
-    return con.getHoldability();
+    try {
+      return con.getHoldability();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Clob createClob() throws SQLException {
     assertNotClosed();
-    return con.createClob();
+    try {
+      return con.createClob();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Blob createBlob() throws SQLException {
     assertNotClosed();
-    return con.createBlob();
+    try {
+      return con.createBlob();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public NClob createNClob() throws SQLException {
     assertNotClosed();
-    return con.createNClob();
+    try {
+      return con.createNClob();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public SQLXML createSQLXML() throws SQLException {
     assertNotClosed();
-    return con.createSQLXML();
+    try {
+      return con.createSQLXML();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
@@ -448,7 +1078,11 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
       throw newClientInfoException(failures);
     }
     touchedClientInfo = true;
-    con.setClientInfo(name, value);
+    try {
+      con.setClientInfo(name, value);
+    } catch (SQLClientInfoException e) {
+      throw check(e);
+    }
   }
 
   @Override
@@ -464,7 +1098,11 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
       throw newClientInfoException(failures);
     }
     touchedClientInfo = true;
-    con.setClientInfo(properties);
+    try {
+      con.setClientInfo(properties);
+    } catch (SQLClientInfoException e) {
+      throw check(e);
+    }
   }
 
   private SQLClientInfoException newClientInfoException(
@@ -476,28 +1114,44 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
   @Override
   public String getClientInfo(String name) throws SQLException {
     assertNotClosed();
-    return con.getClientInfo(name);
+    try {
+      return con.getClientInfo(name);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Properties getClientInfo() throws SQLException {
     assertNotClosed();
-    touchedClientInfo = true;
-    return con.getClientInfo();
+    try {
+      touchedClientInfo = true;
+      return con.getClientInfo();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Array createArrayOf(String typeName, Object[] elements)
       throws SQLException {
     assertNotClosed();
-    return con.createArrayOf(typeName, elements);
+    try {
+      return con.createArrayOf(typeName, elements);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public Struct createStruct(String typeName, Object[] attributes)
       throws SQLException {
     assertNotClosed();
-    return con.createStruct(typeName, attributes);
+    try {
+      return con.createStruct(typeName, attributes);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   // JDBC 4.1 / JDK 1.7:
@@ -505,31 +1159,58 @@ class ConnectionProxy implements Poolable, Jdbc41Connection {
   @Override
   public void setSchema(String schema) throws SQLException {
     assertNotClosed();
-    con.setSchema(schema);
+    try {
+      con.setSchema(schema);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public String getSchema() throws SQLException {
     assertNotClosed();
-    return con.getSchema();
+    try {
+      return con.getSchema();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public void abort(Executor executor) throws SQLException {
-    // TODO Auto-generated method stub
-    
+    if (isClosed) {
+      return;
+    }
+    con.abort(executor);
+    // An aborted connection cannot be reused, so we evict it from the pool:
+    evict();
+    release();
   }
 
   @Override
   public void setNetworkTimeout(Executor executor, int milliseconds)
       throws SQLException {
-    // TODO Auto-generated method stub
-    
+    assertNotClosed();
+    try {
+      if (baseNetworkTimeout == NETWORK_TIMEOUT_UNKNOWN) {
+        // We only ask for the base network timeout when someone wants to
+        // change it, so drivers without network timeouts are not bothered.
+        baseNetworkTimeout = con.getNetworkTimeout();
+      }
+      touchedNetworkTimeout = true;
+      con.setNetworkTimeout(executor, milliseconds);
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 
   @Override
   public int getNetworkTimeout() throws SQLException {
-    // TODO Auto-generated method stub
-    return 0;
+    assertNotClosed();
+    try {
+      return con.getNetworkTimeout();
+    } catch (SQLException e) {
+      throw check(e);
+    }
   }
 }
@@ -0,0 +1,123 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import stormpot.Expiration;
+
+/**
+ * Replaces the physical connections of idle pooled connections, that are
+ * getting close to their max lifetime. This way, the claiming threads rarely
+ * find an expired connection, and have to wait for a new one to be created.
+ * <p>
+ * The new physical connection is created before the pooled connection is
+ * touched, so the swap itself is quick. If the pooled connection gets
+ * claimed in the mean time, the new physical connection is used for the next
+ * candidate instead.
+ * <p>
+ * Connecting can be slow, so the refresh runs on the executor of the
+ * allocator, rather than on the housekeeping thread, where it would hold
+ * up the other housekeeping tasks. Only one refresh runs at a time.
+ */
+class ConnectionRefresher implements Runnable {
+  private final StormpotDataSource dataSource;
+  private final DataSourceAllocator allocator;
+  private final MaxLifetimeExpiration lifetime;
+  private final long refreshAheadMillis;
+  private final AtomicBoolean refreshing;
+  private final Runnable refresh;
+
+  public ConnectionRefresher(
+      StormpotDataSource dataSource,
+      DataSourceAllocator allocator,
+      MaxLifetimeExpiration lifetime,
+      long refreshAheadMillis) {
+    this.dataSource = dataSource;
+    this.allocator = allocator;
+    this.lifetime = lifetime;
+    this.refreshAheadMillis = refreshAheadMillis;
+    this.refreshing = new AtomicBoolean();
+    this.refresh = new Runnable() {
+      public void run() {
+        try {
+          refresh();
+        } finally {
+          refreshing.set(false);
+        }
+      }
+    };
+  }
+
+  /**
+   * Find the MaxLifetimeExpiration in the given Expiration, looking inside
+   * CompositeExpirations as well. Returns null if there is none.
+   */
+  static MaxLifetimeExpiration findMaxLifetime(Expiration<?> expiration) {
+    if (expiration instanceof MaxLifetimeExpiration) {
+      return (MaxLifetimeExpiration) expiration;
+    }
+    if (expiration instanceof CompositeExpiration) {
+      CompositeExpiration composite = (CompositeExpiration) expiration;
+      MaxLifetimeExpiration found = findMaxLifetime(composite.getFirst());
+      return found != null? found : findMaxLifetime(composite.getSecond());
+    }
+    return null;
+  }
+
+  @Override
+  public void run() {
+    if (!refreshing.compareAndSet(false, true)) {
+      // The previous refresh is still going.
+      return;
+    }
+    try {
+      allocator.execute(refresh);
+    } catch (RejectedExecutionException e) {
+      // The pool is shutting down.
+      refreshing.set(false);
+    }
+  }
+
+  void refresh() {
+    Jdbc41ConnectionDelegate spare = null;
+    try {
+      for (ConnectionProxy proxy : allocator.allocatedConnections()) {
+        if (isDue(proxy)) {
+          if (spare == null) {
+            spare = allocator.connect();
+          }
+          Jdbc41ConnectionDelegate old = proxy.replaceDelegate(spare);
+          if (old != null) {
+            spare = null;
+            close(old);
+          }
+        }
+      }
+    } catch (SQLException e) {
+      // We will try again the next time we run.
+      dataSource.log(e);
+    } catch (RuntimeException e) {
+      dataSource.log(e);
+    } finally {
+      if (spare != null) {
+        close(spare);
+      }
+    }
+  }
+
+  private boolean isDue(ConnectionProxy proxy) {
+    long now = MillisClock.currentTimeMillis();
+    return proxy.isIdle()
+        && !proxy.isEvicted()
+        && lifetime.getDeadline(proxy) - now <= refreshAheadMillis;
+  }
+
+  private void close(Jdbc41ConnectionDelegate con) {
+    try {
+      con.close();
+    } catch (SQLException e) {
+      dataSource.log(e);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically looks for connections that have been claimed for longer than
+ * the configured max hold time. The stack of the claiming thread is sampled
+ * and logged when such a connection is found, and the physical connection
+ * can optionally be aborted, which also evicts it from the pool.
+ * <p>
+ * We sample the stack of the claimer when the connection is found to be
+ * overdue, rather than capturing it on every claim, so the watchdog adds no
+ * cost to the claim path.
+ */
+class ConnectionWatchdog implements Runnable {
+  private final StormpotDataSource dataSource;
+  private final DataSourceAllocator allocator;
+  private final long maxHoldTimeNanos;
+  private final boolean abort;
+
+  public ConnectionWatchdog(
+      StormpotDataSource dataSource,
+      DataSourceAllocator allocator,
+      long maxHoldTimeNanos,
+      boolean abort) {
+    this.dataSource = dataSource;
+    this.allocator = allocator;
+    this.maxHoldTimeNanos = maxHoldTimeNanos;
+    this.abort = abort;
+  }
+
+  @Override
+  public void run() {
+    long now = System.nanoTime();
+    for (ConnectionProxy proxy : allocator.allocatedConnections()) {
+      Thread claimer = proxy.getClaimer();
+      long claimedAt = proxy.getClaimedAt();
+      if (claimer != null
+          && now - claimedAt > maxHoldTimeNanos
+          && proxy.watchdogReportedClaim != claimedAt) {
+        proxy.watchdogReportedClaim = claimedAt;
+        handleOverdue(proxy, claimer, claimedAt, now - claimedAt);
+      }
+    }
+  }
+
+  private void handleOverdue(
+      ConnectionProxy proxy,
+      Thread claimer,
+      long claimedAt,
+      long heldNanos) {
+    long heldMillis = TimeUnit.NANOSECONDS.toMillis(heldNanos);
+    Throwable trace = new Throwable(
+        "Connection " + proxy + " has been held by thread '" +
+        claimer.getName() + "' for " + heldMillis + " milliseconds, " +
+        "which exceeds the max hold time of " +
+        TimeUnit.NANOSECONDS.toMillis(maxHoldTimeNanos) + " milliseconds" +
+        (abort ? "; aborting the connection." : "."));
+    trace.setStackTrace(claimer.getStackTrace());
+    dataSource.log(trace);
+    
+    if (abort) {
+      try {
+        // The connection may have been released, and claimed by someone
+        // else, since we looked at it. Then the abort does nothing.
+        proxy.abortClaim(claimedAt);
+      } catch (SQLException e) {
+        dataSource.log(e);
+      } catch (RuntimeException e) {
+        // Make sure we don't stop the watchdog, just because of one
+        // misbehaving driver.
+        dataSource.log(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package stormpot.jdbc;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import stormpot.Completion;
+import stormpot.Config;
+import stormpot.Expiration;
+import stormpot.LifecycledPool;
+import stormpot.PoolException;
+import stormpot.Timeout;
+import stormpot.bpool.BlazePool;
+
+/**
+ * The pools for getConnection(username, password). Every distinct set of
+ * credentials gets its own small pool, created the first time the
+ * credentials are used. The total number of connections in these pools is
+ * capped, and when a new pool would go over the cap, the least recently used
+ * pools without any claimed connections are shut down to make room.
+ * <p>
+ * The pools are found by a salted SHA-256 hash of the credentials, so the
+ * passwords are not used as map keys, and cannot be compared with the
+ * timing of String.equals. The salt is random for every instance.
+ */
+class CredentialPools {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  // Looking up the digest algorithm on every claim is slow, so every thread
+  // keeps its own instance. The digest is reset by computing the hash.
+  private static final ThreadLocal<MessageDigest> DIGESTS =
+      new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+          try {
+            return MessageDigest.getInstance("SHA-256");
+          } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+          }
+        }
+      };
+
+  private final DataSourceAllocator prototype;
+  private final Expiration<? super ConnectionProxy> expiration;
+  private final int poolSize;
+  private final int maxConnections;
+  private final byte[] salt;
+  // Guarded by the 'this' lock. In access order, so the first pool is the
+  // least recently used one.
+  private final LinkedHashMap<String, CredentialPool> pools;
+  private int totalConnections;
+  private boolean shutdown;
+
+  public CredentialPools(
+      DataSourceAllocator prototype,
+      Expiration<? super ConnectionProxy> expiration,
+      int poolSize,
+      int maxConnections) {
+    this.prototype = prototype;
+    this.expiration = expiration;
+    this.poolSize = poolSize;
+    this.maxConnections = maxConnections;
+    this.salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    this.pools = new LinkedHashMap<String, CredentialPool>(16, 0.75f, true);
+  }
+
+  /**
+   * Claim a connection from the pool for the given credentials, creating
+   * the pool if there is none. Returns null if the timeout elapsed first.
+   */
+  ConnectionProxy claim(String username, String password, Timeout timeout)
+      throws SQLException, InterruptedException {
+    CredentialPool pool = acquire(key(username, password), username, password);
+    ConnectionProxy con = null;
+    try {
+      con = pool.pool.claim(timeout);
+      if (con != null) {
+        con.attachCredentialPool(this, pool);
+      }
+      return con;
+    } catch (PoolException e) {
+      throw new SQLException("Failed to claim connection from pool.", e);
+    } finally {
+      if (con == null) {
+        release(pool);
+      }
+    }
+  }
+
+  private synchronized CredentialPool acquire(
+      String key, String username, String password) throws SQLException {
+    if (shutdown) {
+      throw new IllegalStateException("The pools have been shut down.");
+    }
+    CredentialPool pool = pools.get(key);
+    if (pool == null) {
+      makeRoom();
+      DataSourceAllocator allocator =
+          prototype.forCredentials(username, password);
+      Config<ConnectionProxy> config = new Config<ConnectionProxy>();
+      config.setSize(poolSize);
+      config.setAllocator(allocator);
+      config.setExpiration(new EvictingExpiration(expiration));
+      pool = new CredentialPool(
+          allocator, new BlazePool<ConnectionProxy>(config));
+      pools.put(key, pool);
+      totalConnections += poolSize;
+    }
+    pool.claimed++;
+    return pool;
+  }
+
+  private void makeRoom() throws SQLException {
+    Iterator<CredentialPool> iterator = pools.values().iterator();
+    while (totalConnections + poolSize > maxConnections &&
+        iterator.hasNext()) {
+      CredentialPool pool = iterator.next();
+      if (pool.claimed == 0) {
+        iterator.remove();
+        totalConnections -= poolSize;
+        pool.shutdown();
+      }
+    }
+    if (totalConnections + poolSize > maxConnections) {
+      throw new SQLTransientConnectionException(
+          "Cannot create a pool for another set of credentials, because " +
+          "the pools for the other " + pools.size() + " credentials are " +
+          "all in use, and already have " + totalConnections +
+          " connections, out of the max of " + maxConnections + ".");
+    }
+  }
+
+  /**
+   * Count a connection of the given pool as no longer claimed.
+   */
+  synchronized void release(CredentialPool pool) {
+    pool.claimed--;
+  }
+
+  synchronized int getPoolCount() {
+    return pools.size();
+  }
+
+  /**
+   * Shut down all the pools. The connections that are claimed are closed
+   * when they are released. The returned Completion waits for all the
+   * connections of all the pools to be closed.
+   */
+  Completion shutdown() {
+    List<CredentialPool> toShutdown;
+    synchronized (this) {
+      shutdown = true;
+      toShutdown = new ArrayList<CredentialPool>(pools.values());
+      pools.clear();
+      totalConnections = 0;
+    }
+    final List<Completion> completions =
+        new ArrayList<Completion>(toShutdown.size());
+    for (CredentialPool pool : toShutdown) {
+      completions.add(pool.shutdown());
+    }
+    return new Completion() {
+      public boolean await(Timeout timeout) throws InterruptedException {
+        long deadline = timeout.getDeadline();
+        for (Completion completion : completions) {
+          if (!completion.await(remaining(timeout, deadline))) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  private static Timeout remaining(Timeout timeout, long deadline) {
+    return new Timeout(timeout.getTimeLeft(deadline), timeout.getBaseUnit());
+  }
+
+  private String key(String username, String password) {
+    MessageDigest digest = DIGESTS.get();
+    digest.update(salt);
+    update(digest, username);
+    update(digest, password);
+    byte[] hash = digest.digest();
+    StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  // The strings are length prefixed, so different pairs of strings can never
+  // hash the same input, and null is distinct from the empty string.
+  private static void update(MessageDigest digest, String str) {
+    byte[] bytes = str == null? new byte[0] : str.getBytes(UTF8);
+    int length = str == null? -1 : bytes.length;
+    digest.update((byte) (length >>> 24));
+    digest.update((byte) (length >>> 16));
+    digest.update((byte) (length >>> 8));
+    digest.update((byte) length);
+    digest.update(bytes);
+  }
+
+  static final class CredentialPool {
+    private static final Timeout AWAIT_TIMEOUT =
+        new Timeout(1, TimeUnit.MINUTES);
+
+    final DataSourceAllocator allocator;
+    final LifecycledPool<ConnectionProxy> pool;
+    // Guarded by the lock of the CredentialPools:
+    int claimed;
+
+    CredentialPool(
+        DataSourceAllocator allocator, LifecycledPool<ConnectionProxy> pool) {
+      this.allocator = allocator;
+      this.pool = pool;
+    }
+
+    /**
+     * Shut down the pool, and return a Completion that waits for its
+     * connections to be closed.
+     */
+    Completion shutdown() {
+      allocator.deallocateInParallel();
+      final Completion completion = pool.shutdown();
+      // The connections use the executor until they are closed, so it must
+      // outlive the pool. This is waited for in the background, because the
+      // claimed connections are only closed when they are released, and
+      // nobody waits for the pools that are evicted to make room.
+      allocator.execute(new Runnable() {
+        public void run() {
+          try {
+            while (!completion.await(AWAIT_TIMEOUT));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            allocator.shutdownExecutor();
+          }
+        }
+      });
+      return new Completion() {
+        public boolean await(Timeout timeout) throws InterruptedException {
+          long deadline = timeout.getDeadline();
+          return completion.await(timeout) &&
+              allocator.awaitDeallocations(remaining(timeout, deadline));
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so the background work of a pool never keeps
+ * the JVM alive on its own.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+  private final String name;
+  private final AtomicInteger counter;
+
+  public DaemonThreadFactory(String name) {
+    this.name = name;
+    this.counter = new AtomicInteger();
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
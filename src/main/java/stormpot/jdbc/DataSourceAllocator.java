@@ -1,27 +1,297 @@
 package stormpot.jdbc;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import javax.sql.DataSource;
 
 import stormpot.Allocator;
 import stormpot.Slot;
+import stormpot.Timeout;
 
 class DataSourceAllocator implements Allocator<ConnectionProxy> {
   private static final AdaptorFactory adaptor =
       AdaptorMetaFactory.getAdaptorFactory();
 
   private final DataSource delegate;
+  // The optional features are set before the pool is started:
+  private volatile int networkTimeout;
+  private volatile FatalErrorClassifier classifier;
+  private volatile CircuitBreaker breaker;
+  private volatile AllocationThrottle throttle;
+  // Runs the background work of the pool: the drivers get it when we set the
+  // network timeout, or abort a connection, and it also runs the prefill,
+  // the refreshes, the failover health checks, the shutdown of credential
+  // pools, and the parallel closing of connections. A cached thread pool
+  // does not start any threads until there is work to do.
+  private final ExecutorService executor;
+  // All the connections that are currently allocated, so background tasks
+  // like the watchdog can inspect them, whether they are claimed or not.
+  private final Set<ConnectionProxy> allocated;
+  // When the pool shuts down, the connections are closed in parallel on the
+  // executor, instead of one at a time on the allocation thread of the pool.
+  private final Queue<Future<Void>> closing;
+  private volatile boolean deallocateInParallel;
+  // Connections that are being created in parallel when the pool starts.
+  // They are handed to the pool, in order, by the next calls to allocate.
+  private final Queue<Future<Jdbc41ConnectionDelegate>> prefilled;
+  // Counted down by successful allocations, until the pool is ready:
+  private volatile CountDownLatch ready;
+  private volatile String initSql;
+  private volatile String[] warmUpStatements;
+  // The credentials to connect with, or null to use the default credentials
+  // of the delegate DataSource. Only set by forCredentials.
+  private String username;
+  private String password;
 
   public DataSourceAllocator(DataSource delegate) {
     this.delegate = delegate;
+    this.executor = Executors.newCachedThreadPool(
+        new DaemonThreadFactory("stormpot-jdbc-worker"));
+    this.allocated = Collections.newSetFromMap(
+        new ConcurrentHashMap<ConnectionProxy, Boolean>());
+    this.closing = new ConcurrentLinkedQueue<Future<Void>>();
+    this.prefilled =
+        new ConcurrentLinkedQueue<Future<Jdbc41ConnectionDelegate>>();
+    this.ready = new CountDownLatch(0);
+    this.warmUpStatements = new String[0];
+  }
+
+  /**
+   * Set the network timeout of new connections, in milliseconds, or zero to
+   * leave the timeout of the driver alone.
+   */
+  void setNetworkTimeout(int networkTimeout) {
+    this.networkTimeout = networkTimeout;
+  }
+
+  /**
+   * Set the classifier that the new connections check their SQLExceptions
+   * with, or null to not check them.
+   */
+  void setFatalErrorClassifier(FatalErrorClassifier classifier) {
+    this.classifier = classifier;
+  }
+
+  /**
+   * Set the circuit breaker that tracks the allocation failures, or null
+   * for none.
+   */
+  void setCircuitBreaker(CircuitBreaker breaker) {
+    this.breaker = breaker;
+  }
+
+  /**
+   * Set the throttle that bounds the connection attempts, or null for none.
+   */
+  void setAllocationThrottle(AllocationThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  /**
+   * Set the SQL that is executed on every new connection, before it is given
+   * to the pool, or null to not execute anything.
+   */
+  void setInitSql(String initSql) {
+    this.initSql = initSql;
+  }
+
+  /**
+   * Set the statements that are prepared, and then closed, on every new
+   * connection before it is given to the pool.
+   */
+  void setWarmUpStatements(String[] warmUpStatements) {
+    this.warmUpStatements = warmUpStatements.clone();
+  }
+
+  /**
+   * Create an allocator that makes the same kind of connections as this
+   * one, but connects with the given credentials. It shares the allocation
+   * throttle with this allocator, but not the circuit breaker, so failing
+   * credentials cannot stop claims from other pools.
+   */
+  DataSourceAllocator forCredentials(String username, String password) {
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.setNetworkTimeout(networkTimeout);
+    allocator.setFatalErrorClassifier(classifier);
+    allocator.setAllocationThrottle(throttle);
+    allocator.setInitSql(initSql);
+    allocator.setWarmUpStatements(warmUpStatements);
+    allocator.username = username;
+    allocator.password = password;
+    return allocator;
   }
 
   @Override
   public ConnectionProxy allocate(Slot slot) throws Exception {
-    Connection connection = delegate.getConnection();
+    Future<Jdbc41ConnectionDelegate> future = prefilled.poll();
+    if (future == null && breaker != null && !breaker.allowConnect()) {
+      // Fail fast, rather than add to the load on a database that is down.
+      // SQLState 08001 means that the client is unable to establish a
+      // connection.
+      throw new SQLTransientConnectionException(
+          "The circuit breaker is open, because the attempts to connect to " +
+          delegate + " are failing.", "08001", breaker.getLastFailure());
+    }
+    if (future == null && throttle != null) {
+      // Refused by the backoff, which is not a new failure to connect.
+      throttle.checkBackoff();
+    }
+    Jdbc41ConnectionDelegate adaptor;
+    try {
+      adaptor = future == null? connect() : getPrefilled(future);
+    } catch (Exception e) {
+      if (breaker != null) {
+        breaker.recordFailure(e);
+      }
+      throw e;
+    }
+    if (breaker != null) {
+      breaker.recordSuccess();
+    }
+    ConnectionProxy proxy =
+        new ConnectionProxy(slot, adaptor, executor, classifier);
+    allocated.add(proxy);
+    ready.countDown();
+    return proxy;
+  }
+
+  private Jdbc41ConnectionDelegate getPrefilled(
+      Future<Jdbc41ConnectionDelegate> future) throws Exception {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      // The pool is shutting down. Don't leak the connection, and keep the
+      // interruption visible to the pool.
+      closeLater(future);
+      Thread.currentThread().interrupt();
+      throw e;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw (Error) cause;
+    }
+  }
+
+  /**
+   * Start creating the given number of connections in parallel, so the pool
+   * won't have to create them one at a time when it starts. This must be
+   * called before the pool is started.
+   */
+  void prefill(int count) {
+    ready = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      prefilled.add(executor.submit(new Callable<Jdbc41ConnectionDelegate>() {
+        public Jdbc41ConnectionDelegate call() throws Exception {
+          return connect();
+        }
+      }));
+    }
+  }
+
+  /**
+   * Wait until the number of connections given to {@link #prefill(int)} have
+   * been successfully allocated. Returns false if the timeout elapsed first.
+   */
+  boolean awaitReady(Timeout timeout) throws InterruptedException {
+    return ready.await(timeout.getTimeout(), timeout.getUnit());
+  }
+
+  /**
+   * Close the prefilled connections that the pool never took, because it was
+   * shut down before it got to them.
+   */
+  void discardPrefilled() {
+    Future<Jdbc41ConnectionDelegate> future;
+    while ((future = prefilled.poll()) != null) {
+      closeLater(future);
+    }
+  }
+
+  private void closeLater(final Future<Jdbc41ConnectionDelegate> connection) {
+    closing.add(executor.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        connection.get().close();
+        return null;
+      }
+    }));
+  }
+
+  /**
+   * Create a new physical connection, configured the way the pool wants it.
+   * This is subject to the allocation throttle, if there is one.
+   */
+  Jdbc41ConnectionDelegate connect() throws SQLException {
+    if (throttle == null) {
+      return connectUnthrottled();
+    }
+    throttle.acquire();
+    boolean success = false;
+    try {
+      Jdbc41ConnectionDelegate adaptor = connectUnthrottled();
+      success = true;
+      return adaptor;
+    } finally {
+      throttle.release(success);
+    }
+  }
+
+  private Jdbc41ConnectionDelegate connectUnthrottled() throws SQLException {
+    Connection connection = username == null && password == null?
+        delegate.getConnection() :
+        delegate.getConnection(username, password);
     Jdbc41ConnectionDelegate adaptor = adapt(connection);
-    return new ConnectionProxy(slot, adaptor);
+    if (networkTimeout > 0) {
+      try {
+        adaptor.setNetworkTimeout(executor, networkTimeout);
+      } catch (SQLException e) {
+        connection.close();
+        throw e;
+      }
+    }
+    try {
+      warmUp(connection);
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    }
+    return adaptor;
+  }
+
+  private void warmUp(Connection connection) throws SQLException {
+    String sql = initSql;
+    if (sql != null) {
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute(sql);
+      } finally {
+        statement.close();
+      }
+    }
+    // Preparing the statements up front lets drivers with statement caches,
+    // and databases with plan caches, do the work before the first claim.
+    for (String warmUpSql : warmUpStatements) {
+      PreparedStatement statement = connection.prepareStatement(warmUpSql);
+      statement.close();
+    }
   }
 
   private Jdbc41ConnectionDelegate adapt(Connection connection) {
@@ -29,7 +299,81 @@ class DataSourceAllocator implements Allocator<ConnectionProxy> {
   }
 
   @Override
-  public void deallocate(ConnectionProxy proxy) throws Exception {
-    proxy.closeDelegateConnection();
+  public void deallocate(final ConnectionProxy proxy) throws Exception {
+    allocated.remove(proxy);
+    if (deallocateInParallel) {
+      closing.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          proxy.closeDelegateConnection();
+          return null;
+        }
+      }));
+    } else {
+      proxy.closeDelegateConnection();
+    }
+  }
+
+  /**
+   * From now on, close the connections in parallel when they are deallocated.
+   * This is used when the pool is shutting down.
+   */
+  void deallocateInParallel() {
+    deallocateInParallel = true;
+  }
+
+  /**
+   * Wait for all the connections that are being closed in parallel, to be
+   * closed. Returns false if the timeout elapsed first, true otherwise.
+   * Failures to close connections are ignored, like the pool does.
+   */
+  boolean awaitDeallocations(Timeout timeout) throws InterruptedException {
+    long deadline = timeout.getDeadline();
+    Future<Void> future;
+    while ((future = closing.peek()) != null) {
+      long timeLeft = timeout.getTimeLeft(deadline);
+      try {
+        future.get(timeLeft, timeout.getBaseUnit());
+      } catch (ExecutionException ignore) {
+        // The pool does not care if deallocation fails, and neither do we.
+      } catch (TimeoutException e) {
+        return false;
+      }
+      closing.remove(future);
+    }
+    return true;
+  }
+
+  /**
+   * Run the given background task on the shared executor.
+   */
+  void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  /**
+   * Run the given background task on the shared executor, and return its
+   * Future, so the caller can bound how long it waits for the result.
+   */
+  <T> Future<T> submit(Callable<T> task) {
+    return executor.submit(task);
+  }
+
+  /**
+   * Stop the threads of the shared executor, once they are no longer needed.
+   */
+  void shutdownExecutor() {
+    executor.shutdown();
+  }
+
+  /**
+   * Returns the circuit breaker that tracks the allocation failures, or null
+   * if there is none.
+   */
+  CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  Collection<ConnectionProxy> allocatedConnections() {
+    return allocated;
   }
 }
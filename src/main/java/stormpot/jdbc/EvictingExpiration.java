@@ -0,0 +1,23 @@
+package stormpot.jdbc;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+/**
+ * Wraps the configured Expiration, such that connections that have been
+ * {@link ConnectionProxy#evict() evicted} are always considered expired.
+ * This is how we get rid of broken or aborted connections, since the pool
+ * only checks for expiration when objects are claimed.
+ */
+class EvictingExpiration implements Expiration<ConnectionProxy> {
+  private final Expiration<? super ConnectionProxy> delegate;
+
+  public EvictingExpiration(Expiration<? super ConnectionProxy> delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public boolean hasExpired(SlotInfo<? extends ConnectionProxy> info) {
+    return info.getPoolable().isEvicted() || delegate.hasExpired(info);
+  }
+}
@@ -0,0 +1,165 @@
+package stormpot.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * The delegate DataSource of a pool that can fail over between an ordered
+ * list of endpoints, configured with
+ * {@link JdbcConfig#setDataSources(DataSource...)}. New connections are
+ * created by the active endpoint, which is chosen by the
+ * {@link FailoverHealthCheck}, so allocations never wait for a failed
+ * endpoint to time out.
+ * <p>
+ * The endpoint of each connection is remembered, so the connections to an
+ * endpoint that is no longer active can be found and drained.
+ */
+class FailoverDataSource implements DataSource {
+  private final DataSource[] endpoints;
+  // Weak keys, so connections that are closed and forgotten by the pool
+  // don't stay in the map.
+  private final Map<Connection, Integer> connectionEndpoints;
+  private volatile int activeEndpoint;
+
+  public FailoverDataSource(DataSource... endpoints) {
+    if (endpoints == null || endpoints.length == 0) {
+      throw new IllegalArgumentException(
+          "At least one DataSource is required for failover.");
+    }
+    for (DataSource endpoint : endpoints) {
+      if (endpoint == null) {
+        throw new IllegalArgumentException(
+            "The failover DataSources cannot be null.");
+      }
+    }
+    this.endpoints = endpoints.clone();
+    this.connectionEndpoints = Collections.synchronizedMap(
+        new WeakHashMap<Connection, Integer>());
+  }
+
+  DataSource[] getEndpoints() {
+    return endpoints.clone();
+  }
+
+  int getEndpointCount() {
+    return endpoints.length;
+  }
+
+  int getActiveEndpoint() {
+    return activeEndpoint;
+  }
+
+  void setActiveEndpoint(int endpoint) {
+    activeEndpoint = endpoint;
+  }
+
+  /**
+   * Returns the index of the endpoint that created the given connection, or
+   * -1 if the connection was not created by this DataSource.
+   */
+  int endpointOf(Connection connection) {
+    Integer endpoint = connectionEndpoints.get(connection);
+    return endpoint == null? -1 : endpoint;
+  }
+
+  /**
+   * Returns true if a new connection to the given endpoint is valid within
+   * the given timeout. The connection is closed again right away. Only the
+   * validation is bounded by the timeout, so connecting to an endpoint that
+   * is down can block for as long as the driver takes to give up.
+   */
+  boolean isHealthy(int endpoint, int timeoutSeconds) {
+    try {
+      Connection connection = endpoints[endpoint].getConnection();
+      try {
+        return connection.isValid(timeoutSeconds);
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      return false;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    int endpoint = activeEndpoint;
+    Connection connection = endpoints[endpoint].getConnection();
+    connectionEndpoints.put(connection, endpoint);
+    return connection;
+  }
+
+  @Override
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    int endpoint = activeEndpoint;
+    Connection connection =
+        endpoints[endpoint].getConnection(username, password);
+    connectionEndpoints.put(connection, endpoint);
+    return connection;
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return endpoints[0].getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    for (DataSource endpoint : endpoints) {
+      endpoint.setLogWriter(out);
+    }
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    for (DataSource endpoint : endpoints) {
+      endpoint.setLoginTimeout(seconds);
+    }
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return endpoints[0].getLoginTimeout();
+  }
+
+  /**
+   * Unwraps the active endpoint, or whatever it can be unwrapped to.
+   */
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    DataSource endpoint = endpoints[activeEndpoint];
+    if (iface != null && iface.isInstance(endpoint)) {
+      return iface.cast(endpoint);
+    }
+    return endpoint.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    DataSource endpoint = endpoints[activeEndpoint];
+    if (iface != null && iface.isInstance(endpoint)) {
+      return true;
+    }
+    return endpoint.isWrapperFor(iface);
+  }
+
+  // JDBC 4.1 / JDK 1.7:
+
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException(
+        "The failover DataSource does not use java.util.logging. Unwrap " +
+        "the underlying DataSource, and call getParentLogger on that " +
+        "instead.");
+  }
+}
@@ -0,0 +1,153 @@
+package stormpot.jdbc;
+
+import java.sql.SQLWarning;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically checks the health of the failover endpoints, in order, and
+ * makes the first healthy one the active endpoint. This fails over when the
+ * active endpoint stops working, and fails back when an earlier endpoint
+ * recovers. If no endpoint is healthy, the active endpoint is kept.
+ * <p>
+ * Failing back only happens once the earlier endpoint has been found healthy
+ * by a number of checks in a row, so an endpoint that is flapping does not
+ * make the pool switch back and forth. Failing over is not delayed, since
+ * the active endpoint is down.
+ * <p>
+ * When the active endpoint changes, all the connections to the other
+ * endpoints are evicted. The idle ones are closed when they are next
+ * claimed, and the claimed ones when they are released, so the pool drains
+ * gradually, and the replacements are created by the new active endpoint.
+ * <p>
+ * An endpoint that is down can take a long time to refuse a connection, so
+ * the checks run on the executor of the allocator, rather than on the
+ * housekeeping thread, and each endpoint gets the timeout to answer. Only
+ * one check runs at a time.
+ */
+class FailoverHealthCheck implements Runnable {
+  private final StormpotDataSource dataSource;
+  private final DataSourceAllocator allocator;
+  private final FailoverDataSource failover;
+  private final int timeoutSeconds;
+  private final int failbackChecks;
+  private final AtomicBoolean checking;
+  private final Runnable check;
+  // The earlier endpoint that we might fail back to, or -1 if there is
+  // none, and how many checks in a row have found it healthy. Only one
+  // check runs at a time, and the 'checking' flag orders them.
+  private int recovering;
+  private int recoveries;
+
+  public FailoverHealthCheck(
+      StormpotDataSource dataSource,
+      DataSourceAllocator allocator,
+      FailoverDataSource failover,
+      int timeoutSeconds,
+      int failbackChecks) {
+    this.dataSource = dataSource;
+    this.allocator = allocator;
+    this.failover = failover;
+    this.timeoutSeconds = timeoutSeconds;
+    this.failbackChecks = failbackChecks;
+    this.checking = new AtomicBoolean();
+    this.check = new Runnable() {
+      public void run() {
+        try {
+          check();
+        } finally {
+          checking.set(false);
+        }
+      }
+    };
+    this.recovering = -1;
+  }
+
+  @Override
+  public void run() {
+    if (!checking.compareAndSet(false, true)) {
+      // The previous check is still going.
+      return;
+    }
+    try {
+      allocator.execute(check);
+    } catch (RejectedExecutionException e) {
+      // The pool is shutting down.
+      checking.set(false);
+    }
+  }
+
+  void check() {
+    int endpoints = failover.getEndpointCount();
+    int active = failover.getActiveEndpoint();
+    for (int i = 0; i < endpoints; i++) {
+      if (!isHealthy(i)) {
+        continue;
+      }
+      if (i < active && countRecovery(i) < failbackChecks
+          && isHealthy(active)) {
+        // Not failing back yet, but the active endpoint still works.
+        return;
+      }
+      recovering = -1;
+      if (i != active) {
+        switchTo(active, i);
+      }
+      return;
+    }
+    recovering = -1;
+  }
+
+  private int countRecovery(int endpoint) {
+    if (recovering != endpoint) {
+      recovering = endpoint;
+      recoveries = 0;
+    }
+    return ++recoveries;
+  }
+
+  private boolean isHealthy(final int endpoint) {
+    Future<Boolean> healthy;
+    try {
+      healthy = allocator.submit(new Callable<Boolean>() {
+        public Boolean call() {
+          return failover.isHealthy(endpoint, timeoutSeconds);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The pool is shutting down.
+      return false;
+    }
+    try {
+      return healthy.get(timeoutSeconds, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      // Too slow to connect counts as unhealthy. The interrupt might make
+      // the driver give up, but the connection is closed either way.
+      healthy.cancel(true);
+      return false;
+    } catch (ExecutionException e) {
+      return false;
+    } catch (InterruptedException e) {
+      healthy.cancel(true);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void switchTo(int previous, int endpoint) {
+    failover.setActiveEndpoint(endpoint);
+    dataSource.log(new SQLWarning(
+        "Failing over from endpoint " + previous + " to endpoint " +
+        endpoint + ", and draining the connections to the other endpoints."));
+    for (ConnectionProxy proxy : allocator.allocatedConnections()) {
+      if (failover.endpointOf(proxy.getDelegateConnection()) != endpoint) {
+        proxy.evict();
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+
+/**
+ * Decides if an SQLException means that the connection it came from is
+ * broken, based on a table of SQLState prefixes and vendor error codes.
+ * The chain of next-exceptions is checked as well, since drivers often put
+ * the interesting exception further down the chain.
+ */
+class FatalErrorClassifier {
+  // Guard against drivers that build cyclic, or very long, exception chains:
+  private static final int MAX_CHAIN_LENGTH = 10;
+
+  private final String[] sqlStatePrefixes;
+  private final int[] vendorCodes;
+
+  public FatalErrorClassifier(String[] sqlStatePrefixes, int[] vendorCodes) {
+    this.sqlStatePrefixes = sqlStatePrefixes.clone();
+    this.vendorCodes = vendorCodes.clone();
+  }
+
+  public boolean isFatal(SQLException exception) {
+    SQLException e = exception;
+    for (int i = 0; e != null && i < MAX_CHAIN_LENGTH; i++) {
+      if (isFatalSqlState(e.getSQLState()) || isFatalCode(e.getErrorCode())) {
+        return true;
+      }
+      e = e.getNextException();
+    }
+    return false;
+  }
+
+  private boolean isFatalSqlState(String sqlState) {
+    if (sqlState == null) {
+      return false;
+    }
+    for (String prefix : sqlStatePrefixes) {
+      if (sqlState.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isFatalCode(int errorCode) {
+    for (int code : vendorCodes) {
+      if (errorCode == code) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,243 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rows of a scatter-gather query, that are streamed from the shards as
+ * they arrive. Like a ResultSet, it starts before the first row, and is
+ * moved forward with {@link #next()}.
+ * <p>
+ * The rows must be read by a single thread. If the rows are not read to
+ * the end, they must be closed with {@link #close()}, so the queries that
+ * are still running are cancelled, and their connections are released.
+ *
+ * @see ScatterGather
+ */
+public class GatheredRows {
+  private final ShardQuery[] queries;
+  private final Future<?>[] futures;
+  // The queue that all the shards stream into, or null if the rows are
+  // merged from a queue per shard:
+  private final BlockingQueue<ShardQuery.Row> unordered;
+  private final BlockingQueue<ShardQuery.Row>[] perShard;
+  // The next row of each shard that still has rows, when merging:
+  private final PriorityQueue<ShardQuery.Row> heads;
+  private int remaining;
+  private final boolean merging;
+  // True once the merge has taken the first row from every shard:
+  private boolean primed;
+  private boolean closed;
+  private ShardQuery.Row current;
+
+  GatheredRows(
+      ShardQuery[] queries,
+      Future<?>[] futures,
+      BlockingQueue<ShardQuery.Row> unordered) {
+    this.queries = queries;
+    this.futures = futures;
+    this.unordered = unordered;
+    this.perShard = null;
+    this.heads = null;
+    this.remaining = queries.length;
+    this.merging = false;
+  }
+
+  GatheredRows(
+      ShardQuery[] queries,
+      Future<?>[] futures,
+      BlockingQueue<ShardQuery.Row>[] perShard,
+      final Comparator<Object[]> order) {
+    this.queries = queries;
+    this.futures = futures;
+    this.unordered = null;
+    this.perShard = perShard;
+    // Ties are broken by the shard index, so the merge is stable.
+    this.heads = new PriorityQueue<ShardQuery.Row>(
+        Math.max(1, queries.length), new Comparator<ShardQuery.Row>() {
+          public int compare(ShardQuery.Row a, ShardQuery.Row b) {
+            int result = order.compare(a.values, b.values);
+            if (result == 0) {
+              result = a.shard.shard < b.shard.shard? -1 :
+                  a.shard.shard == b.shard.shard? 0 : 1;
+            }
+            return result;
+          }
+        });
+    this.remaining = queries.length;
+    this.merging = true;
+  }
+
+  /**
+   * Move to the next row, and return true, or return false if there are no
+   * more rows. This waits until a row is available, but no longer than the
+   * shard timeout of the shard that is waited for.
+   *
+   * @throws SQLTimeoutException if a shard did not produce its rows within
+   * the shard timeout.
+   * @throws SQLException if the query failed on a shard, or the current
+   * thread is interrupted. The rest of the queries are cancelled.
+   */
+  public boolean next() throws SQLException {
+    if (closed) {
+      throw new SQLException("The rows have been closed.");
+    }
+    try {
+      current = merging? nextMerged() : nextUnordered();
+    } catch (InterruptedException e) {
+      close();
+      throw new SQLException("The current thread is interrupted.", e);
+    } catch (SQLException e) {
+      close();
+      throw e;
+    }
+    return current != null;
+  }
+
+  private ShardQuery.Row nextUnordered()
+      throws SQLException, InterruptedException {
+    while (remaining > 0) {
+      ShardQuery.Row row = unordered.poll(timeLeft(), TimeUnit.NANOSECONDS);
+      if (row == null) {
+        checkTimeouts();
+      } else if (row.values == null) {
+        endOf(row.shard);
+      } else {
+        return row;
+      }
+    }
+    return null;
+  }
+
+  private ShardQuery.Row nextMerged()
+      throws SQLException, InterruptedException {
+    if (!primed) {
+      // The first call takes the first row from every shard.
+      primed = true;
+      for (ShardQuery query : queries) {
+        advance(query);
+      }
+    } else if (current != null) {
+      // The shard of the current row is the only one we need a new row from.
+      advance(current.shard);
+    }
+    return heads.poll();
+  }
+
+  private void advance(ShardQuery query)
+      throws SQLException, InterruptedException {
+    BlockingQueue<ShardQuery.Row> rows = perShard[query.shard];
+    ShardQuery.Row row;
+    while ((row = rows.poll(query.timeLeft(System.nanoTime()),
+        TimeUnit.NANOSECONDS)) == null) {
+      checkTimeout(query, System.nanoTime());
+    }
+    if (row.values == null) {
+      endOf(query);
+    } else {
+      heads.add(row);
+    }
+  }
+
+  private void endOf(ShardQuery query) throws SQLException {
+    remaining--;
+    SQLException failure = query.getFailure();
+    if (failure != null) {
+      throw new SQLException(
+          "The query failed on shard " + query.shard + ".",
+          failure.getSQLState(), failure);
+    }
+  }
+
+  // The time until the first of the running shards times out.
+  private long timeLeft() {
+    long now = System.nanoTime();
+    long timeLeft = Long.MAX_VALUE;
+    for (ShardQuery query : queries) {
+      timeLeft = Math.min(timeLeft, query.timeLeft(now));
+    }
+    return Math.max(0, timeLeft);
+  }
+
+  private void checkTimeouts() throws SQLTimeoutException {
+    long now = System.nanoTime();
+    for (ShardQuery query : queries) {
+      checkTimeout(query, now);
+    }
+  }
+
+  private void checkTimeout(ShardQuery query, long now)
+      throws SQLTimeoutException {
+    if (query.timeLeft(now) <= 0) {
+      throw new SQLTimeoutException(
+          "The query on shard " + query.shard + " did not finish within " +
+          "the shard timeout.");
+    }
+  }
+
+  /**
+   * Returns the value of the given column of the current row, where the
+   * first column is 1.
+   */
+  public Object getObject(int column) throws SQLException {
+    Object[] values = currentValues();
+    if (column < 1 || column > values.length) {
+      throw new SQLException("There is no column " + column + " in the " +
+          "rows, which have " + values.length + " columns.");
+    }
+    return values[column - 1];
+  }
+
+  /**
+   * Returns a copy of the values of the current row.
+   */
+  public Object[] getRow() throws SQLException {
+    return currentValues().clone();
+  }
+
+  /**
+   * Returns the number of columns in the current row.
+   */
+  public int getColumnCount() throws SQLException {
+    return currentValues().length;
+  }
+
+  /**
+   * Returns the index of the shard that the current row came from.
+   */
+  public int getShard() throws SQLException {
+    currentValues();
+    return current.shard.shard;
+  }
+
+  private Object[] currentValues() throws SQLException {
+    if (closed || current == null) {
+      throw new SQLException("There is no current row.");
+    }
+    return current.values;
+  }
+
+  /**
+   * Cancel the queries that are still running, and release their
+   * connections. Closing the rows more than once has no effect.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    current = null;
+    for (int i = 0; i < queries.length; i++) {
+      if (!queries[i].isFinished()) {
+        queries[i].cancel();
+      }
+      // The interrupt wakes up a query that waits for room in the queue.
+      futures[i].cancel(true);
+    }
+  }
+}
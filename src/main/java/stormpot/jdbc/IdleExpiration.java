@@ -0,0 +1,56 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+/**
+ * An Expiration that retires connections that have not been claimed for
+ * longer than a given idle time. Each connection subtracts its own random
+ * part of the jitter from the idle time, so connections that went idle
+ * together, won't all be retired together.
+ * @see MaxLifetimeExpiration
+ * @see CompositeExpiration
+ */
+public class IdleExpiration implements Expiration<ConnectionProxy> {
+  private final long idleMillis;
+  private final long jitterMillis;
+
+  /**
+   * @param idleTime The time a connection can be idle in the pool, before it
+   * expires.
+   * @param jitter The max random amount of time subtracted from the idle
+   * time. Must be less than the idle time.
+   * @param unit The unit of the idle time and the jitter.
+   */
+  public IdleExpiration(long idleTime, long jitter, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    // The checks are done in milliseconds, since that is what we compare
+    // with, so a sub-millisecond idle time can't round down to zero.
+    long idleMillis = unit.toMillis(idleTime);
+    long jitterMillis = unit.toMillis(jitter);
+    if (idleMillis < 1) {
+      throw new IllegalArgumentException(
+          "The idle time must be at least one millisecond, but was " +
+          idleTime + " " + unit + ".");
+    }
+    if (jitter < 0 || jitterMillis >= idleMillis) {
+      throw new IllegalArgumentException(
+          "The jitter must be at least zero, and less than the idle time, " +
+          "in milliseconds, but was " + jitter + " " + unit + ".");
+    }
+    this.idleMillis = idleMillis;
+    this.jitterMillis = jitterMillis;
+  }
+
+  @Override
+  public boolean hasExpired(SlotInfo<? extends ConnectionProxy> info) {
+    ConnectionProxy proxy = info.getPoolable();
+    long idleTime = MillisClock.currentTimeMillis() - proxy.getReleasedAt();
+    long jitter = (long) (jitterMillis * proxy.getJitter());
+    return idleTime >= idleMillis - jitter;
+  }
+}
@@ -1,24 +1,130 @@
 package stormpot.jdbc;
 
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import javax.sql.DataSource;
 
 import stormpot.Config;
 import stormpot.Expiration;
+import stormpot.ResizablePool;
 
 public class JdbcConfig {
   Config<ConnectionProxy> config = new Config<ConnectionProxy>();
   DataSource dataSource;
+  int networkTimeout;
+  long maxHoldTimeNanos;
+  boolean abortHeldConnections;
+  long leakDetectionThresholdNanos;
+  int leakDetectionSampleRate = 100;
+  long refreshAheadNanos;
+  String[] fatalSqlStates = new String[0];
+  int[] fatalVendorCodes = new int[0];
+  int circuitBreakerThreshold;
+  long circuitBreakerOpenNanos = TimeUnit.SECONDS.toNanos(5);
+  int maxConcurrentAllocations;
+  long allocationBackoffNanos;
+  long maxAllocationBackoffNanos = TimeUnit.SECONDS.toNanos(30);
+  int prefillSize;
+  String initSql;
+  String[] warmUpStatements = new String[0];
+  int minPoolSize;
+  int maxPoolSize;
+  long resizeIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+  long growClaimWaitNanos = TimeUnit.MILLISECONDS.toNanos(1);
+  int minConcurrencyLimit = 1;
+  int maxConcurrencyLimit;
+  long loadSheddingTargetNanos;
+  long loadSheddingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+  long claimTimeoutNanos;
+  boolean claimTimeoutSet;
+  boolean stacklessRejections;
+  // The reserved and max connection counts of each workload partition:
+  Map<String, int[]> partitionQuotas = new LinkedHashMap<String, int[]>();
+  boolean prioritizedClaims;
+  int credentialPoolSize;
+  int maxCredentialConnections;
+  long failoverCheckIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+  int failbackCheckCount = 3;
 
   public synchronized void setDataSource(DataSource dataSource) {
     this.dataSource = dataSource;
-    config.setAllocator(new DataSourceAllocator(dataSource));
   }
 
   public synchronized DataSource getDataSource() {
     return dataSource;
   }
 
+  /**
+   * Set an ordered list of DataSources for the same database, to fail over
+   * between. New connections are created by the first one that is healthy,
+   * as decided by background health checks, which run at the interval given
+   * to {@link #setFailoverCheckInterval(long, TimeUnit)}. When the pool
+   * fails over, the connections to the other DataSources are drained as they
+   * are claimed or released. This replaces the DataSource set by
+   * {@link #setDataSource(DataSource)}.
+   */
+  public synchronized void setDataSources(DataSource... dataSources) {
+    this.dataSource = new FailoverDataSource(dataSources);
+  }
+
+  /**
+   * Returns the DataSources to fail over between, or the one DataSource if
+   * failover is not configured.
+   */
+  public synchronized DataSource[] getDataSources() {
+    if (dataSource instanceof FailoverDataSource) {
+      return ((FailoverDataSource) dataSource).getEndpoints();
+    }
+    return dataSource == null?
+        new DataSource[0] : new DataSource[] {dataSource};
+  }
+
+  /**
+   * Set how often the health of the DataSources is checked, when failing
+   * over between several DataSources. The health checks also time out after
+   * this long, rounded up to whole seconds. The default is five seconds.
+   */
+  public synchronized void setFailoverCheckInterval(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.failoverCheckIntervalNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getFailoverCheckInterval(TimeUnit unit) {
+    return unit.convert(failoverCheckIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set how many health checks in a row must find an earlier DataSource
+   * healthy, before the pool fails back to it. This keeps a DataSource that
+   * is flapping from draining the pool over and over. Failing over to a
+   * later DataSource, when the active one is unhealthy, is not delayed. The
+   * default is three.
+   */
+  public synchronized void setFailbackCheckCount(int count) {
+    this.failbackCheckCount = count;
+  }
+
+  public synchronized int getFailbackCheckCount() {
+    return failbackCheckCount;
+  }
+
   synchronized Config<ConnectionProxy> buildPoolConfig() {
+    if (dataSource != null) {
+      DataSourceAllocator allocator = new DataSourceAllocator(dataSource);
+      allocator.setNetworkTimeout(networkTimeout);
+      allocator.setFatalErrorClassifier(buildFatalErrorClassifier());
+      allocator.setCircuitBreaker(buildCircuitBreaker());
+      allocator.setAllocationThrottle(buildAllocationThrottle());
+      allocator.setInitSql(initSql);
+      allocator.setWarmUpStatements(warmUpStatements);
+      config.setAllocator(allocator);
+    }
     return config;
   }
 
@@ -38,7 +144,731 @@ public class JdbcConfig {
     return config.getExpiration();
   }
 
+  /**
+   * Set the network timeout, in milliseconds, that will be applied to all
+   * connections when they are created. Connections that have their network
+   * timeout changed while claimed, will have it reset to this value when they
+   * are claimed again. The default is zero, which means that the network
+   * timeout of the connections will not be changed.
+   */
+  public synchronized void setNetworkTimeout(int milliseconds) {
+    this.networkTimeout = milliseconds;
+  }
+
+  public synchronized int getNetworkTimeout() {
+    return networkTimeout;
+  }
+
+  /**
+   * Set the max time that a connection may be held by a claimer, before the
+   * watchdog reports it, along with the stack of the claiming thread, to the
+   * log writer of the DataSource. The default is zero, which means that the
+   * watchdog is disabled.
+   */
+  public synchronized void setMaxHoldTime(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.maxHoldTimeNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getMaxHoldTime(TimeUnit unit) {
+    return unit.convert(maxHoldTimeNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set whether the watchdog should also abort the physical connections that
+   * have been held for longer than the max hold time. Aborted connections are
+   * evicted from the pool. The default is false.
+   */
+  public synchronized void setAbortHeldConnections(boolean abort) {
+    this.abortHeldConnections = abort;
+  }
+
+  public synchronized boolean isAbortHeldConnections() {
+    return abortHeldConnections;
+  }
+
+  /**
+   * Set the time a connection can be claimed without being closed, before it
+   * is reported to the log writer as a possible leak. The default is zero,
+   * which means that leak detection is disabled.
+   */
+  public synchronized void setLeakDetectionThreshold(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.leakDetectionThresholdNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getLeakDetectionThreshold(TimeUnit unit) {
+    return unit.convert(leakDetectionThresholdNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set how many claims there are per sampled claim site, when leak
+   * detection is enabled. Every leak is reported, but only the leaks from
+   * sampled claims are reported with the stack of where the connection was
+   * claimed. The default is 100.
+   */
+  public synchronized void setLeakDetectionSampleRate(int claimsPerSample) {
+    this.leakDetectionSampleRate = claimsPerSample;
+  }
+
+  public synchronized int getLeakDetectionSampleRate() {
+    return leakDetectionSampleRate;
+  }
+
+  /**
+   * Set how long before the end of their max lifetime, that idle connections
+   * will have their physical connection replaced in the background. This
+   * requires that the Expiration is a {@link MaxLifetimeExpiration}, or a
+   * {@link CompositeExpiration} that contains one. The default is zero, which
+   * means that connections are not refreshed in the background.
+   */
+  public synchronized void setRefreshAhead(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.refreshAheadNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getRefreshAhead(TimeUnit unit) {
+    return unit.convert(refreshAheadNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set the SQLState prefixes that mean the connection is broken, such as
+   * "08", which is the class of connection exceptions. Connections that
+   * throw SQLExceptions with these SQLStates will be evicted from the pool
+   * when they are closed, instead of being handed out again. There are none
+   * by default.
+   * <p>
+   * When there are fatal SQLStates or vendor codes, the statements and their
+   * ResultSets are wrapped in dynamic proxies, so their SQLExceptions can be
+   * checked. Every call on them then goes through reflection, and they can
+   * no longer be cast to the classes of the driver, but they can still be
+   * unwrapped. SQLExceptions from other objects, like the DatabaseMetaData
+   * and ResultSetMetaData, are not checked.
+   */
+  public synchronized void setFatalSqlStates(String... sqlStatePrefixes) {
+    if (sqlStatePrefixes == null) {
+      throw new IllegalArgumentException(
+          "The SQLState prefixes cannot be null.");
+    }
+    this.fatalSqlStates = sqlStatePrefixes.clone();
+  }
+
+  public synchronized String[] getFatalSqlStates() {
+    return fatalSqlStates.clone();
+  }
+
+  /**
+   * Set the driver specific error codes that mean the connection is broken.
+   * These work like the fatal SQLStates. There are none by default.
+   */
+  public synchronized void setFatalVendorCodes(int... vendorCodes) {
+    if (vendorCodes == null) {
+      throw new IllegalArgumentException("The vendor codes cannot be null.");
+    }
+    this.fatalVendorCodes = vendorCodes.clone();
+  }
+
+  public synchronized int[] getFatalVendorCodes() {
+    return fatalVendorCodes.clone();
+  }
+
+  // Returns null when there is nothing to classify, so the connections
+  // don't have to wrap their statements.
+  private FatalErrorClassifier buildFatalErrorClassifier() {
+    if (fatalSqlStates.length == 0 && fatalVendorCodes.length == 0) {
+      return null;
+    }
+    return new FatalErrorClassifier(fatalSqlStates, fatalVendorCodes);
+  }
+
+  /**
+   * Set the number of consecutive failures to create a connection, after
+   * which the circuit breaker opens. While the circuit breaker is open,
+   * getConnection will immediately throw an SQLTransientConnectionException,
+   * instead of waiting for a connection that the database cannot give. The
+   * default is zero, which means that the circuit breaker is disabled.
+   */
+  public synchronized void setCircuitBreakerThreshold(int failures) {
+    this.circuitBreakerThreshold = failures;
+  }
+
+  public synchronized int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  /**
+   * Set how long the circuit breaker stays open, before a single claim is let
+   * through to probe if the database has come back. The default is 5 seconds.
+   */
+  public synchronized void setCircuitBreakerOpenTime(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.circuitBreakerOpenNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getCircuitBreakerOpenTime(TimeUnit unit) {
+    return unit.convert(circuitBreakerOpenNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private CircuitBreaker buildCircuitBreaker() {
+    if (circuitBreakerThreshold == 0) {
+      return null;
+    }
+    return new CircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenNanos);
+  }
+
+  /**
+   * Set the max number of connections that can be in the process of being
+   * created at the same time. The default is zero, which means that there is
+   * no limit.
+   */
+  public synchronized void setMaxConcurrentAllocations(int max) {
+    this.maxConcurrentAllocations = max;
+  }
+
+  public synchronized int getMaxConcurrentAllocations() {
+    return maxConcurrentAllocations;
+  }
+
+  /**
+   * Set the initial backoff after a failure to create a connection. The
+   * backoff doubles with every consecutive failure, up to the max allocation
+   * backoff, and the actual delay is a random fraction of it, so that pools
+   * that fail at the same time don't retry at the same time. Allocations
+   * within the backoff fail immediately, rather than wait, and are retried
+   * when a claim finds the failed slot. The default is zero, which means
+   * that failed allocations are retried without a backoff.
+   */
+  public synchronized void setAllocationBackoff(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.allocationBackoffNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getAllocationBackoff(TimeUnit unit) {
+    return unit.convert(allocationBackoffNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set the upper limit for the allocation backoff. The default is 30 seconds.
+   */
+  public synchronized void setMaxAllocationBackoff(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.maxAllocationBackoffNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getMaxAllocationBackoff(TimeUnit unit) {
+    return unit.convert(maxAllocationBackoffNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private AllocationThrottle buildAllocationThrottle() {
+    if (maxConcurrentAllocations == 0 && allocationBackoffNanos == 0) {
+      return null;
+    }
+    return new AllocationThrottle(
+        maxConcurrentAllocations,
+        allocationBackoffNanos,
+        maxAllocationBackoffNanos);
+  }
+
+  /**
+   * Set the number of connections that are created in parallel when the
+   * pool starts, instead of one at a time. The
+   * {@link StormpotDataSource#awaitReady(stormpot.Timeout)} method waits for
+   * this many connections to be created. The default is zero.
+   */
+  public synchronized void setPrefillSize(int prefillSize) {
+    this.prefillSize = prefillSize;
+  }
+
+  public synchronized int getPrefillSize() {
+    return prefillSize;
+  }
+
+  /**
+   * Set the SQL that is executed on every new connection, before it is put
+   * in the pool. The default is null, which means that nothing is executed.
+   */
+  public synchronized void setInitSql(String initSql) {
+    this.initSql = initSql;
+  }
+
+  public synchronized String getInitSql() {
+    return initSql;
+  }
+
+  /**
+   * Set the SQL of statements that are prepared, and then closed again, on
+   * every new connection before it is put in the pool. This only helps with
+   * drivers that cache prepared statements, or databases that cache their
+   * plans, but for those, the first claims won't pay for the preparation.
+   * There are none by default.
+   */
+  public synchronized void setWarmUpStatements(String... sql) {
+    if (sql == null) {
+      throw new IllegalArgumentException(
+          "The warm-up statements cannot be null.");
+    }
+    this.warmUpStatements = sql.clone();
+  }
+
+  public synchronized String[] getWarmUpStatements() {
+    return warmUpStatements.clone();
+  }
+
+  /**
+   * Set the smallest size that the pool can shrink to, when it is elastic.
+   * See {@link #setMaxPoolSize(int)}.
+   */
+  public synchronized void setMinPoolSize(int minPoolSize) {
+    this.minPoolSize = minPoolSize;
+  }
+
+  public synchronized int getMinPoolSize() {
+    return minPoolSize;
+  }
+
+  /**
+   * Set the largest size that the pool can grow to. Setting this makes the
+   * pool elastic: it starts out with the pool size, and then grows when
+   * claims have to wait for connections, and shrinks when connections are
+   * idle, but always stays between the min and the max pool size. The
+   * default is zero, which means that the pool has a fixed size.
+   */
+  public synchronized void setMaxPoolSize(int maxPoolSize) {
+    this.maxPoolSize = maxPoolSize;
+  }
+
+  public synchronized int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  /**
+   * Set how often an elastic pool reconsiders its size. The default is one
+   * second.
+   */
+  public synchronized void setResizeInterval(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.resizeIntervalNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getResizeInterval(TimeUnit unit) {
+    return unit.convert(resizeIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set how long the claims must wait on average, during a resize interval,
+   * for an elastic pool to grow. Claims that wait longer than this are
+   * queueing for connections, rather than finding idle ones. The default is
+   * one millisecond.
+   */
+  public synchronized void setGrowClaimWait(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.growClaimWaitNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getGrowClaimWait(TimeUnit unit) {
+    return unit.convert(growClaimWaitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set the lowest number of concurrent claims that the adaptive concurrency
+   * limiter can go down to. The default is 1.
+   * See {@link #setMaxConcurrencyLimit(int)}.
+   */
+  public synchronized void setMinConcurrencyLimit(int minLimit) {
+    this.minConcurrencyLimit = minLimit;
+  }
+
+  public synchronized int getMinConcurrencyLimit() {
+    return minConcurrencyLimit;
+  }
+
+  /**
+   * Set the highest number of concurrent claims that the adaptive concurrency
+   * limiter can go up to. Setting this enables the limiter, which lowers the
+   * number of connections that can be claimed at the same time when their
+   * hold times go up, since that means the database is overloaded. Claims
+   * over the limit fail immediately with an SQLTransientConnectionException.
+   * The limit starts out at the pool size. The default is zero, which means
+   * that the limiter is disabled.
+   */
+  public synchronized void setMaxConcurrencyLimit(int maxLimit) {
+    this.maxConcurrencyLimit = maxLimit;
+  }
+
+  public synchronized int getMaxConcurrencyLimit() {
+    return maxConcurrencyLimit;
+  }
+
+  synchronized ConcurrencyLimiter buildConcurrencyLimiter() {
+    if (maxConcurrencyLimit == 0) {
+      return null;
+    }
+    int initialLimit = Math.max(minConcurrencyLimit,
+        Math.min(maxConcurrencyLimit, config.getSize()));
+    return new ConcurrencyLimiter(
+        initialLimit, minConcurrencyLimit, maxConcurrencyLimit);
+  }
+
+  /**
+   * Set the target claim wait for load shedding. If no claim in a whole load
+   * shedding interval got a connection within the target, the pool is
+   * overloaded, and claims will only wait for up to the target, before they
+   * fail with an SQLTransientConnectionException. This keeps the latency
+   * bounded during overload, and callers can retry, or fail their own
+   * requests early. The default is zero, which means that no load is shed.
+   */
+  public synchronized void setLoadSheddingTarget(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.loadSheddingTargetNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getLoadSheddingTarget(TimeUnit unit) {
+    return unit.convert(loadSheddingTargetNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set the interval over which the claim waits must stay above the load
+   * shedding target, before load is shed. The default is 100 milliseconds.
+   */
+  public synchronized void setLoadSheddingInterval(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.loadSheddingIntervalNanos = unit.toNanos(time);
+  }
+
+  public synchronized long getLoadSheddingInterval(TimeUnit unit) {
+    return unit.convert(loadSheddingIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  synchronized LoadShedder buildLoadShedder() {
+    if (loadSheddingTargetNanos == 0) {
+      return null;
+    }
+    return new LoadShedder(loadSheddingTargetNanos, loadSheddingIntervalNanos);
+  }
+
+  /**
+   * Set how long getConnection will wait for a connection to become
+   * available in the pool, independently of the login timeout of the
+   * delegate DataSource. The timeout can be changed later with
+   * {@link StormpotDataSource#setClaimTimeout(long, TimeUnit)}. By default,
+   * the claim timeout is the login timeout of the StormpotDataSource.
+   */
+  public synchronized void setClaimTimeout(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.claimTimeoutNanos = unit.toNanos(time);
+    this.claimTimeoutSet = true;
+  }
+
+  public synchronized long getClaimTimeout(TimeUnit unit) {
+    return unit.convert(claimTimeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns true if the claim timeout has been set, and false if the claim
+   * timeout follows the login timeout.
+   */
+  public synchronized boolean isClaimTimeoutSet() {
+    return claimTimeoutSet;
+  }
+
+  /**
+   * Set whether the exceptions thrown when getConnection rejects a claim,
+   * because of a claim timeout, an open circuit breaker, or overload, should
+   * be created without a stack trace. This makes rejections much cheaper,
+   * which helps when an overloaded service rejects thousands of claims per
+   * second, at the cost of not knowing where they were thrown from. The
+   * default is false.
+   */
+  public synchronized void setStacklessRejections(boolean stackless) {
+    this.stacklessRejections = stackless;
+  }
+
+  public synchronized boolean isStacklessRejections() {
+    return stacklessRejections;
+  }
+
+  /**
+   * Add a named workload partition, or change the quotas of an existing one.
+   * Claims made with {@link StormpotDataSource#getConnection(String)} count
+   * against their partition. The reserved connections are kept for the
+   * partition, so other partitions cannot take them, and the partition never
+   * holds more than the max connections at a time. Idle connections that
+   * are not reserved can be borrowed by any partition. Claims that don't
+   * name a partition go to the "default" partition, which has nothing
+   * reserved and no max, unless it is added here. By default, there are no
+   * partitions.
+   */
+  public synchronized void setPartition(String name, int reserved, int max) {
+    if (name == null) {
+      throw new IllegalArgumentException(
+          "The partition name cannot be null.");
+    }
+    if (reserved < 0 || max < 1 || reserved > max) {
+      throw new IllegalArgumentException(
+          "A partition must have 0 <= reserved <= max and 1 <= max, but " +
+          "partition '" + name + "' had " + reserved + " reserved and " +
+          max + " max.");
+    }
+    partitionQuotas.put(name, new int[] {reserved, max});
+  }
+
+  public synchronized Set<String> getPartitionNames() {
+    return new LinkedHashSet<String>(partitionQuotas.keySet());
+  }
+
+  public synchronized int getPartitionReserved(String name) {
+    int[] quota = partitionQuotas.get(name);
+    return quota == null? 0 : quota[0];
+  }
+
+  public synchronized int getPartitionMax(String name) {
+    int[] quota = partitionQuotas.get(name);
+    return quota == null? 0 : quota[1];
+  }
+
+  /**
+   * Set whether claims that have to wait for a connection should get the
+   * released connections in order of urgency, given by the priority and
+   * deadline passed to
+   * {@link StormpotDataSource#getConnection(long, int)}, rather than in no
+   * particular order. This adds a lock to the claim path. The default is
+   * false.
+   */
+  public synchronized void setPrioritizedClaims(boolean prioritized) {
+    this.prioritizedClaims = prioritized;
+  }
+
+  public synchronized boolean isPrioritizedClaims() {
+    return prioritizedClaims;
+  }
+
+  synchronized ClaimQueue buildClaimQueue(ResizablePool<?> pool) {
+    if (!prioritizedClaims) {
+      return null;
+    }
+    return new ClaimQueue(pool);
+  }
+
+  /**
+   * Set the size of the pool that is created for each set of credentials,
+   * that is given to
+   * {@link StormpotDataSource#getConnection(String, String)}. The default
+   * is zero, which means that getConnection(username, password) is not
+   * supported. See also {@link #setMaxCredentialConnections(int)}.
+   */
+  public synchronized void setCredentialPoolSize(int poolSize) {
+    this.credentialPoolSize = poolSize;
+  }
+
+  public synchronized int getCredentialPoolSize() {
+    return credentialPoolSize;
+  }
+
+  /**
+   * Set the max number of connections in all the pools for the different
+   * credentials together. When a pool for new credentials would go over this
+   * limit, the least recently used pools without claimed connections are
+   * shut down. This must be at least the credential pool size, when that is
+   * set.
+   */
+  public synchronized void setMaxCredentialConnections(int maxConnections) {
+    this.maxCredentialConnections = maxConnections;
+  }
+
+  public synchronized int getMaxCredentialConnections() {
+    return maxCredentialConnections;
+  }
+
+  synchronized CredentialPools buildCredentialPools(
+      DataSourceAllocator prototype) {
+    if (credentialPoolSize == 0) {
+      return null;
+    }
+    return new CredentialPools(
+        prototype,
+        config.getExpiration(),
+        credentialPoolSize,
+        maxCredentialConnections);
+  }
+
+  synchronized WorkloadPartitions buildWorkloadPartitions(
+      ResizablePool<?> pool) {
+    if (partitionQuotas.isEmpty()) {
+      return null;
+    }
+    return new WorkloadPartitions(partitionQuotas, pool);
+  }
+
   public synchronized void validate() {
-    config.validate();
+    if (failoverCheckIntervalNanos <= 0) {
+      throw new IllegalArgumentException(
+          "The failover check interval must be positive.");
+    }
+    if (failbackCheckCount < 1) {
+      throw new IllegalArgumentException(
+          "The failback check count must be at least 1, but was " +
+          failbackCheckCount + ".");
+    }
+    if (credentialPoolSize < 0) {
+      throw new IllegalArgumentException(
+          "The credential pool size cannot be negative, but was " +
+          credentialPoolSize + ".");
+    }
+    if (credentialPoolSize > 0 &&
+        maxCredentialConnections < credentialPoolSize) {
+      throw new IllegalArgumentException(
+          "The max credential connections must be at least the credential " +
+          "pool size of " + credentialPoolSize + ", but was " +
+          maxCredentialConnections + ".");
+    }
+    int totalReserved = 0;
+    for (int[] quota : partitionQuotas.values()) {
+      totalReserved += quota[0];
+    }
+    // An elastic pool can shrink to its min size, and must still be able to
+    // honour all the reservations.
+    int guaranteedSize = maxPoolSize != 0? minPoolSize : config.getSize();
+    if (totalReserved > guaranteedSize) {
+      throw new IllegalArgumentException(
+          "The partitions reserve " + totalReserved + " connections in " +
+          "total, which is more than the pool can guarantee: " +
+          guaranteedSize + ".");
+    }
+    if (claimTimeoutNanos < 0) {
+      throw new IllegalArgumentException(
+          "The claim timeout cannot be negative.");
+    }
+    if (loadSheddingTargetNanos < 0) {
+      throw new IllegalArgumentException(
+          "The load shedding target cannot be negative.");
+    }
+    if (loadSheddingIntervalNanos <= 0) {
+      throw new IllegalArgumentException(
+          "The load shedding interval must be positive.");
+    }
+    if (maxConcurrencyLimit < 0) {
+      throw new IllegalArgumentException(
+          "The max concurrency limit cannot be negative, but was " +
+          maxConcurrencyLimit + ".");
+    }
+    if (maxConcurrencyLimit > 0 &&
+        (minConcurrencyLimit < 1 || minConcurrencyLimit > maxConcurrencyLimit)) {
+      throw new IllegalArgumentException(
+          "The min concurrency limit must be between 1 and the max " +
+          "concurrency limit of " + maxConcurrencyLimit + ", but was " +
+          minConcurrencyLimit + ".");
+    }
+    if (maxPoolSize != 0) {
+      int size = config.getSize();
+      if (minPoolSize < 1 || minPoolSize > size || size > maxPoolSize) {
+        throw new IllegalArgumentException(
+            "An elastic pool must have 1 <= min pool size <= pool size <= " +
+            "max pool size, but they were " + minPoolSize + ", " + size +
+            " and " + maxPoolSize + ".");
+      }
+      if (resizeIntervalNanos <= 0) {
+        throw new IllegalArgumentException(
+            "The resize interval must be positive.");
+      }
+      if (growClaimWaitNanos < 0) {
+        throw new IllegalArgumentException(
+            "The grow claim wait cannot be negative.");
+      }
+    } else if (minPoolSize != 0) {
+      throw new IllegalArgumentException(
+          "The min pool size requires a max pool size to be set.");
+    }
+    if (prefillSize < 0 || prefillSize > config.getSize()) {
+      throw new IllegalArgumentException(
+          "The prefill size must be between zero and the pool size of " +
+          config.getSize() + ", but was " + prefillSize + ".");
+    }
+    if (maxConcurrentAllocations < 0) {
+      throw new IllegalArgumentException(
+          "The max concurrent allocations cannot be negative, but was " +
+          maxConcurrentAllocations + ".");
+    }
+    if (allocationBackoffNanos < 0) {
+      throw new IllegalArgumentException(
+          "The allocation backoff cannot be negative.");
+    }
+    if (maxAllocationBackoffNanos < allocationBackoffNanos) {
+      throw new IllegalArgumentException(
+          "The max allocation backoff cannot be less than the initial " +
+          "allocation backoff.");
+    }
+    if (circuitBreakerThreshold < 0) {
+      throw new IllegalArgumentException(
+          "The circuit breaker threshold cannot be negative, but was " +
+          circuitBreakerThreshold + ".");
+    }
+    if (circuitBreakerOpenNanos <= 0) {
+      throw new IllegalArgumentException(
+          "The circuit breaker open time must be positive.");
+    }
+    if (refreshAheadNanos < 0) {
+      throw new IllegalArgumentException(
+          "The refresh ahead time cannot be negative.");
+    }
+    if (refreshAheadNanos > 0 &&
+        ConnectionRefresher.findMaxLifetime(config.getExpiration()) == null) {
+      throw new IllegalArgumentException(
+          "Refreshing connections in the background requires a " +
+          "MaxLifetimeExpiration, but the configured Expiration is " +
+          config.getExpiration());
+    }
+    if (leakDetectionThresholdNanos < 0) {
+      throw new IllegalArgumentException(
+          "The leak detection threshold cannot be negative.");
+    }
+    if (leakDetectionSampleRate < 1) {
+      throw new IllegalArgumentException(
+          "The leak detection sample rate must be at least 1, but was " +
+          leakDetectionSampleRate + ".");
+    }
+    if (maxHoldTimeNanos < 0) {
+      throw new IllegalArgumentException(
+          "The max hold time cannot be negative.");
+    }
+    if (networkTimeout < 0) {
+      throw new IllegalArgumentException(
+          "The network timeout cannot be negative, but was " +
+          networkTimeout + ".");
+    }
+    // These are the checks of the Stormpot Config. They are done here,
+    // because the allocator is only built once, by the pool.
+    if (config.getSize() < 1) {
+      throw new IllegalArgumentException(
+          "The pool size must be at least 1, but was " + config.getSize() +
+          ".");
+    }
+    if (dataSource == null) {
+      throw new IllegalArgumentException("The DataSource cannot be null.");
+    }
+    if (config.getExpiration() == null) {
+      throw new IllegalArgumentException("The Expiration cannot be null.");
+    }
   }
 }
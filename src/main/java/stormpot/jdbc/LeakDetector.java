@@ -0,0 +1,62 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically looks for connections that have been claimed, but not closed,
+ * for longer than the leak detection threshold. Every such connection is
+ * reported, and the claims that had their claim site sampled are reported
+ * with it, since that is where the leak is. A leaked connection is never
+ * claimed again, so its claim site stays around for us to find.
+ */
+class LeakDetector implements Runnable {
+  private final StormpotDataSource dataSource;
+  private final DataSourceAllocator allocator;
+  private final long thresholdNanos;
+
+  public LeakDetector(
+      StormpotDataSource dataSource,
+      DataSourceAllocator allocator,
+      long thresholdNanos) {
+    this.dataSource = dataSource;
+    this.allocator = allocator;
+    this.thresholdNanos = thresholdNanos;
+  }
+
+  @Override
+  public void run() {
+    long now = System.nanoTime();
+    for (ConnectionProxy proxy : allocator.allocatedConnections()) {
+      Thread claimer = proxy.getClaimer();
+      long claimedAt = proxy.getClaimedAt();
+      Throwable claimSite = proxy.getClaimSite();
+      if (claimer != null
+          && now - claimedAt > thresholdNanos
+          && proxy.leakReportedClaim != claimedAt) {
+        proxy.leakReportedClaim = claimedAt;
+        report(proxy, claimer, claimSite, now - claimedAt);
+      }
+    }
+  }
+
+  private void report(
+      ConnectionProxy proxy,
+      Thread claimer,
+      Throwable claimSite,
+      long heldNanos) {
+    String message =
+        "Possible connection leak: " + proxy + " was claimed by thread '" +
+        claimer.getName() + "' " + TimeUnit.NANOSECONDS.toMillis(heldNanos) +
+        " milliseconds ago, and has not been closed.";
+    Throwable trace;
+    if (claimSite == null) {
+      trace = new Throwable(message + " The claim site was not sampled, " +
+          "so where it was claimed is unknown.");
+      trace.setStackTrace(new StackTraceElement[0]);
+    } else {
+      trace = new Throwable(message + " It was claimed here:");
+      trace.setStackTrace(claimSite.getStackTrace());
+    }
+    dataSource.log(trace);
+  }
+}
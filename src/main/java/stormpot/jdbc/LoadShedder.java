@@ -0,0 +1,69 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import stormpot.Timeout;
+
+/**
+ * Decides when claims should stop waiting out their full timeout, based on
+ * the CoDel queue management algorithm. If the shortest claim wait in an
+ * interval was above the target, then claims did not get through the queue
+ * a single time in that interval, and the pool is overloaded. While that
+ * is the case, claims only wait for up to the target, and then give up.
+ * <p>
+ * The short claims keep measuring the queue, so as soon as one of them gets
+ * a connection within the target, the overload is over at the end of the
+ * interval. Looking at the minimum wait, rather than the average, means that
+ * short bursts that the pool soon catches up with are not counted as
+ * overload.
+ */
+class LoadShedder {
+  private static final long NO_SAMPLES = Long.MAX_VALUE;
+
+  private final long targetNanos;
+  private final long intervalNanos;
+  private final Timeout sheddingTimeout;
+  private final AtomicLong intervalStart;
+  private final AtomicLong intervalMinWait;
+  private volatile boolean overloaded;
+
+  public LoadShedder(long targetNanos, long intervalNanos) {
+    this.targetNanos = targetNanos;
+    this.intervalNanos = intervalNanos;
+    this.sheddingTimeout = new Timeout(targetNanos, TimeUnit.NANOSECONDS);
+    this.intervalStart = new AtomicLong(System.nanoTime());
+    this.intervalMinWait = new AtomicLong(NO_SAMPLES);
+  }
+
+  /**
+   * Returns true if the pool is overloaded, and claims should use the
+   * shedding timeout.
+   */
+  public boolean isOverloaded() {
+    return overloaded;
+  }
+
+  public Timeout getSheddingTimeout() {
+    return sheddingTimeout;
+  }
+
+  public long getTargetNanos() {
+    return targetNanos;
+  }
+
+  /**
+   * Record how long a claim waited, whether it got a connection or not.
+   */
+  public void recordClaimWait(long waitNanos) {
+    long min;
+    while (waitNanos < (min = intervalMinWait.get())
+        && !intervalMinWait.compareAndSet(min, waitNanos));
+    long start = intervalStart.get();
+    long now = System.nanoTime();
+    if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+      long intervalMin = intervalMinWait.getAndSet(NO_SAMPLES);
+      overloaded = intervalMin != NO_SAMPLES && intervalMin > targetNanos;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+/**
+ * An Expiration that retires connections once they reach a max lifetime.
+ * Each connection subtracts its own random part of the jitter from the
+ * lifetime, so connections that were created together, won't all be
+ * reconnected together. The lifetime is thus a hard upper bound.
+ * <p>
+ * Unlike the TimeExpiration that comes with Stormpot, this won't make the
+ * whole pool reconnect at the same time, every lifetime period.
+ * @see IdleExpiration
+ * @see CompositeExpiration
+ */
+public class MaxLifetimeExpiration implements Expiration<ConnectionProxy> {
+  private final long lifetimeMillis;
+  private final long jitterMillis;
+
+  /**
+   * @param lifetime The max time a connection can live, before it expires.
+   * @param jitter The max random amount of time subtracted from the
+   * lifetime. Must be less than the lifetime.
+   * @param unit The unit of the lifetime and the jitter.
+   */
+  public MaxLifetimeExpiration(long lifetime, long jitter, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    // The checks are done in milliseconds, since that is what we compare
+    // with, so a sub-millisecond lifetime can't round down to zero.
+    long lifetimeMillis = unit.toMillis(lifetime);
+    long jitterMillis = unit.toMillis(jitter);
+    if (lifetimeMillis < 1) {
+      throw new IllegalArgumentException(
+          "The lifetime must be at least one millisecond, but was " + lifetime +
+          " " + unit + ".");
+    }
+    if (jitter < 0 || jitterMillis >= lifetimeMillis) {
+      throw new IllegalArgumentException(
+          "The jitter must be at least zero, and less than the lifetime, " +
+          "in milliseconds, but was " + jitter + " " + unit + ".");
+    }
+    this.lifetimeMillis = lifetimeMillis;
+    this.jitterMillis = jitterMillis;
+  }
+
+  @Override
+  public boolean hasExpired(SlotInfo<? extends ConnectionProxy> info) {
+    ConnectionProxy proxy = info.getPoolable();
+    return MillisClock.currentTimeMillis() >= getDeadline(proxy);
+  }
+
+  /**
+   * Get the MillisClock time at which the given connection expires.
+   */
+  long getDeadline(ConnectionProxy proxy) {
+    long jitter = (long) (jitterMillis * proxy.getJitter());
+    return proxy.getCreatedAt() + lifetimeMillis - jitter;
+  }
+}
@@ -0,0 +1,22 @@
+package stormpot.jdbc;
+
+/**
+ * A monotonic millisecond clock, for the timestamps we record on every
+ * claim and release. It is read from System.nanoTime, so it needs no
+ * background thread, and there is nothing to stop when the pools are shut
+ * down.
+ */
+final class MillisClock {
+  private static final long ORIGIN = System.nanoTime();
+
+  private MillisClock() {
+  }
+
+  /**
+   * Get the number of milliseconds since an arbitrary point in time. Like
+   * System.nanoTime, this is only useful for measuring elapsed time.
+   */
+  static long currentTimeMillis() {
+    return (System.nanoTime() - ORIGIN) / 1000000;
+  }
+}
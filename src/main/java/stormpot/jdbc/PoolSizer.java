@@ -0,0 +1,76 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import stormpot.ResizablePool;
+
+/**
+ * Periodically adjusts the target size of the pool, between a min and a max,
+ * based on how long claims have been waiting, and how many of the
+ * connections are idle. The pool grows quickly when claims queue up, and
+ * shrinks slowly when connections sit idle, so that a brief lull does not
+ * throw away connections that are soon needed again.
+ */
+class PoolSizer implements Runnable {
+  // The pool shrinks when more than this fraction of connections are idle:
+  static final double SHRINK_IDLE_RATIO = 0.5;
+
+  private final ResizablePool<ConnectionProxy> pool;
+  private final DataSourceAllocator allocator;
+  private final int minSize;
+  private final int maxSize;
+  // Claims that wait longer than this on average, are queueing for
+  // connections, rather than finding idle ones:
+  private final long growWaitNanos;
+  private final AtomicLong claims;
+  private final AtomicLong waitNanos;
+
+  public PoolSizer(
+      ResizablePool<ConnectionProxy> pool,
+      DataSourceAllocator allocator,
+      int minSize,
+      int maxSize,
+      long growWaitNanos) {
+    this.pool = pool;
+    this.allocator = allocator;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.growWaitNanos = growWaitNanos;
+    this.claims = new AtomicLong();
+    this.waitNanos = new AtomicLong();
+  }
+
+  /**
+   * Record how long a claim waited for a connection, including claims that
+   * timed out.
+   */
+  public void recordClaimWait(long nanos) {
+    waitNanos.addAndGet(nanos);
+    claims.incrementAndGet();
+  }
+
+  @Override
+  public void run() {
+    long claimCount = claims.getAndSet(0);
+    long waited = waitNanos.getAndSet(0);
+    int target = pool.getTargetSize();
+    if (claimCount > 0 && waited / claimCount > growWaitNanos) {
+      int growth = Math.max(1, target / 2);
+      pool.setTargetSize(Math.min(maxSize, target + growth));
+    } else if (target > minSize && idleRatio() > SHRINK_IDLE_RATIO) {
+      pool.setTargetSize(target - 1);
+    }
+  }
+
+  private double idleRatio() {
+    int total = 0;
+    int idle = 0;
+    for (ConnectionProxy proxy : allocator.allocatedConnections()) {
+      total++;
+      if (proxy.isIdle()) {
+        idle++;
+      }
+    }
+    return total == 0? 0.0 : (double) idle / total;
+  }
+}
@@ -0,0 +1,43 @@
+package stormpot.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A {@link ReplicaLagProbe} that runs a query, which returns the lag of the
+ * replica in seconds, as a number in the first column of the first row. On
+ * PostgreSQL, for instance, the query could be:
+ * <pre>
+ * SELECT EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp())
+ * </pre>
+ * A query that returns no rows, or NULL, means that the lag is unknown.
+ */
+public class QueryLagProbe implements ReplicaLagProbe {
+  private final String sql;
+
+  public QueryLagProbe(String sql) {
+    if (sql == null) {
+      throw new IllegalArgumentException("The lag query cannot be null.");
+    }
+    this.sql = sql;
+  }
+
+  public long measureLagMillis(Connection connection) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery(sql);
+      if (!resultSet.next()) {
+        throw new SQLException("The lag query returned no rows: " + sql);
+      }
+      double lagSeconds = resultSet.getDouble(1);
+      if (resultSet.wasNull()) {
+        throw new SQLException("The lag query returned NULL: " + sql);
+      }
+      return Math.max(0, Math.round(lagSeconds * 1000));
+    } finally {
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package stormpot.jdbc;
+
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Creates the exceptions that getConnection throws when it rejects a claim,
+ * because of a timeout, or because the pool is overloaded or the database is
+ * down. These can be thrown thousands of times per second during an
+ * incident, so they can be made stackless: filling in the stack trace is by
+ * far the most expensive part of creating an exception.
+ * <p>
+ * The exceptions are still created for every rejection, rather than shared,
+ * because callers can change them, with setNextException, initCause or
+ * addSuppressed.
+ */
+class Rejections {
+  private final boolean stackless;
+
+  public Rejections(boolean stackless) {
+    this.stackless = stackless;
+  }
+
+  public SQLTimeoutException timeout(String message) {
+    if (stackless) {
+      return new StacklessTimeoutException(message);
+    }
+    return new SQLTimeoutException(message);
+  }
+
+  public SQLTransientConnectionException overload(
+      String message, String sqlState, Throwable cause) {
+    if (stackless) {
+      return new StacklessTransientConnectionException(
+          message, sqlState, cause);
+    }
+    return new SQLTransientConnectionException(message, sqlState, cause);
+  }
+
+  private static class StacklessTimeoutException
+      extends SQLTimeoutException {
+    private static final long serialVersionUID = -2467716423464478133L;
+
+    StacklessTimeoutException(String message) {
+      super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class StacklessTransientConnectionException
+      extends SQLTransientConnectionException {
+    private static final long serialVersionUID = 4829466925613281740L;
+
+    StacklessTransientConnectionException(
+        String message, String sqlState, Throwable cause) {
+      super(message, sqlState, cause);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+}
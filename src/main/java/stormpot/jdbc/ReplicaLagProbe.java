@@ -0,0 +1,19 @@
+package stormpot.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Measures how far a read replica is behind the primary. The probe is given
+ * a connection to the replica, which it must not close.
+ * @see ReplicatedDataSource#setLagProbe(ReplicaLagProbe, long,
+ * java.util.concurrent.TimeUnit)
+ */
+public interface ReplicaLagProbe {
+  /**
+   * Returns the replication lag of the replica that the given connection is
+   * connected to, in milliseconds. Throwing an exception means that the lag
+   * is unknown, and the replica will be treated as too far behind.
+   */
+  long measureLagMillis(Connection connection) throws SQLException;
+}
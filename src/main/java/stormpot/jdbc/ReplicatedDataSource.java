@@ -0,0 +1,429 @@
+package stormpot.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import stormpot.Timeout;
+
+/**
+ * A DataSource for a primary database with read replicas, that has a
+ * connection pool for each of them. Connections for reading go to the
+ * replicas, and everything else goes to the primary.
+ * <p>
+ * Connections for reading are claimed with {@link #getReadOnlyConnection()},
+ * or with {@link #getConnection()} while the read-only hint is set for the
+ * current thread, with {@link #setReadOnlyHint(boolean)}. They are claimed
+ * from the replica with the fewest claimed connections, which balances the
+ * load even when some replicas are slower than others. If there are no
+ * replicas, they are claimed from the primary.
+ * <p>
+ * The replicas may lag behind the primary. Replicas that are too far behind
+ * can be avoided, by measuring their lag in the background with
+ * {@link #setLagProbe(ReplicaLagProbe, long, TimeUnit)}, and setting a max
+ * lag with {@link #setMaxReplicaLag(long, TimeUnit)}. A thread can also be
+ * made to read its own writes, by setting a window with
+ * {@link #setReadYourWritesWindow(long, TimeUnit)}: for that long after a
+ * thread has released a connection to the primary, its reads go to the
+ * primary too.
+ */
+public class ReplicatedDataSource implements DataSource {
+  private final StormpotDataSource primary;
+  private final StormpotDataSource[] replicas;
+  // Where to start looking for the least loaded replica, so that ties are
+  // broken in a round-robin fashion:
+  private final AtomicInteger nextReplica;
+  private final ThreadLocal<Boolean> readOnlyHint;
+  // The last measured lag of each replica, in milliseconds, or
+  // Long.MAX_VALUE if the lag is unknown.
+  private final AtomicLongArray replicaLagMillis;
+  // The MillisClock time at which each thread last released a connection
+  // that it claimed from the primary for writing, or Long.MAX_VALUE while
+  // the thread holds it. Only used when there is a read-your-writes window.
+  private final ThreadLocal<AtomicLong> lastWrite;
+  private volatile long maxReplicaLagMillis;
+  private volatile long readYourWritesMillis;
+  // Runs the lag probe. Guarded by the 'this' lock, and null until a lag
+  // probe is set.
+  private ScheduledExecutorService lagProber;
+  private ScheduledFuture<?> lagProbeTask;
+
+  /**
+   * Create a pool for the primary, and one for each of the replicas, from
+   * the given configurations.
+   */
+  public ReplicatedDataSource(JdbcConfig primary, JdbcConfig... replicas) {
+    if (primary == null) {
+      throw new IllegalArgumentException(
+          "The JdbcConfig of the primary cannot be null");
+    }
+    if (replicas == null) {
+      throw new IllegalArgumentException(
+          "The replica JdbcConfigs cannot be null");
+    }
+    for (JdbcConfig replica : replicas) {
+      if (replica == null) {
+        throw new IllegalArgumentException(
+            "The replica JdbcConfigs cannot be null");
+      }
+    }
+    this.primary = new StormpotDataSource(primary);
+    this.replicas = new StormpotDataSource[replicas.length];
+    try {
+      for (int i = 0; i < replicas.length; i++) {
+        this.replicas[i] = new StormpotDataSource(replicas[i]);
+      }
+    } catch (RuntimeException e) {
+      // Don't leak the pools that were created before the invalid config.
+      shutDownInBackground();
+      throw e;
+    }
+    this.nextReplica = new AtomicInteger();
+    this.readOnlyHint = new ThreadLocal<Boolean>();
+    this.replicaLagMillis = new AtomicLongArray(replicas.length);
+    forgetReplicaLags();
+    this.lastWrite = new ThreadLocal<AtomicLong>();
+  }
+
+  /**
+   * Set how far behind the primary a replica can be, before reads stop
+   * going to it. The lag is measured by the lag probe. If all the replicas
+   * are too far behind, the reads go to the primary. Replicas are counted
+   * as too far behind until their lag has been measured. The default is
+   * zero, which means that the lag is not considered.
+   */
+  public void setMaxReplicaLag(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    maxReplicaLagMillis = unit.toMillis(time);
+  }
+
+  public long getMaxReplicaLag(TimeUnit unit) {
+    return unit.convert(maxReplicaLagMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set how long the reads of a thread go to the primary, after the thread
+   * has released a connection it claimed from the primary with
+   * getConnection. While the thread holds the connection, its reads always
+   * go to the primary. This should be at least the usual replication lag.
+   * The default is zero, which means that the reads go to the replicas
+   * right away.
+   */
+  public void setReadYourWritesWindow(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    readYourWritesMillis = unit.toMillis(time);
+  }
+
+  public long getReadYourWritesWindow(TimeUnit unit) {
+    return unit.convert(readYourWritesMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Measure the lag of every replica with the given probe, at the given
+   * interval, on a background thread. The probe replaces any previous probe,
+   * and null stops the probing, and forgets the measured lags, so they are
+   * unknown until another probe measures them. The replicas
+   * are probed through their pools, so probing a busy replica waits for a
+   * connection.
+   */
+  public synchronized void setLagProbe(
+      ReplicaLagProbe probe, long interval, TimeUnit unit) {
+    if (probe != null && (unit == null || interval <= 0)) {
+      throw new IllegalArgumentException(
+          "The lag probe interval must be positive, but was " + interval +
+          " " + unit + ".");
+    }
+    if (lagProbeTask != null) {
+      lagProbeTask.cancel(false);
+      lagProbeTask = null;
+    }
+    if (probe == null) {
+      forgetReplicaLags();
+      return;
+    }
+    if (lagProber == null) {
+      lagProber = Executors.newSingleThreadScheduledExecutor(
+          new DaemonThreadFactory("stormpot-jdbc-lag-probe"));
+    }
+    lagProbeTask = lagProber.scheduleWithFixedDelay(
+        new LagProbeTask(probe), 0, interval, unit);
+  }
+
+  /**
+   * Returns the last measured lag of the replica with the given index, in
+   * the order they were configured, or Long.MAX_VALUE if the lag is unknown
+   * because it has not been measured, or the last probe failed.
+   */
+  public long getReplicaLag(int replica, TimeUnit unit) {
+    long lag = replicaLagMillis.get(replica);
+    if (lag == Long.MAX_VALUE) {
+      return lag;
+    }
+    return unit.convert(lag, TimeUnit.MILLISECONDS);
+  }
+
+  private void forgetReplicaLags() {
+    for (int i = 0; i < replicas.length; i++) {
+      replicaLagMillis.set(i, Long.MAX_VALUE);
+    }
+  }
+
+  private synchronized void stopLagProbe() {
+    if (lagProber != null) {
+      lagProber.shutdownNow();
+    }
+  }
+
+  void probeLag(ReplicaLagProbe probe) {
+    for (int i = 0; i < replicas.length; i++) {
+      long lag;
+      try {
+        Connection con = replicas[i].getConnection();
+        try {
+          lag = probe.measureLagMillis(con);
+        } finally {
+          con.close();
+        }
+      } catch (Exception e) {
+        // Unknown lag is treated as too much lag.
+        lag = Long.MAX_VALUE;
+      }
+      replicaLagMillis.set(i, lag);
+    }
+  }
+
+  private class LagProbeTask implements Runnable {
+    private final ReplicaLagProbe probe;
+
+    LagProbeTask(ReplicaLagProbe probe) {
+      this.probe = probe;
+    }
+
+    public void run() {
+      probeLag(probe);
+    }
+  }
+
+  /**
+   * Set whether getConnection should claim a connection for reading, for
+   * the current thread. This lets code that only knows about DataSources be
+   * routed to the replicas, for instance by setting the hint at the start of
+   * a read-only transaction, and clearing it at the end.
+   */
+  public void setReadOnlyHint(boolean readOnly) {
+    if (readOnly) {
+      readOnlyHint.set(Boolean.TRUE);
+    } else {
+      readOnlyHint.remove();
+    }
+  }
+
+  public boolean isReadOnlyHint() {
+    return readOnlyHint.get() != null;
+  }
+
+  /**
+   * Claim a connection from the primary, unless the read-only hint is set
+   * for the current thread.
+   */
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (isReadOnlyHint()) {
+      return getReadOnlyConnection();
+    }
+    if (readYourWritesMillis == 0) {
+      return primary.getConnection();
+    }
+    AtomicLong releasedAt = lastWrite.get();
+    if (releasedAt == null) {
+      releasedAt = new AtomicLong();
+      lastWrite.set(releasedAt);
+    }
+    Connection con = primary.getConnection(releasedAt);
+    releasedAt.set(Long.MAX_VALUE);
+    return con;
+  }
+
+  /**
+   * Claim a connection for reading, from the replica with the fewest claimed
+   * connections, among those that are not too far behind. The connection is
+   * claimed from the primary instead, if there are no such replicas, or if
+   * the current thread is within its read-your-writes window.
+   */
+  public Connection getReadOnlyConnection() throws SQLException {
+    if (mustReadFromPrimary()) {
+      return primary.getConnection();
+    }
+    return leastLoadedReplica().getConnection();
+  }
+
+  private boolean mustReadFromPrimary() {
+    long window = readYourWritesMillis;
+    if (window == 0) {
+      return false;
+    }
+    AtomicLong releasedAt = lastWrite.get();
+    if (releasedAt == null) {
+      return false;
+    }
+    long at = releasedAt.get();
+    return at == Long.MAX_VALUE || MillisClock.currentTimeMillis() - at < window;
+  }
+
+  StormpotDataSource leastLoadedReplica() {
+    int count = replicas.length;
+    long maxLag = maxReplicaLagMillis;
+    int start = count == 0? 0 :
+        (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % count;
+    StormpotDataSource best = primary;
+    int bestClaimed = Integer.MAX_VALUE;
+    for (int i = 0; i < count && bestClaimed > 0; i++) {
+      int index = (start + i) % count;
+      if (maxLag > 0 && replicaLagMillis.get(index) > maxLag) {
+        continue;
+      }
+      int claimed = replicas[index].getClaimedCount();
+      if (claimed < bestClaimed) {
+        best = replicas[index];
+        bestClaimed = claimed;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the pool of the primary.
+   */
+  public StormpotDataSource getPrimary() {
+    return primary;
+  }
+
+  /**
+   * Returns the pools of the replicas, in the order they were configured.
+   */
+  public StormpotDataSource[] getReplicas() {
+    return replicas.clone();
+  }
+
+  /**
+   * Shut down the pools of the primary and all the replicas, and wait for
+   * up to the given timeout for their connections to be closed. Returns
+   * true if all the connections were closed in time.
+   * @see StormpotDataSource#shutdown(Timeout)
+   */
+  public boolean shutdown(Timeout timeout) throws InterruptedException {
+    if (timeout == null) {
+      throw new IllegalArgumentException("The timeout cannot be null.");
+    }
+    stopLagProbe();
+    long deadline = timeout.getDeadline();
+    boolean closed = primary.shutdown(timeout);
+    for (StormpotDataSource replica : replicas) {
+      if (replica == null) {
+        // The constructor failed before this replica was created.
+        continue;
+      }
+      long timeLeft = Math.max(0, timeout.getTimeLeft(deadline));
+      closed &= replica.shutdown(new Timeout(timeLeft, timeout.getBaseUnit()));
+    }
+    return closed;
+  }
+
+  private void shutDownInBackground() {
+    Timeout noWait = new Timeout(0, TimeUnit.NANOSECONDS);
+    try {
+      shutdown(noWait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Shut down all the pools, and wait for up to 30 seconds for all the
+   * connections to be closed.
+   */
+  public void close() throws SQLException {
+    try {
+      shutdown(new Timeout(30, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new SQLException("The current thread is interrupted.", e);
+    }
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return primary.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    primary.setLogWriter(out);
+    for (StormpotDataSource replica : replicas) {
+      replica.setLogWriter(out);
+    }
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    primary.setLoginTimeout(seconds);
+    for (StormpotDataSource replica : replicas) {
+      replica.setLoginTimeout(seconds);
+    }
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return primary.getLoginTimeout();
+  }
+
+  /**
+   * Unwraps the pool of the primary, or whatever the pool of the primary
+   * can be unwrapped to.
+   */
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface != null && iface.isInstance(primary)) {
+      return iface.cast(primary);
+    }
+    return primary.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    if (iface != null && iface.isInstance(primary)) {
+      return true;
+    }
+    return primary.isWrapperFor(iface);
+  }
+
+  /**
+   * Claim a connection from the primary, with the given credentials.
+   * @see StormpotDataSource#getConnection(String, String)
+   */
+  @Override
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    return primary.getConnection(username, password);
+  }
+
+  // JDBC 4.1 / JDK 1.7:
+
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return primary.getParentLogger();
+  }
+}
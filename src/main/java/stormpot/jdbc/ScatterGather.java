@@ -0,0 +1,252 @@
+package stormpot.jdbc;
+
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+/**
+ * Runs the same query on a number of pools in parallel, and streams the rows
+ * back as one set of {@link GatheredRows}. This is useful for queries that
+ * span all the shards of a sharded database.
+ * <p>
+ * The queries run on a fixed number of threads, so a query on many shards
+ * cannot start an unbounded number of threads. When there are at least as
+ * many threads as pools, the rows of every pool are ready after the time
+ * it takes the slowest pool to produce them, and merging the rows needs
+ * that many threads. Each shard has its own timeout, and the rows from
+ * each shard are buffered in a bounded queue, so a slow reader holds the
+ * queries back, rather than running out of memory.
+ * <p>
+ * The rows are either given in the order they arrive, with
+ * {@link #query(String, Object...)}, or merged with
+ * {@link #queryMerged(Comparator, String, Object...)}, when the query sorts
+ * the rows on every shard, and they must come out sorted across the shards.
+ */
+public class ScatterGather {
+  private final DataSource[] pools;
+  private final int parallelism;
+  private final ExecutorService executor;
+  private volatile long shardTimeoutNanos;
+  private volatile int rowBufferSize;
+
+  /**
+   * Run the queries on the shards of the given sharded pool, with a thread
+   * for every shard. The connections are claimed through the sharded pool,
+   * so they are counted in its {@link ShardMetrics}.
+   */
+  public ScatterGather(ShardedStormpotDataSource shards) {
+    this(shards.getShardCount(), poolsOf(shards));
+  }
+
+  /**
+   * Run the queries on the given pools, with at most the given number of
+   * queries running at the same time.
+   */
+  public ScatterGather(int parallelism, DataSource... pools) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "The parallelism must be at least 1, but was " + parallelism + ".");
+    }
+    if (pools == null || pools.length == 0) {
+      throw new IllegalArgumentException(
+          "At least one DataSource is required.");
+    }
+    for (DataSource pool : pools) {
+      if (pool == null) {
+        throw new IllegalArgumentException("The DataSources cannot be null.");
+      }
+    }
+    this.pools = pools.clone();
+    this.parallelism = parallelism;
+    this.executor = Executors.newFixedThreadPool(parallelism,
+        new DaemonThreadFactory("stormpot-jdbc-scatter-gather"));
+    this.shardTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    this.rowBufferSize = 256;
+  }
+
+  private static DataSource[] poolsOf(ShardedStormpotDataSource shards) {
+    DataSource[] pools = new DataSource[shards.getShardCount()];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = shards.getMeteredShard(i);
+    }
+    return pools;
+  }
+
+  /**
+   * Set how long the query on a shard can take, from when it is submitted.
+   * This includes the time spent waiting for a thread, when there are fewer
+   * threads than pools, but the time spent waiting for the reader of the
+   * rows is not counted. The time that is left when the query starts, is
+   * also given to the database as the query timeout, rounded up to whole
+   * seconds. The default is 30 seconds.
+   */
+  public void setShardTimeout(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    if (time < 1) {
+      throw new IllegalArgumentException(
+          "The shard timeout must be positive, but was " + time + ".");
+    }
+    shardTimeoutNanos = unit.toNanos(time);
+  }
+
+  public long getShardTimeout(TimeUnit unit) {
+    return unit.convert(shardTimeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Set how many rows can be buffered for each shard, before the query on
+   * the shard waits for the reader to catch up. This is also the fetch size
+   * of the queries. The default is 256.
+   */
+  public void setRowBufferSize(int rowBufferSize) {
+    if (rowBufferSize < 1) {
+      throw new IllegalArgumentException(
+          "The row buffer size must be at least 1, but was " +
+          rowBufferSize + ".");
+    }
+    this.rowBufferSize = rowBufferSize;
+  }
+
+  public int getRowBufferSize() {
+    return rowBufferSize;
+  }
+
+  /**
+   * Run the given SQL, with the given parameters, on all the pools, and
+   * return the rows in the order they arrive from the shards.
+   */
+  public GatheredRows query(String sql, Object... params) {
+    checkQuery(sql, params);
+    int bufferSize = rowBufferSize;
+    BlockingQueue<ShardQuery.Row> rows = new ArrayBlockingQueue<ShardQuery.Row>(
+        bufferSize * pools.length);
+    ShardQuery[] queries = new ShardQuery[pools.length];
+    for (int i = 0; i < pools.length; i++) {
+      queries[i] = newQuery(i, sql, params, rows, bufferSize);
+    }
+    return new GatheredRows(queries, start(queries), rows);
+  }
+
+  /**
+   * Run the given SQL, with the given parameters, on all the pools, and
+   * merge the rows in the given order. The SQL must sort the rows on every
+   * shard in the same order, so they can be merged as they arrive. Rows that
+   * are equal in the order, come out in the order of their shards.
+   * <p>
+   * The first row of every shard is needed before any row can be given, so
+   * all the queries must run at the same time. This throws an
+   * IllegalStateException if there are fewer threads than pools, because
+   * the queries that got a thread would then wait for the reader, while the
+   * reader waits for the queries that did not.
+   *
+   * @see #byColumns(int...)
+   */
+  public GatheredRows queryMerged(
+      Comparator<Object[]> order, String sql, Object... params) {
+    if (order == null) {
+      throw new IllegalArgumentException("The order cannot be null.");
+    }
+    if (parallelism < pools.length) {
+      throw new IllegalStateException(
+          "Merging the rows needs a thread for every pool, but there are " +
+          "only " + parallelism + " threads for " + pools.length +
+          " pools.");
+    }
+    checkQuery(sql, params);
+    int bufferSize = rowBufferSize;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BlockingQueue<ShardQuery.Row>[] rows = new BlockingQueue[pools.length];
+    ShardQuery[] queries = new ShardQuery[pools.length];
+    for (int i = 0; i < pools.length; i++) {
+      rows[i] = new ArrayBlockingQueue<ShardQuery.Row>(bufferSize);
+      queries[i] = newQuery(i, sql, params, rows[i], bufferSize);
+    }
+    return new GatheredRows(queries, start(queries), rows, order);
+  }
+
+  private static void checkQuery(String sql, Object[] params) {
+    if (sql == null) {
+      throw new IllegalArgumentException("The SQL cannot be null.");
+    }
+    if (params == null) {
+      throw new IllegalArgumentException("The parameters cannot be null.");
+    }
+  }
+
+  private ShardQuery newQuery(
+      int shard,
+      String sql,
+      Object[] params,
+      BlockingQueue<ShardQuery.Row> rows,
+      int bufferSize) {
+    return new ShardQuery(shard, pools[shard], sql, params.clone(), rows,
+        shardTimeoutNanos, bufferSize);
+  }
+
+  private Future<?>[] start(ShardQuery[] queries) {
+    Future<?>[] futures = new Future<?>[queries.length];
+    try {
+      for (int i = 0; i < queries.length; i++) {
+        futures[i] = executor.submit(queries[i]);
+      }
+    } catch (RejectedExecutionException e) {
+      for (int i = 0; i < queries.length && futures[i] != null; i++) {
+        queries[i].cancel();
+        futures[i].cancel(true);
+      }
+      throw new IllegalStateException("The ScatterGather has been shut down.");
+    }
+    return futures;
+  }
+
+  /**
+   * Returns an order that compares the given columns, where the first column
+   * is 1, in ascending order. The values must be Comparable, and nulls come
+   * first.
+   */
+  public static Comparator<Object[]> byColumns(final int... columns) {
+    if (columns == null || columns.length == 0) {
+      throw new IllegalArgumentException("At least one column is required.");
+    }
+    for (int column : columns) {
+      if (column < 1) {
+        throw new IllegalArgumentException(
+            "The columns start at 1, but got " + column + ".");
+      }
+    }
+    final int[] order = columns.clone();
+    return new Comparator<Object[]>() {
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      public int compare(Object[] a, Object[] b) {
+        for (int column : order) {
+          Comparable x = (Comparable) a[column - 1];
+          Comparable y = (Comparable) b[column - 1];
+          int result = x == null? (y == null? 0 : -1) :
+              y == null? 1 : x.compareTo(y);
+          if (result != 0) {
+            return result;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+
+  /**
+   * Stop the threads that run the queries. Queries that are running are
+   * interrupted, and no new queries can be started. The pools are not shut
+   * down.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,61 @@
+package stormpot.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the claims of one shard of a {@link ShardedStormpotDataSource}.
+ * The counts start at zero when the sharded data source is created, and
+ * only ever increase, so rates can be computed by sampling them.
+ */
+public class ShardMetrics {
+  private final StormpotDataSource shard;
+  private final AtomicLong claims = new AtomicLong();
+  private final AtomicLong failedClaims = new AtomicLong();
+  private final AtomicLong claimWaitNanos = new AtomicLong();
+
+  ShardMetrics(StormpotDataSource shard) {
+    this.shard = shard;
+  }
+
+  void recordClaim(long waitNanos) {
+    claims.incrementAndGet();
+    claimWaitNanos.addAndGet(waitNanos);
+  }
+
+  void recordFailedClaim(long waitNanos) {
+    failedClaims.incrementAndGet();
+    claimWaitNanos.addAndGet(waitNanos);
+  }
+
+  /**
+   * Returns the number of connections that have been claimed from the shard.
+   */
+  public long getClaims() {
+    return claims.get();
+  }
+
+  /**
+   * Returns the number of claims that have failed, because they timed out,
+   * or because the shard was unavailable.
+   */
+  public long getFailedClaims() {
+    return failedClaims.get();
+  }
+
+  /**
+   * Returns the total time that the claims of the shard have waited, both
+   * the ones that succeeded and the ones that failed.
+   */
+  public long getClaimWait(TimeUnit unit) {
+    return unit.convert(claimWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of connections that are currently claimed from the
+   * shard.
+   */
+  public int getClaimedConnections() {
+    return shard.getClaimedCount();
+  }
+}
@@ -0,0 +1,184 @@
+package stormpot.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+/**
+ * Runs the query of a scatter-gather on one shard, and streams the rows into
+ * a bounded queue, followed by an end marker. The queue may be shared with
+ * the queries on the other shards.
+ * <p>
+ * The shard timeout is measured from when the query is submitted, so the
+ * time spent waiting for a thread to run it on is counted, but the time that
+ * is spent waiting for the caller to make room in a full queue, is not.
+ * The timeout is enforced by the reader of the queue, with
+ * {@link #timeLeft(long)}, and by the database, with the query timeout.
+ */
+class ShardQuery implements Runnable {
+  /**
+   * A row from a shard, or the end marker of a shard, if the values are null.
+   */
+  static final class Row {
+    final ShardQuery shard;
+    final Object[] values;
+
+    Row(ShardQuery shard, Object[] values) {
+      this.shard = shard;
+      this.values = values;
+    }
+  }
+
+  final int shard;
+  private final DataSource pool;
+  private final String sql;
+  private final Object[] params;
+  private final BlockingQueue<Row> rows;
+  private final long timeoutNanos;
+  private final int fetchSize;
+  // The deadline is written before the flags, so a reader that sees the
+  // flags also sees the current deadline.
+  private volatile long deadline;
+  private volatile boolean blocked;
+  private volatile boolean finished;
+  private volatile boolean cancelled;
+  private volatile PreparedStatement statement;
+  private volatile SQLException failure;
+
+  ShardQuery(
+      int shard,
+      DataSource pool,
+      String sql,
+      Object[] params,
+      BlockingQueue<Row> rows,
+      long timeoutNanos,
+      int fetchSize) {
+    this.shard = shard;
+    this.pool = pool;
+    this.sql = sql;
+    this.params = params;
+    this.rows = rows;
+    this.timeoutNanos = timeoutNanos;
+    this.fetchSize = fetchSize;
+    // The query is submitted right after it is created:
+    this.deadline = System.nanoTime() + timeoutNanos;
+  }
+
+  @Override
+  public void run() {
+    if (cancelled || timeLeft(System.nanoTime()) <= 0) {
+      // The reader reports the timeout, without bothering the database.
+      return;
+    }
+    try {
+      try {
+        execute();
+      } catch (SQLException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new SQLException(e);
+      } finally {
+        finished = true;
+      }
+      put(new Row(this, null));
+    } catch (InterruptedException e) {
+      // We were cancelled, and nobody is reading the rows anymore.
+    }
+  }
+
+  private void execute() throws SQLException, InterruptedException {
+    Connection con = pool.getConnection();
+    try {
+      PreparedStatement statement = con.prepareStatement(sql);
+      this.statement = statement;
+      try {
+        for (int i = 0; i < params.length; i++) {
+          statement.setObject(i + 1, params[i]);
+        }
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(
+            timeLeft(System.nanoTime()) + TimeUnit.SECONDS.toNanos(1) - 1);
+        statement.setQueryTimeout((int) Math.max(1, seconds));
+        statement.setFetchSize(fetchSize);
+        ResultSet resultSet = statement.executeQuery();
+        try {
+          int columns = resultSet.getMetaData().getColumnCount();
+          while (!cancelled && resultSet.next()) {
+            Object[] values = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+              values[i] = resultSet.getObject(i + 1);
+            }
+            put(new Row(this, values));
+          }
+        } finally {
+          resultSet.close();
+        }
+      } finally {
+        this.statement = null;
+        statement.close();
+      }
+    } finally {
+      con.close();
+    }
+  }
+
+  private void put(Row row) throws InterruptedException {
+    if (rows.offer(row)) {
+      return;
+    }
+    long start = System.nanoTime();
+    blocked = true;
+    try {
+      rows.put(row);
+    } finally {
+      deadline += System.nanoTime() - start;
+      blocked = false;
+    }
+  }
+
+  /**
+   * Returns how many nanoseconds this shard has left before it times out,
+   * at the given time, or the full shard timeout if the clock is not
+   * running, because the query is waiting for room in the queue, or is
+   * finished.
+   */
+  long timeLeft(long now) {
+    if (blocked || finished) {
+      return timeoutNanos;
+    }
+    return deadline - now;
+  }
+
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Returns the reason the query failed, or null if it did not fail.
+   * This is only known after the end marker has been taken from the queue.
+   */
+  SQLException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Stop the query, and cancel the statement in the database if it is
+   * running. The thread running the query must be interrupted separately,
+   * if it can be waiting for room in the queue.
+   */
+  void cancel() {
+    cancelled = true;
+    PreparedStatement statement = this.statement;
+    if (statement != null) {
+      try {
+        statement.cancel();
+      } catch (SQLException ignore) {
+        // The statement is closed when the query stops, either way.
+      }
+    }
+  }
+}
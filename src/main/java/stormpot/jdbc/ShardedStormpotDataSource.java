@@ -0,0 +1,318 @@
+package stormpot.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import stormpot.Timeout;
+
+/**
+ * Holds a connection pool for each shard of a sharded database, and routes
+ * claims to the shards by their shard keys.
+ * <p>
+ * The keys are placed on a consistent-hash ring, where every shard has a
+ * number of virtual nodes. This spreads the keys evenly over the shards,
+ * and when a shard is added at the end of the list of shards, only the keys
+ * that move to the new shard change shard. The position of the virtual
+ * nodes of a shard only depend on its index, so the order of the shards
+ * must not change.
+ * <p>
+ * The ring is kept in two arrays, that are searched with a binary search,
+ * so routing a key does not allocate any objects.
+ */
+public class ShardedStormpotDataSource {
+  /**
+   * The number of virtual nodes per shard, unless another number is given.
+   */
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  private final StormpotDataSource[] shards;
+  private final ShardMetrics[] metrics;
+  // The ring: the sorted hash points, and the shard that owns each point.
+  private final long[] ringPoints;
+  private final int[] ringShards;
+
+  public ShardedStormpotDataSource(JdbcConfig... shards) {
+    this(DEFAULT_VIRTUAL_NODES, shards);
+  }
+
+  public ShardedStormpotDataSource(int virtualNodes, JdbcConfig... shards) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException(
+          "There must be at least one virtual node per shard, but there " +
+          "were " + virtualNodes + ".");
+    }
+    if (shards == null || shards.length == 0) {
+      throw new IllegalArgumentException(
+          "At least one shard JdbcConfig is required.");
+    }
+    for (JdbcConfig shard : shards) {
+      if (shard == null) {
+        throw new IllegalArgumentException(
+            "The shard JdbcConfigs cannot be null.");
+      }
+    }
+    this.shards = new StormpotDataSource[shards.length];
+    this.metrics = new ShardMetrics[shards.length];
+    try {
+      for (int i = 0; i < shards.length; i++) {
+        this.shards[i] = new StormpotDataSource(shards[i]);
+        this.metrics[i] = new ShardMetrics(this.shards[i]);
+      }
+    } catch (RuntimeException e) {
+      // Don't leak the pools that were created before the invalid config.
+      shutDownInBackground();
+      throw e;
+    }
+    int points = shards.length * virtualNodes;
+    final long[] unsorted = new long[points];
+    Integer[] order = new Integer[points];
+    for (int i = 0; i < points; i++) {
+      unsorted[i] = pointOf(i / virtualNodes, i % virtualNodes);
+      order[i] = i;
+    }
+    // Sorted by point, and then by shard, since the shard only increases
+    // with the index.
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long pa = unsorted[a];
+        long pb = unsorted[b];
+        return pa < pb? -1 : pa > pb? 1 : a.compareTo(b);
+      }
+    });
+    long[] sortedPoints = new long[points];
+    int[] pointShards = new int[points];
+    int size = 0;
+    for (int i = 0; i < points; i++) {
+      long point = unsorted[order[i]];
+      // On the rare collision, the shard with the lowest index keeps the
+      // point.
+      if (size == 0 || sortedPoints[size - 1] != point) {
+        sortedPoints[size] = point;
+        pointShards[size] = order[i] / virtualNodes;
+        size++;
+      }
+    }
+    this.ringPoints = Arrays.copyOf(sortedPoints, size);
+    this.ringShards = Arrays.copyOf(pointShards, size);
+  }
+
+  // The point of a virtual node only depends on the shard index and the
+  // node number, so adding shards does not move the existing points.
+  private static long pointOf(int shard, int node) {
+    return mix(((long) shard << 32) | node);
+  }
+
+  // The finalizer of MurmurHash3, which spreads similar inputs, such as
+  // sequential ids, over the whole ring.
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /**
+   * Returns the index of the shard that owns the given key.
+   */
+  public int shardFor(long shardKey) {
+    long hash = mix(shardKey);
+    int index = Arrays.binarySearch(ringPoints, hash);
+    if (index < 0) {
+      // The key belongs to the next point on the ring, going clockwise:
+      index = -index - 1;
+      if (index == ringPoints.length) {
+        index = 0;
+      }
+    }
+    return ringShards[index];
+  }
+
+  /**
+   * Returns the index of the shard that owns the given key, based on its
+   * hashCode. Keys that are equal must therefore have the same hash code,
+   * and it must not change between runs, like it does for Object.hashCode.
+   * Strings, numbers and enums by name are fine. Boxed integral keys, like
+   * Long and Integer, go to the same shard as their primitive values do
+   * with {@link #shardFor(long)}.
+   */
+  public int shardFor(Object shardKey) {
+    if (shardKey == null) {
+      throw new IllegalArgumentException("The shard key cannot be null.");
+    }
+    if (shardKey instanceof Long || shardKey instanceof Integer
+        || shardKey instanceof Short || shardKey instanceof Byte) {
+      return shardFor(((Number) shardKey).longValue());
+    }
+    return shardFor((long) shardKey.hashCode());
+  }
+
+  /**
+   * Claim a connection from the shard that owns the given key.
+   */
+  public Connection getConnection(long shardKey) throws SQLException {
+    return claim(shardFor(shardKey));
+  }
+
+  /**
+   * Claim a connection from the shard that owns the given key.
+   * @see #shardFor(Object)
+   */
+  public Connection getConnection(Object shardKey) throws SQLException {
+    return claim(shardFor(shardKey));
+  }
+
+  private Connection claim(int shard) throws SQLException {
+    ShardMetrics shardMetrics = metrics[shard];
+    long start = System.nanoTime();
+    try {
+      Connection con = shards[shard].getConnection();
+      shardMetrics.recordClaim(System.nanoTime() - start);
+      return con;
+    } catch (SQLException e) {
+      shardMetrics.recordFailedClaim(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the pool of the shard with the given index.
+   */
+  public StormpotDataSource getShard(int shard) {
+    return shards[shard];
+  }
+
+  /**
+   * Returns the metrics of the shard with the given index.
+   */
+  public ShardMetrics getShardMetrics(int shard) {
+    return metrics[shard];
+  }
+
+  /**
+   * Returns a DataSource for the shard with the given index, that claims its
+   * connections like {@link #getConnection(long)} does, so they are counted
+   * in the metrics of the shard.
+   */
+  DataSource getMeteredShard(int shard) {
+    return new MeteredShard(shard);
+  }
+
+  /**
+   * Shut down the pools of all the shards, and wait for up to the given
+   * timeout for their connections to be closed. Returns true if all the
+   * connections were closed in time.
+   * @see StormpotDataSource#shutdown(Timeout)
+   */
+  public boolean shutdown(Timeout timeout) throws InterruptedException {
+    if (timeout == null) {
+      throw new IllegalArgumentException("The timeout cannot be null.");
+    }
+    // Start shutting down all the shards, before waiting for any of them.
+    Timeout noWait = new Timeout(0, TimeUnit.NANOSECONDS);
+    for (StormpotDataSource shard : shards) {
+      if (shard != null) {
+        shard.shutdown(noWait);
+      }
+    }
+    long deadline = timeout.getDeadline();
+    boolean closed = true;
+    for (StormpotDataSource shard : shards) {
+      if (shard == null) {
+        // The constructor failed before this shard was created.
+        continue;
+      }
+      long timeLeft = Math.max(0, timeout.getTimeLeft(deadline));
+      closed &= shard.shutdown(new Timeout(timeLeft, timeout.getBaseUnit()));
+    }
+    return closed;
+  }
+
+  private void shutDownInBackground() {
+    try {
+      shutdown(new Timeout(0, TimeUnit.NANOSECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Shut down the pools of all the shards, and wait for up to 30 seconds
+   * for all the connections to be closed.
+   */
+  public void close() throws SQLException {
+    try {
+      shutdown(new Timeout(30, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new SQLException("The current thread is interrupted.", e);
+    }
+  }
+
+  private final class MeteredShard implements DataSource {
+    private final int shard;
+
+    MeteredShard(int shard) {
+      this.shard = shard;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+      return claim(shard);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+        throws SQLException {
+      return shards[shard].getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+      return shards[shard].getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+      shards[shard].setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+      shards[shard].setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+      return shards[shard].getLoginTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+      return shards[shard].unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+      return shards[shard].isWrapperFor(iface);
+    }
+
+    // JDBC 4.1 / JDK 1.7:
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      return shards[shard].getParentLogger();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package stormpot.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Wraps the statements of a ConnectionProxy, and the ResultSets they return,
+ * so that the SQLExceptions they throw can be checked for signs of a broken
+ * connection. This is also what makes Statement.getConnection return the
+ * ConnectionProxy, and ResultSet.getStatement return the wrapped statement,
+ * rather than the objects of the driver.
+ * <p>
+ * The wrappers are dynamic proxies of the JDBC interfaces, so they cannot be
+ * cast to the statement classes of the driver. Use unwrap for that. Other
+ * objects that come from the statements, like the ResultSetMetaData, are
+ * not wrapped, so their SQLExceptions are not checked.
+ */
+class StatementInterceptor implements InvocationHandler {
+  private static final ClassLoader LOADER =
+      StatementInterceptor.class.getClassLoader();
+
+  private final Object target;
+  private final ConnectionProxy connection;
+  // The wrapped statement, when the target is a ResultSet:
+  private final Statement statement;
+
+  private StatementInterceptor(
+      Object target, ConnectionProxy connection, Statement statement) {
+    this.target = target;
+    this.connection = connection;
+    this.statement = statement;
+  }
+
+  private static Object newProxy(
+      Class<?> iface,
+      Object target,
+      ConnectionProxy connection,
+      Statement statement) {
+    return Proxy.newProxyInstance(LOADER, new Class<?>[] {iface},
+        new StatementInterceptor(target, connection, statement));
+  }
+
+  static Statement wrap(Statement statement, ConnectionProxy connection) {
+    return (Statement) newProxy(Statement.class, statement, connection, null);
+  }
+
+  static PreparedStatement wrap(
+      PreparedStatement statement, ConnectionProxy connection) {
+    return (PreparedStatement) newProxy(
+        PreparedStatement.class, statement, connection, null);
+  }
+
+  static CallableStatement wrap(
+      CallableStatement statement, ConnectionProxy connection) {
+    return (CallableStatement) newProxy(
+        CallableStatement.class, statement, connection, null);
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args)
+      throws Throwable {
+    String name = method.getName();
+    if (args == null) {
+      if (name.equals("getConnection") && statement == null) {
+        return connection;
+      }
+      if (name.equals("getStatement") && statement != null) {
+        return statement;
+      }
+      if (name.equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      }
+    } else if (args.length == 1 && name.equals("equals")) {
+      return proxy == args[0];
+    }
+    Object result;
+    try {
+      result = method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw connection.check((SQLException) cause);
+      }
+      throw cause;
+    }
+    if (result != null && method.getReturnType() == ResultSet.class) {
+      Statement owner = statement == null? (Statement) proxy : statement;
+      return newProxy(ResultSet.class, result, connection, owner);
+    }
+    return result;
+  }
+}
@@ -5,12 +5,17 @@ import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.sql.SQLTimeoutException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import stormpot.Completion;
 import stormpot.Config;
-import stormpot.Pool;
+import stormpot.LifecycledResizablePool;
 import stormpot.PoolException;
 import stormpot.Timeout;
 import stormpot.bpool.BlazePool;
@@ -19,9 +24,59 @@ public class StormpotDataSource implements DataSource {
   // A sentinel object used by the unwrap methods internally, to signal when
   // we a not wrapping any objects of a given type:
   static final Object NOT_WRAPPED = new Object();
+  private static final long MIN_HOUSEKEEPING_PERIOD =
+      TimeUnit.MILLISECONDS.toNanos(10);
+  private static final Timeout CLOSE_TIMEOUT =
+      new Timeout(30, TimeUnit.SECONDS);
+  private static final Timeout NO_WAIT = new Timeout(0, TimeUnit.NANOSECONDS);
+  private static final String SHUTDOWN_MESSAGE =
+      "The connection pool has been shut down.";
+  private static final String DEADLINE_MESSAGE =
+      "The deadline passed before a connection could be claimed.";
+  private static final String CONCURRENCY_LIMIT_MESSAGE =
+      "The adaptive concurrency limit of claimed connections has been " +
+      "reached, because the database is slowing down.";
   
   private final DataSource delegate;
-  private final Pool<ConnectionProxy> pool;
+  private final LifecycledResizablePool<ConnectionProxy> pool;
+  private final DataSourceAllocator allocator;
+  // Runs the background tasks, such as the watchdog. This is null if no
+  // background tasks have been configured.
+  private final ScheduledExecutorService housekeeper;
+  // One in this many claims will have their claim site sampled for leak
+  // detection. Zero means that leak detection is disabled.
+  private final int leakSampleRate;
+  // Makes claims fail fast while the database is down. This is null if the
+  // circuit breaker is disabled.
+  private final CircuitBreaker breaker;
+  // Adjusts the size of an elastic pool. This is null if the pool has a
+  // fixed size.
+  private final PoolSizer sizer;
+  // Limits the number of concurrent claims, based on their hold times. This
+  // is null if the limiter is disabled.
+  private final ConcurrencyLimiter limiter;
+  // Makes claims give up early when the pool is overloaded. This is null if
+  // load shedding is disabled.
+  private final LoadShedder shedder;
+  // Hands the released connections to the most urgent waiters. This is null
+  // if claims are not prioritized.
+  private final ClaimQueue claimQueue;
+  // The pools for getConnection(username, password). This is null if
+  // they have not been configured.
+  private final CredentialPools credentialPools;
+  // Divides the connections between named workloads. This is null if no
+  // partitions have been configured.
+  private final WorkloadPartitions partitions;
+  // The partition of the claims that don't name one, or null.
+  private final WorkloadPartitions.Partition defaultPartition;
+  // The number of connections that are currently claimed through this data
+  // source, for balancing claims between data sources.
+  private final AtomicInteger claimed = new AtomicInteger();
+  // Creates the exceptions for rejected claims. Their messages are computed
+  // up front, or cached, so rejecting a claim does not build any strings.
+  private final Rejections rejections;
+  private final String circuitBreakerMessage;
+  private final String sheddingMessage;
   
   // Fields guarded by the 'this' lock:
   //
@@ -34,6 +89,19 @@ public class StormpotDataSource implements DataSource {
   // The timeout field is volatile because it is accessed concurrently in the
   // getConnection method.
   private volatile Timeout timeout;
+  // Set by setClaimTimeout, or from the JdbcConfig. It is volatile, and not
+  // guarded by the 'this' lock, so it can be updated without blocking. The
+  // claim timeout follows the login timeout, for as long as this is null.
+  private volatile Timeout claimTimeout;
+  // The message of the last claim timeout exception, and the timeout it was
+  // made for. Replaced as a whole, whenever the claim timeout changes.
+  private volatile TimeoutMessage timeoutMessage;
+  // Set when the pool is shut down, and then never changed again. Volatile
+  // because it is checked by getConnection.
+  private volatile Completion shutdownCompletion;
+  // Set together with the shutdown completion, when there are credential
+  // pools to wait for.
+  private Completion credentialShutdown;
   
   public StormpotDataSource(JdbcConfig jdbcConfig) {
     if (jdbcConfig == null) {
@@ -47,8 +115,129 @@ public class StormpotDataSource implements DataSource {
       }
       jdbcConfig.validate();
       Config<ConnectionProxy> config = jdbcConfig.buildPoolConfig();
-      this.pool = new BlazePool<ConnectionProxy>(config);
+      this.allocator = (DataSourceAllocator) config.getAllocator();
+      this.breaker = allocator.getCircuitBreaker();
+      this.limiter = jdbcConfig.buildConcurrencyLimiter();
+      this.shedder = jdbcConfig.buildLoadShedder();
+      this.rejections = new Rejections(jdbcConfig.isStacklessRejections());
+      this.circuitBreakerMessage =
+          "The circuit breaker is open, because the attempts to connect to " +
+          delegate + " are failing. Failing fast until the database is back.";
+      this.sheddingMessage = shedder == null? null :
+          "The connection pool is overloaded, so the claim was given up " +
+          "after waiting " +
+          TimeUnit.NANOSECONDS.toMillis(shedder.getTargetNanos()) +
+          " milliseconds.";
+      allocator.prefill(jdbcConfig.getPrefillSize());
+      this.pool = new BlazePool<ConnectionProxy>(buildEvictingConfig(config));
+      this.partitions = jdbcConfig.buildWorkloadPartitions(pool);
+      this.claimQueue = jdbcConfig.buildClaimQueue(pool);
+      this.credentialPools = jdbcConfig.buildCredentialPools(allocator);
+      this.defaultPartition = partitions == null? null :
+          partitions.get(WorkloadPartitions.DEFAULT_PARTITION);
       this.timeout = new Timeout(30, TimeUnit.SECONDS);
+      if (jdbcConfig.isClaimTimeoutSet()) {
+        this.claimTimeout = new Timeout(
+            jdbcConfig.getClaimTimeout(TimeUnit.NANOSECONDS),
+            TimeUnit.NANOSECONDS);
+      }
+      boolean detectLeaks =
+          jdbcConfig.getLeakDetectionThreshold(TimeUnit.NANOSECONDS) > 0;
+      this.leakSampleRate =
+          detectLeaks? jdbcConfig.getLeakDetectionSampleRate() : 0;
+      this.sizer = jdbcConfig.getMaxPoolSize() == 0? null : new PoolSizer(
+          pool,
+          allocator,
+          jdbcConfig.getMinPoolSize(),
+          jdbcConfig.getMaxPoolSize(),
+          jdbcConfig.getGrowClaimWait(TimeUnit.NANOSECONDS));
+      this.housekeeper = startHousekeeper(jdbcConfig);
+    }
+  }
+
+  private ScheduledExecutorService startHousekeeper(JdbcConfig jdbcConfig) {
+    long maxHoldTime = jdbcConfig.getMaxHoldTime(TimeUnit.NANOSECONDS);
+    long leakThreshold =
+        jdbcConfig.getLeakDetectionThreshold(TimeUnit.NANOSECONDS);
+    long refreshAhead = jdbcConfig.getRefreshAhead(TimeUnit.NANOSECONDS);
+    boolean failover = delegate instanceof FailoverDataSource;
+    if (maxHoldTime == 0 && leakThreshold == 0 && refreshAhead == 0
+        && sizer == null && !failover) {
+      return null;
+    }
+    ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("stormpot-jdbc-housekeeper"));
+    if (maxHoldTime > 0) {
+      Runnable watchdog = new ConnectionWatchdog(
+          this, allocator, maxHoldTime, jdbcConfig.isAbortHeldConnections());
+      schedule(executor, watchdog, maxHoldTime);
+    }
+    if (leakThreshold > 0) {
+      Runnable leakDetector = new LeakDetector(this, allocator, leakThreshold);
+      schedule(executor, leakDetector, leakThreshold);
+    }
+    if (refreshAhead > 0) {
+      MaxLifetimeExpiration lifetime =
+          ConnectionRefresher.findMaxLifetime(jdbcConfig.getExpiration());
+      Runnable refresher = new ConnectionRefresher(
+          this, allocator, lifetime,
+          TimeUnit.NANOSECONDS.toMillis(refreshAhead));
+      schedule(executor, refresher, refreshAhead);
+    }
+    if (sizer != null) {
+      long interval = jdbcConfig.getResizeInterval(TimeUnit.NANOSECONDS);
+      executor.scheduleWithFixedDelay(
+          sizer, interval, interval, TimeUnit.NANOSECONDS);
+    }
+    if (failover) {
+      long interval =
+          jdbcConfig.getFailoverCheckInterval(TimeUnit.NANOSECONDS);
+      int timeoutSeconds = (int) Math.max(1,
+          (interval + TimeUnit.SECONDS.toNanos(1) - 1) /
+          TimeUnit.SECONDS.toNanos(1));
+      Runnable healthCheck = new FailoverHealthCheck(
+          this, allocator, (FailoverDataSource) delegate, timeoutSeconds,
+          jdbcConfig.getFailbackCheckCount());
+      executor.scheduleWithFixedDelay(
+          healthCheck, interval, interval, TimeUnit.NANOSECONDS);
+    }
+    return executor;
+  }
+
+  // Housekeeping tasks run twice as often as the time limit they work with,
+  // so they are at most half a limit late.
+  private static void schedule(
+      ScheduledExecutorService executor, Runnable task, long limitNanos) {
+    long period = Math.max(limitNanos / 2, MIN_HOUSEKEEPING_PERIOD);
+    executor.scheduleWithFixedDelay(
+        task, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  // The pool gets its own copy of the configuration, so we can wrap the
+  // Expiration without the change being visible through the JdbcConfig.
+  private static Config<ConnectionProxy> buildEvictingConfig(
+      Config<ConnectionProxy> config) {
+    Config<ConnectionProxy> poolConfig = new Config<ConnectionProxy>();
+    poolConfig.setSize(config.getSize());
+    poolConfig.setAllocator(config.getAllocator());
+    poolConfig.setExpiration(new EvictingExpiration(config.getExpiration()));
+    return poolConfig;
+  }
+
+  /**
+   * Print the given Throwable to the log writer, if one has been set.
+   */
+  void log(Throwable throwable) {
+    PrintWriter out;
+    synchronized (this) {
+      out = logWriter;
+    }
+    if (out != null) {
+      synchronized (out) {
+        throwable.printStackTrace(out);
+        out.flush();
+      }
     }
   }
 
@@ -75,6 +264,36 @@ public class StormpotDataSource implements DataSource {
     return loginTimeoutSeconds;
   }
 
+  /**
+   * Set how long getConnection will wait for a connection to become
+   * available in the pool. Until this is set, either here or in the
+   * JdbcConfig, the claim timeout is the login timeout. Once set, the login
+   * timeout only applies to the delegate DataSource, which means that the
+   * pool can be patient when it creates connections, while claims fail fast.
+   * The timeout can have any resolution, including sub-millisecond ones.
+   * This method does not block, and can be called at any time.
+   */
+  public void setClaimTimeout(long time, TimeUnit unit) {
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    if (time < 0) {
+      throw new IllegalArgumentException(
+          "The claim timeout cannot be negative, but was " + time + ".");
+    }
+    claimTimeout = new Timeout(time, unit);
+  }
+
+  public long getClaimTimeout(TimeUnit unit) {
+    Timeout current = currentClaimTimeout();
+    return unit.convert(current.getTimeout(), current.getUnit());
+  }
+
+  private Timeout currentClaimTimeout() {
+    Timeout current = claimTimeout;
+    return current != null? current : timeout;
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public <T> T unwrap(Class<T> iface) throws SQLException {
@@ -114,33 +333,421 @@ public class StormpotDataSource implements DataSource {
     return canDirectlyUnwrap || delegate.isWrapperFor(iface);
   }
 
+  /**
+   * Wait until the pool has created the number of connections given by
+   * {@link JdbcConfig#setPrefillSize(int)}, or until the timeout elapses.
+   * Returns true if the pool is ready, and false if the timeout elapsed
+   * first. Services can use this to only report themselves as healthy, when
+   * they are able to talk to the database.
+   */
+  public boolean awaitReady(Timeout timeout) throws InterruptedException {
+    if (timeout == null) {
+      throw new IllegalArgumentException("The timeout cannot be null.");
+    }
+    return allocator.awaitReady(timeout);
+  }
+
+  /**
+   * Shut down the connection pool, and wait for up to 30 seconds for all the
+   * connections to be closed.
+   * @see #shutdown(Timeout)
+   */
+  public void close() throws SQLException {
+    try {
+      shutdown(CLOSE_TIMEOUT);
+    } catch (InterruptedException e) {
+      throw new SQLException("The current thread is interrupted.", e);
+    }
+  }
+
+  /**
+   * Shut down the connection pool. No new connections can be claimed after
+   * this, and the connections that are currently claimed will be closed when
+   * they are released. All other connections are closed in parallel.
+   * <p>
+   * This method waits for the connections to be closed, including those of
+   * the pools for getConnection(username, password), until the given
+   * timeout elapses. It returns true if all the connections were closed in
+   * time, and false otherwise. The shut down will continue in the background
+   * in the latter case, and this method can be called again to keep waiting.
+   */
+  public boolean shutdown(Timeout timeout) throws InterruptedException {
+    if (timeout == null) {
+      throw new IllegalArgumentException("The timeout cannot be null.");
+    }
+    long deadline = timeout.getDeadline();
+    Completion completion;
+    Completion credentialCompletion;
+    synchronized (this) {
+      if (shutdownCompletion == null) {
+        if (housekeeper != null) {
+          housekeeper.shutdownNow();
+        }
+        allocator.deallocateInParallel();
+        shutdownCompletion = pool.shutdown();
+        allocator.discardPrefilled();
+        if (credentialPools != null) {
+          credentialShutdown = credentialPools.shutdown();
+        }
+      }
+      completion = shutdownCompletion;
+      credentialCompletion = credentialShutdown;
+    }
+    if (!completion.await(timeout)) {
+      return false;
+    }
+    if (!allocator.awaitDeallocations(remaining(timeout, deadline))) {
+      return false;
+    }
+    if (credentialCompletion != null &&
+        !credentialCompletion.await(remaining(timeout, deadline))) {
+      return false;
+    }
+    allocator.shutdownExecutor();
+    return true;
+  }
+
+  private static Timeout remaining(Timeout timeout, long deadline) {
+    return new Timeout(timeout.getTimeLeft(deadline), timeout.getBaseUnit());
+  }
+
   @Override
   public Connection getConnection() throws SQLException {
+    Timeout claimTimeout = currentClaimTimeout();
+    ConnectionProxy con = claim(
+        claimTimeout, defaultPartition, ClaimQueue.DEFAULT_PRIORITY);
+    if (con == null) {
+      throw claimTimedOut(claimTimeout);
+    }
+    return con;
+  }
+
+  /**
+   * Claim a connection like {@link #getConnection()}, that sets the given
+   * time to the MillisClock time of its release, when it is released.
+   */
+  Connection getConnection(AtomicLong releaseTime) throws SQLException {
+    Timeout claimTimeout = currentClaimTimeout();
+    ConnectionProxy con = claim(
+        claimTimeout, defaultPartition, ClaimQueue.DEFAULT_PRIORITY);
+    if (con == null) {
+      throw claimTimedOut(claimTimeout);
+    }
+    con.attachReleaseTime(releaseTime);
+    return con;
+  }
+
+  /**
+   * Claim a connection that counts against the given workload partition,
+   * as configured with {@link JdbcConfig#setPartition(String, int, int)}.
+   * The claim waits for the partition to be allowed another connection, as
+   * well as for the connection itself, but the two waits together are
+   * bounded by the claim timeout.
+   */
+  public Connection getConnection(String partitionName) throws SQLException {
+    WorkloadPartitions.Partition partition =
+        partitions == null? null : partitions.get(partitionName);
+    if (partition == null) {
+      throw new SQLException(
+          "There is no workload partition named '" + partitionName + "'.");
+    }
+    Timeout claimTimeout = currentClaimTimeout();
+    ConnectionProxy con =
+        claim(claimTimeout, partition, ClaimQueue.DEFAULT_PRIORITY);
+    if (con == null) {
+      throw claimTimedOut(claimTimeout);
+    }
+    return con;
+  }
+
+  /**
+   * Claim a connection if one is available right away, or return null if
+   * there is none. This never waits for a connection to be released or
+   * created, but it throws the same exceptions as getConnection, if the pool
+   * is shut down or overloaded, or the database is unavailable.
+   */
+  public Connection tryGetConnection() throws SQLException {
+    return claim(NO_WAIT, defaultPartition, ClaimQueue.DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Claim a connection within the remaining time until the given deadline,
+   * instead of the usual claim timeout. The deadline is in the time scale of
+   * {@link System#nanoTime()}, so it would typically be computed once, when
+   * a request arrives, as {@code System.nanoTime()} plus the time budget of
+   * the request.
+   * <p>
+   * The deadline stays with the connection until it is closed: all the
+   * statements created from it will have their query timeout set to the time
+   * that remains until the deadline, rounded up to whole seconds. This way,
+   * queries do not keep running after the caller has given up on them.
+   * Statements can still be given a different query timeout by calling
+   * setQueryTimeout on them. If the deadline has passed when a statement is
+   * created, an SQLTimeoutException is thrown.
+   */
+  public Connection getConnection(long deadlineNanos) throws SQLException {
+    return getConnection(deadlineNanos, ClaimQueue.DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Claim a connection before the given deadline, like
+   * {@link #getConnection(long)}, but with the given priority. When claims
+   * are prioritized, with {@link JdbcConfig#setPrioritizedClaims(boolean)},
+   * a released connection goes to the waiting claim with the highest
+   * priority, and then to the one with the earliest deadline. The default
+   * priority is zero, so user-facing work can use a positive priority, and
+   * background jobs a negative one. The priority is ignored when claims are
+   * not prioritized.
+   */
+  public Connection getConnection(long deadlineNanos, int priority)
+      throws SQLException {
+    long timeLeft = deadlineNanos - System.nanoTime();
+    if (timeLeft <= 0) {
+      throw rejections.timeout(DEADLINE_MESSAGE);
+    }
+    Timeout claimTimeout = new Timeout(timeLeft, TimeUnit.NANOSECONDS);
+    ConnectionProxy con = claim(claimTimeout, defaultPartition, priority);
+    if (con == null) {
+      throw rejections.timeout(DEADLINE_MESSAGE);
+    }
+    con.setDeadline(deadlineNanos);
+    return con;
+  }
+
+  // Returns null if the claim timed out.
+  private ConnectionProxy claim(
+      Timeout claimTimeout,
+      WorkloadPartitions.Partition partition,
+      int priority) throws SQLException {
+    if (shutdownCompletion != null) {
+      throw new SQLNonTransientConnectionException(SHUTDOWN_MESSAGE);
+    }
+    if (breaker != null && !breaker.allowClaim()) {
+      throw circuitBreakerOpen();
+    }
+    if (limiter == null) {
+      return counted(claimInPartition(claimTimeout, partition, priority));
+    }
+    if (!limiter.tryAcquire()) {
+      throw concurrencyLimitReached();
+    }
+    ConnectionProxy con = null;
     try {
-      ConnectionProxy con = pool.claim(timeout);
+      con = claimInPartition(claimTimeout, partition, priority);
+      if (con != null) {
+        con.attachLimiter(limiter);
+      }
+      return counted(con);
+    } finally {
       if (con == null) {
-        String reason =
-            "Timeout of " + loginTimeoutSeconds + " seconds exceeded, trying " +
-        		"to claim a connection from the connection pool for " + delegate;
-        throw new SQLTimeoutException(reason);
+        limiter.cancel();
+      }
+    }
+  }
+
+  private ConnectionProxy counted(ConnectionProxy con) {
+    if (con != null) {
+      claimed.incrementAndGet();
+      con.attachClaimCounter(claimed);
+    }
+    return con;
+  }
+
+  /**
+   * Returns the number of connections that are currently claimed through
+   * this data source.
+   */
+  int getClaimedCount() {
+    return claimed.get();
+  }
+
+  private ConnectionProxy claimInPartition(
+      Timeout claimTimeout,
+      WorkloadPartitions.Partition partition,
+      int priority) throws SQLException {
+    if (partition == null) {
+      return claimConnection(claimTimeout, priority);
+    }
+    long timeoutNanos =
+        claimTimeout.getUnit().toNanos(claimTimeout.getTimeout());
+    long start = System.nanoTime();
+    try {
+      if (!partitions.acquire(partition, timeoutNanos)) {
+        return null;
+      }
+    } catch (InterruptedException e) {
+      throw new SQLException("The current thread is interrupted.", e);
+    }
+    ConnectionProxy con = null;
+    try {
+      long timeLeft = Math.max(0, timeoutNanos - (System.nanoTime() - start));
+      con = claimConnection(
+          new Timeout(timeLeft, TimeUnit.NANOSECONDS), priority);
+      if (con != null) {
+        con.attachPartition(partitions, partition);
+      }
+      return con;
+    } finally {
+      if (con == null) {
+        partitions.release(partition);
+      }
+    }
+  }
+
+  private ConnectionProxy claimConnection(Timeout claimTimeout, int priority)
+      throws SQLException {
+    try {
+      boolean measureWait = sizer != null || shedder != null;
+      // Shedding only ever shortens the claim timeout. A caller that asked
+      // for a shorter one, like tryGetConnection, gets the usual timeout.
+      boolean shedding = shedder != null && shedder.isOverloaded()
+          && toNanos(claimTimeout) > shedder.getTargetNanos();
+      long claimStart =
+          measureWait || claimQueue != null? System.nanoTime() : 0;
+      Timeout timeout = shedding? shedder.getSheddingTimeout() : claimTimeout;
+      ConnectionProxy con = claimQueue == null? pool.claim(timeout) :
+          claimQueued(timeout, priority, claimStart);
+      if (measureWait) {
+        long wait = System.nanoTime() - claimStart;
+        if (sizer != null) {
+          sizer.recordClaimWait(wait);
+        }
+        if (shedder != null) {
+          shedder.recordClaimWait(wait);
+        }
+      }
+      if (con == null && shedding) {
+        throw rejections.overload(sheddingMessage, null, null);
+      }
+      if (con == null) {
+        return null;
+      }
+      try {
+        con.reopen();
+      } catch (SQLException e) {
+        // The connection could not be reset to its defaults, so we cannot
+        // know what state it is in. Don't leak it, and don't reuse it.
+        con.evict();
+        con.release();
+        throw e;
+      }
+      if (leakSampleRate > 0) {
+        con.sampleClaimSite(leakSampleRate);
       }
-      con.reopen();
       return con;
     } catch (PoolException e) {
       throw new SQLException("Failed to claim connection from pool.", e);
+    } catch (IllegalStateException e) {
+      // We raced with shutdown, and the pool noticed before we did.
+      throw new SQLNonTransientConnectionException(SHUTDOWN_MESSAGE, e);
     } catch (InterruptedException e) {
       throw new SQLException("The current thread is interrupted.", e);
     }
   }
 
+  // The wait in the claim queue counts towards the claim timeout, and is
+  // measured along with the claim wait, since it is a wait for a connection.
+  private ConnectionProxy claimQueued(
+      Timeout timeout, int priority, long claimStart)
+      throws InterruptedException {
+    long deadline =
+        claimStart + timeout.getUnit().toNanos(timeout.getTimeout());
+    if (!claimQueue.acquire(priority, deadline)) {
+      return null;
+    }
+    ConnectionProxy con = null;
+    try {
+      long timeLeft = Math.max(0, deadline - System.nanoTime());
+      con = pool.claim(new Timeout(timeLeft, TimeUnit.NANOSECONDS));
+      if (con != null) {
+        con.attachClaimQueue(claimQueue);
+      }
+      return con;
+    } finally {
+      if (con == null) {
+        claimQueue.release();
+      }
+    }
+  }
+
+  private SQLException claimTimedOut(Timeout claimTimeout) {
+    TimeoutMessage cached = timeoutMessage;
+    if (cached == null || cached.timeout != claimTimeout) {
+      cached = new TimeoutMessage(claimTimeout, delegate);
+      timeoutMessage = cached;
+    }
+    return rejections.timeout(cached.message);
+  }
+
+  private static long toNanos(Timeout timeout) {
+    return timeout.getUnit().toNanos(timeout.getTimeout());
+  }
+
+  private SQLException circuitBreakerOpen() {
+    // SQLState 08001 means that the client is unable to establish a connection.
+    return rejections.overload(
+        circuitBreakerMessage, "08001", breaker.getLastFailure());
+  }
+
+  private SQLException concurrencyLimitReached() {
+    return rejections.overload(CONCURRENCY_LIMIT_MESSAGE, null, null);
+  }
+
+  private static final class TimeoutMessage {
+    final Timeout timeout;
+    final String message;
+
+    TimeoutMessage(Timeout timeout, DataSource delegate) {
+      this.timeout = timeout;
+      this.message =
+          "Timeout of " + timeout.getTimeout() + " " +
+          timeout.getUnit().toString().toLowerCase() + " exceeded, " +
+          "trying to claim a connection from the connection pool for " +
+          delegate;
+    }
+  }
+
+  /**
+   * Claim a connection that is connected with the given credentials. Each
+   * set of credentials has its own pool, as configured with
+   * {@link JdbcConfig#setCredentialPoolSize(int)}, and the claim waits for
+   * up to the claim timeout. These pools are not subject to the circuit
+   * breaker, the concurrency limit, the partitions, or the claim
+   * priorities, which all apply to the main pool.
+   */
   @Override
   public Connection getConnection(String username, String password)
       throws SQLException {
-    throw new SQLFeatureNotSupportedException(
-        "The getConnection(username, password) method is not supported by " +
-        "the connection pool in this version. You can work around this by " +
-        "using the unwrap method to get the delegate DataSource, but then " +
-        "it won't be pooled.");
+    if (credentialPools == null) {
+      throw new SQLFeatureNotSupportedException(
+          "The getConnection(username, password) method is not supported, " +
+          "unless a credential pool size is set in the JdbcConfig. You can " +
+          "also work around this by using the unwrap method to get the " +
+          "delegate DataSource, but then it won't be pooled.");
+    }
+    if (shutdownCompletion != null) {
+      throw new SQLNonTransientConnectionException(SHUTDOWN_MESSAGE);
+    }
+    Timeout claimTimeout = currentClaimTimeout();
+    ConnectionProxy con;
+    try {
+      con = credentialPools.claim(username, password, claimTimeout);
+    } catch (IllegalStateException e) {
+      throw new SQLNonTransientConnectionException(SHUTDOWN_MESSAGE, e);
+    } catch (InterruptedException e) {
+      throw new SQLException("The current thread is interrupted.", e);
+    }
+    if (con == null) {
+      throw claimTimedOut(claimTimeout);
+    }
+    try {
+      con.reopen();
+    } catch (SQLException e) {
+      con.evict();
+      con.release();
+      throw e;
+    }
+    return counted(con);
   }
 
   // JDBC 4.1 / JDK 1.7:
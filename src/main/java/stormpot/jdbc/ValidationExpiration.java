@@ -0,0 +1,65 @@
+package stormpot.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+/**
+ * An Expiration that checks connections with {@link java.sql.Connection#isValid(int)}
+ * when they are claimed. Connections that have been used within the
+ * validation interval are assumed to still be valid, so under load, the
+ * connections are rarely validated, while connections that have been idle
+ * will be checked before they are handed out.
+ * <p>
+ * Connections are considered used when they are released back to the pool,
+ * or when they pass validation.
+ */
+public class ValidationExpiration implements Expiration<ConnectionProxy> {
+  private final int timeoutSeconds;
+  private final long intervalMillis;
+
+  /**
+   * @param timeoutSeconds The timeout, in seconds, that is passed to isValid.
+   * Zero means no timeout.
+   * @param interval The time a connection can go unused, before it is
+   * validated again.
+   * @param unit The unit of the interval.
+   */
+  public ValidationExpiration(int timeoutSeconds, long interval, TimeUnit unit) {
+    if (timeoutSeconds < 0) {
+      throw new IllegalArgumentException(
+          "The validation timeout cannot be negative, but was " +
+          timeoutSeconds + ".");
+    }
+    if (interval < 0) {
+      throw new IllegalArgumentException(
+          "The validation interval cannot be negative, but was " +
+          interval + ".");
+    }
+    if (unit == null) {
+      throw new IllegalArgumentException("The TimeUnit cannot be null.");
+    }
+    this.timeoutSeconds = timeoutSeconds;
+    this.intervalMillis = unit.toMillis(interval);
+  }
+
+  @Override
+  public boolean hasExpired(SlotInfo<? extends ConnectionProxy> info) {
+    ConnectionProxy proxy = info.getPoolable();
+    long now = MillisClock.currentTimeMillis();
+    if (now - proxy.getLastUsedAt() < intervalMillis) {
+      return false;
+    }
+    try {
+      if (proxy.isDelegateValid(timeoutSeconds)) {
+        proxy.setLastUsedAt(now);
+        return false;
+      }
+    } catch (SQLException ignore) {
+      // A connection that fails validation is not valid.
+    }
+    return true;
+  }
+}
@@ -0,0 +1,121 @@
+package stormpot.jdbc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import stormpot.ResizablePool;
+
+/**
+ * Divides the connections of one pool between named workload partitions,
+ * such as "oltp" and "batch". Every partition has a number of connections
+ * reserved for it, that the other partitions cannot take, and a maximum that
+ * it can never go above. Between the two, a partition can borrow the
+ * connections that are neither claimed nor reserved by anyone else.
+ * <p>
+ * The partitions only decide who may claim, and are consulted before the
+ * pool is. Claims that are not admitted wait here, until a connection is
+ * released by any partition, or until their timeout elapses.
+ */
+class WorkloadPartitions {
+  static final String DEFAULT_PARTITION = "default";
+
+  private final Map<String, Partition> partitions;
+  private final ResizablePool<?> pool;
+  // Guarded by the 'this' lock:
+  private int totalInUse;
+
+  /**
+   * Create the partitions from the given reserved and maximum connection
+   * counts. If there is no partition named {@link #DEFAULT_PARTITION}, one
+   * is added with nothing reserved and no maximum, for the claims that
+   * don't name a partition.
+   */
+  public WorkloadPartitions(
+      Map<String, int[]> quotas, ResizablePool<?> pool) {
+    this.pool = pool;
+    this.partitions = new LinkedHashMap<String, Partition>();
+    for (Map.Entry<String, int[]> entry : quotas.entrySet()) {
+      int[] quota = entry.getValue();
+      partitions.put(entry.getKey(),
+          new Partition(entry.getKey(), quota[0], quota[1]));
+    }
+    if (!partitions.containsKey(DEFAULT_PARTITION)) {
+      partitions.put(DEFAULT_PARTITION,
+          new Partition(DEFAULT_PARTITION, 0, Integer.MAX_VALUE));
+    }
+  }
+
+  /**
+   * Returns the partition with the given name, or null if there is none.
+   */
+  Partition get(String name) {
+    return partitions.get(name);
+  }
+
+  /**
+   * Wait until the given partition is allowed to claim one more connection,
+   * and count it as claimed. Returns false, without counting anything, if
+   * the timeout elapsed first.
+   */
+  synchronized boolean acquire(Partition partition, long timeoutNanos)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (!admits(partition)) {
+      long timeLeft = deadline - System.nanoTime();
+      if (timeLeft <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, timeLeft);
+    }
+    partition.inUse++;
+    totalInUse++;
+    return true;
+  }
+
+  /**
+   * Count a connection of the given partition as no longer claimed.
+   */
+  synchronized void release(Partition partition) {
+    partition.inUse--;
+    totalInUse--;
+    // A release can let any partition borrow, not only the releasing one:
+    notifyAll();
+  }
+
+  private boolean admits(Partition partition) {
+    if (partition.inUse >= partition.max) {
+      return false;
+    }
+    if (partition.inUse < partition.reserved) {
+      return true;
+    }
+    // Borrowing must leave enough room for the other partitions to claim
+    // all the connections they have reserved, but are not using.
+    int unusedReservations = 0;
+    for (Partition other : partitions.values()) {
+      if (other != partition && other.inUse < other.reserved) {
+        unusedReservations += other.reserved - other.inUse;
+      }
+    }
+    return totalInUse + unusedReservations < pool.getTargetSize();
+  }
+
+  synchronized int getInUse(String name) {
+    return partitions.get(name).inUse;
+  }
+
+  static final class Partition {
+    final String name;
+    final int reserved;
+    final int max;
+    // Guarded by the lock of the WorkloadPartitions:
+    int inUse;
+
+    Partition(String name, int reserved, int max) {
+      this.name = name;
+      this.reserved = reserved;
+      this.max = max;
+    }
+  }
+}
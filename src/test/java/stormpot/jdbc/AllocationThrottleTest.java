@@ -0,0 +1,124 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AllocationThrottleTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+  
+  @After public void
+  clearInterruptedFlag() {
+    Thread.interrupted();
+  }
+  
+  @Test public void
+  backoffMustStayWithinTheDoublingLimit() {
+    AllocationThrottle throttle = new AllocationThrottle(0, 10 * MS, 1000 * MS);
+    for (int i = 0; i < 100; i++) {
+      assertThat(throttle.backoff(1), lessThanOrEqualTo(10 * MS));
+      assertThat(throttle.backoff(3), lessThanOrEqualTo(40 * MS));
+    }
+  }
+  
+  @Test public void
+  backoffMustBeCappedByTheMaxBackoff() {
+    AllocationThrottle throttle = new AllocationThrottle(0, 10 * MS, 50 * MS);
+    for (int i = 0; i < 100; i++) {
+      assertThat(throttle.backoff(10), lessThanOrEqualTo(50 * MS));
+      assertThat(throttle.backoff(Integer.MAX_VALUE), lessThanOrEqualTo(50 * MS));
+    }
+  }
+  
+  @Test public void
+  backoffMustBeJittered() {
+    AllocationThrottle throttle = new AllocationThrottle(0, 1000 * MS, 1000 * MS);
+    long first = throttle.backoff(1);
+    for (int i = 0; i < 100; i++) {
+      if (throttle.backoff(1) != first) {
+        return;
+      }
+    }
+    fail("The backoff should vary, but was always " + first);
+  }
+  
+  @Test(timeout = 5000) public void
+  attemptsMustBeAllowedAgainOnceTheBackoffHasPassed() throws Exception {
+    AllocationThrottle throttle = new AllocationThrottle(0, 50 * MS, 50 * MS);
+    throttle.release(false);
+    while (true) {
+      try {
+        throttle.acquire();
+        return;
+      } catch (SQLTransientConnectionException e) {
+        Thread.sleep(1);
+      }
+    }
+  }
+  
+  @Test public void
+  acquireMustNotWaitOutTheBackoff() throws Exception {
+    AllocationThrottle throttle =
+        new AllocationThrottle(0, 10000 * MS, 10000 * MS);
+    throttle.release(false);
+    throttle.release(false);
+    long start = System.nanoTime();
+    try {
+      throttle.acquire();
+      fail("acquire should have thrown");
+    } catch (SQLTransientConnectionException e) {
+      assertThat(e.getSQLState(), is("08001"));
+    }
+    assertThat(System.nanoTime() - start, lessThan(1000 * MS));
+  }
+  
+  @Test public void
+  successMustEndTheBackoff() throws Exception {
+    AllocationThrottle throttle =
+        new AllocationThrottle(0, 10000 * MS, 10000 * MS);
+    throttle.release(false);
+    throttle.release(true);
+    throttle.acquire();
+  }
+  
+  @Test(timeout = 5000) public void
+  mustLimitConcurrentAttempts() throws Exception {
+    final AllocationThrottle throttle = new AllocationThrottle(1, 0, 0);
+    throttle.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          throttle.acquire();
+          acquired.countDown();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    thread.start();
+    assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+    throttle.release(true);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+  }
+  
+  @Test public void
+  interruptionMustThrowAndKeepTheInterruptedFlag() {
+    AllocationThrottle throttle = new AllocationThrottle(1, 0, 0);
+    Thread.currentThread().interrupt();
+    try {
+      throttle.acquire();
+      fail("acquire should have thrown");
+    } catch (SQLException e) {
+      assertThat(e.getCause(), instanceOf(InterruptedException.class));
+    }
+    assertTrue(Thread.currentThread().isInterrupted());
+  }
+}
@@ -0,0 +1,94 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private static final long LONG_TIME = TimeUnit.HOURS.toNanos(1);
+  
+  @Test public void
+  mustBeClosedInitially() {
+    CircuitBreaker breaker = new CircuitBreaker(3, LONG_TIME);
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowClaim());
+  }
+  
+  @Test public void
+  mustStayClosedBelowTheThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(3, LONG_TIME);
+    breaker.recordFailure(new SQLException());
+    breaker.recordFailure(new SQLException());
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowClaim());
+  }
+  
+  @Test public void
+  mustOpenAndRefuseClaimsAtTheThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(3, LONG_TIME);
+    breaker.recordFailure(new SQLException());
+    breaker.recordFailure(new SQLException());
+    breaker.recordFailure(new SQLException());
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowClaim());
+  }
+  
+  @Test public void
+  successMustResetTheConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker(2, LONG_TIME);
+    breaker.recordFailure(new SQLException());
+    breaker.recordSuccess();
+    breaker.recordFailure(new SQLException());
+    assertFalse(breaker.isOpen());
+  }
+  
+  @Test public void
+  successMustCloseAnOpenBreaker() {
+    CircuitBreaker breaker = new CircuitBreaker(1, LONG_TIME);
+    breaker.recordFailure(new SQLException());
+    breaker.recordSuccess();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowClaim());
+    assertThat(breaker.getLastFailure(), nullValue());
+  }
+  
+  @Test public void
+  mustRememberTheLastFailure() {
+    CircuitBreaker breaker = new CircuitBreaker(2, LONG_TIME);
+    SQLException exception = new SQLException();
+    breaker.recordFailure(new SQLException());
+    breaker.recordFailure(exception);
+    assertThat(breaker.getLastFailure(), sameInstance((Throwable) exception));
+    assertThat(breaker.getConsecutiveFailures(), is(2));
+  }
+  
+  @Test public void
+  mustLetOneProbeThroughAfterTheOpenTime() throws InterruptedException {
+    CircuitBreaker breaker =
+        new CircuitBreaker(1, TimeUnit.MILLISECONDS.toNanos(10));
+    breaker.recordFailure(new SQLException());
+    assertFalse(breaker.allowClaim());
+    Thread.sleep(20);
+    assertTrue(breaker.allowClaim());
+    assertFalse(breaker.allowClaim());
+    assertTrue(breaker.isOpen());
+  }
+  
+  @Test public void
+  mustLetOneConnectThroughAfterTheOpenTime() throws InterruptedException {
+    CircuitBreaker breaker =
+        new CircuitBreaker(1, TimeUnit.MILLISECONDS.toNanos(10));
+    assertTrue(breaker.allowConnect());
+    breaker.recordFailure(new SQLException());
+    assertFalse(breaker.allowConnect());
+    Thread.sleep(20);
+    // The probing claim and the connect it causes are let through together:
+    assertTrue(breaker.allowClaim());
+    assertTrue(breaker.allowConnect());
+    assertFalse(breaker.allowConnect());
+  }
+}
@@ -0,0 +1,117 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import stormpot.ResizablePool;
+
+public class ClaimQueueTest {
+  private static final long LONG_WAIT = TimeUnit.SECONDS.toNanos(10);
+  
+  private ClaimQueue queue(int size) {
+    ResizablePool<?> pool = mock(ResizablePool.class);
+    when(pool.getTargetSize()).thenReturn(size);
+    return new ClaimQueue(pool);
+  }
+  
+  private static long in(long nanos) {
+    return System.nanoTime() + nanos;
+  }
+  
+  private Thread waiter(
+      final ClaimQueue queue,
+      final int priority,
+      final long deadline,
+      final String name,
+      final List<String> order) throws InterruptedException {
+    int waiting = queue.getWaiting();
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          if (queue.acquire(priority, deadline)) {
+            order.add(name);
+          }
+        } catch (InterruptedException ignore) {}
+      }
+    };
+    thread.start();
+    while (queue.getWaiting() == waiting) {
+      Thread.sleep(1);
+    }
+    return thread;
+  }
+  
+  @Test public void
+  mustAdmitRightAwayWhenConnectionsAreFree() throws Exception {
+    ClaimQueue queue = queue(2);
+    assertTrue(queue.acquire(0, in(0)));
+    assertTrue(queue.acquire(0, in(0)));
+    assertFalse(queue.acquire(0, in(0)));
+  }
+  
+  @Test public void
+  releaseMustMakeRoomForAnotherClaim() throws Exception {
+    ClaimQueue queue = queue(1);
+    assertTrue(queue.acquire(0, in(0)));
+    queue.release();
+    assertTrue(queue.acquire(0, in(0)));
+  }
+  
+  @Test(timeout = 2000) public void
+  acquireMustGiveUpAtTheDeadline() throws Exception {
+    ClaimQueue queue = queue(1);
+    queue.acquire(0, in(0));
+    long start = System.nanoTime();
+    assertFalse(queue.acquire(0, in(TimeUnit.MILLISECONDS.toNanos(20))));
+    assertThat(System.nanoTime() - start,
+        greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20)));
+    assertThat(queue.getWaiting(), is(0));
+  }
+  
+  @Test(timeout = 5000) public void
+  higherPriorityMustGoFirst() throws Exception {
+    ClaimQueue queue = queue(1);
+    List<String> order = new CopyOnWriteArrayList<String>();
+    queue.acquire(0, in(0));
+    Thread low = waiter(queue, -1, in(LONG_WAIT), "low", order);
+    Thread high = waiter(queue, 1, in(LONG_WAIT), "high", order);
+    queue.release();
+    high.join();
+    queue.release();
+    low.join();
+    assertThat(order.toString(), is("[high, low]"));
+  }
+  
+  @Test(timeout = 5000) public void
+  earlierDeadlineMustGoFirstWithinAPriority() throws Exception {
+    ClaimQueue queue = queue(1);
+    List<String> order = new CopyOnWriteArrayList<String>();
+    queue.acquire(0, in(0));
+    Thread late = waiter(queue, 0, in(2 * LONG_WAIT), "late", order);
+    Thread early = waiter(queue, 0, in(LONG_WAIT), "early", order);
+    queue.release();
+    early.join();
+    queue.release();
+    late.join();
+    assertThat(order.toString(), is("[early, late]"));
+  }
+  
+  @Test(timeout = 5000) public void
+  newClaimsMustNotOvertakeWaitingClaims() throws Exception {
+    ClaimQueue queue = queue(1);
+    List<String> order = new CopyOnWriteArrayList<String>();
+    queue.acquire(0, in(0));
+    Thread waiting = waiter(queue, 0, in(LONG_WAIT), "waiting", order);
+    queue.release();
+    waiting.join();
+    assertFalse(queue.acquire(0, in(0)));
+    assertThat(order.toString(), is("[waiting]"));
+  }
+}
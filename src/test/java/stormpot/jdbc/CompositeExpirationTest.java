@@ -0,0 +1,47 @@
+package stormpot.jdbc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+public class CompositeExpirationTest {
+  Expiration<ConnectionProxy> first;
+  Expiration<ConnectionProxy> second;
+  SlotInfo<ConnectionProxy> info;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() {
+    first = mock(Expiration.class);
+    second = mock(Expiration.class);
+    info = mock(SlotInfo.class);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  expirationsCannotBeNull() {
+    new CompositeExpiration(first, null);
+  }
+  
+  @Test public void
+  mustNotExpireIfNeitherExpires() {
+    assertFalse(new CompositeExpiration(first, second).hasExpired(info));
+  }
+  
+  @Test public void
+  mustExpireIfFirstExpires() {
+    when(first.hasExpired(info)).thenReturn(true);
+    assertTrue(new CompositeExpiration(first, second).hasExpired(info));
+    verify(second, never()).hasExpired(info);
+  }
+  
+  @Test public void
+  mustExpireIfSecondExpires() {
+    when(second.hasExpired(info)).thenReturn(true);
+    assertTrue(new CompositeExpiration(first, second).hasExpired(info));
+  }
+}
@@ -0,0 +1,108 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(10);
+  
+  private ConcurrencyLimiter limiter(int initial, int min, int max) {
+    // A window size of zero closes the window every ten samples:
+    return new ConcurrencyLimiter(initial, min, max, 0);
+  }
+  
+  // Claim connections up to the limit, and release them all again:
+  private void saturatedWindow(ConcurrencyLimiter limiter, long holdNanos) {
+    int permits = 0;
+    while (limiter.tryAcquire()) {
+      permits++;
+    }
+    for (int i = 0; i < permits; i++) {
+      limiter.release(holdNanos);
+    }
+  }
+  
+  @Test public void
+  mustRefusePermitsOverTheLimit() {
+    ConcurrencyLimiter limiter = limiter(2, 1, 10);
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    assertThat(limiter.getInflight(), is(2));
+  }
+  
+  @Test public void
+  cancelMustGiveThePermitBack() {
+    ConcurrencyLimiter limiter = limiter(1, 1, 10);
+    assertTrue(limiter.tryAcquire());
+    limiter.cancel();
+    assertTrue(limiter.tryAcquire());
+  }
+  
+  @Test public void
+  releaseMustGiveThePermitBack() {
+    ConcurrencyLimiter limiter = limiter(1, 1, 10);
+    assertTrue(limiter.tryAcquire());
+    limiter.release(FAST);
+    assertTrue(limiter.tryAcquire());
+  }
+  
+  @Test public void
+  limitMustGrowWhileHoldTimesAreSteady() {
+    ConcurrencyLimiter limiter = limiter(10, 1, 100);
+    for (int i = 0; i < 20; i++) {
+      saturatedWindow(limiter, FAST);
+    }
+    assertThat(limiter.getLimit(), greaterThan(10));
+  }
+  
+  @Test public void
+  limitMustNotGrowPastTheMax() {
+    ConcurrencyLimiter limiter = limiter(10, 1, 12);
+    for (int i = 0; i < 100; i++) {
+      saturatedWindow(limiter, FAST);
+    }
+    assertThat(limiter.getLimit(), is(12));
+  }
+  
+  @Test public void
+  limitMustShrinkWhenHoldTimesGoUp() {
+    ConcurrencyLimiter limiter = limiter(40, 10, 40);
+    for (int i = 0; i < 5; i++) {
+      saturatedWindow(limiter, FAST);
+    }
+    for (int i = 0; i < 5; i++) {
+      saturatedWindow(limiter, SLOW);
+    }
+    assertThat(limiter.getLimit(), lessThan(40));
+  }
+  
+  @Test public void
+  limitMustNotShrinkBelowTheMin() {
+    ConcurrencyLimiter limiter = limiter(40, 35, 40);
+    for (int i = 0; i < 5; i++) {
+      saturatedWindow(limiter, FAST);
+    }
+    for (int i = 0; i < 5; i++) {
+      saturatedWindow(limiter, SLOW * 100);
+    }
+    assertThat(limiter.getLimit(), is(35));
+  }
+  
+  @Test public void
+  limitMustNotChangeWhenTheLimitIsNotReached() {
+    ConcurrencyLimiter limiter = limiter(100, 1, 200);
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 10; j++) {
+        limiter.tryAcquire();
+        limiter.release(FAST);
+      }
+    }
+    assertThat(limiter.getLimit(), is(100));
+  }
+}
@@ -20,6 +20,7 @@ import java.sql.Struct;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -520,4 +521,29 @@ public class ConnectionProxyDelegationTest {
     proxy.close();
     proxy.getSchema();
   }
+  
+  @Test public void
+  mustDelegateSetNetworkTimeout() throws SQLException {
+    Executor executor = mock(Executor.class);
+    proxy.setNetworkTimeout(executor, 13);
+    verify(con).setNetworkTimeout(executor, 13);
+  }
+  
+  @Test(expected = SQLNonTransientException.class) public void
+  setNetworkTimeoutMustThrowIfClosed() throws SQLException {
+    proxy.close();
+    proxy.setNetworkTimeout(mock(Executor.class), 13);
+  }
+  
+  @Test public void
+  mustDelegateGetNetworkTimeout() throws SQLException {
+    when(con.getNetworkTimeout()).thenReturn(13);
+    assertThat(proxy.getNetworkTimeout(), is(13));
+  }
+  
+  @Test(expected = SQLNonTransientException.class) public void
+  getNetworkTimeoutMustThrowIfClosed() throws SQLException {
+    proxy.close();
+    proxy.getNetworkTimeout();
+  }
 }
@@ -7,6 +7,8 @@ import static org.mockito.Mockito.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -216,6 +218,190 @@ public class ConnectionProxyTest {
     verify(con).setClientInfo(null);
   }
 
+  @Test public void
+  reopenMustResetNetworkTimeout() throws SQLException {
+    Executor executor = mock(Executor.class);
+    when(con.getNetworkTimeout()).thenReturn(13);
+    
+    ConnectionProxy proxy = new ConnectionProxy(
+        slot, adaptor.adapt(con), executor);
+    proxy.setNetworkTimeout(mock(Executor.class), 42);
+    proxy.reopen();
+    
+    verify(con).setNetworkTimeout(executor, 13);
+  }
+  
+  @Test public void
+  reopenMustNotResetNetworkTimeoutIfUntouched() throws SQLException {
+    proxy().reopen();
+    verify(con, never()).setNetworkTimeout(isA(Executor.class), anyInt());
+    verify(con, never()).getNetworkTimeout();
+  }
+
+  @Test public void
+  abortMustAbortDelegateAndEvict() throws SQLException {
+    Executor executor = mock(Executor.class);
+    ConnectionProxy proxy = proxy();
+    proxy.abort(executor);
+    verify(con).abort(executor);
+    verify(slot).release(proxy);
+    assertTrue(proxy.isEvicted());
+    assertTrue(proxy.isClosed());
+  }
+  
+  @Test public void
+  abortOfClosedConnectionIsNoOp() throws SQLException {
+    Executor executor = mock(Executor.class);
+    ConnectionProxy proxy = proxy();
+    proxy.close();
+    proxy.abort(executor);
+    verify(con, never()).abort(executor);
+    assertFalse(proxy.isEvicted());
+  }
+  
+  @Test public void
+  reopenMustRecordClaimer() throws SQLException {
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    assertThat(proxy.getClaimer(), is(Thread.currentThread()));
+  }
+  
+  @Test public void
+  releaseMustClearClaimer() throws SQLException {
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.close();
+    assertNull(proxy.getClaimer());
+  }
+
+  @Test public void
+  mustSampleClaimSiteOncePerSampleRateClaims() throws SQLException {
+    ConnectionProxy proxy = proxy();
+    proxy.sampleClaimSite(3);
+    assertNull(proxy.getClaimSite());
+    proxy.sampleClaimSite(3);
+    assertNull(proxy.getClaimSite());
+    proxy.sampleClaimSite(3);
+    assertNotNull(proxy.getClaimSite());
+    proxy.sampleClaimSite(3);
+    assertNull(proxy.getClaimSite());
+  }
+  
+  @Test public void
+  releaseMustClearClaimSite() throws SQLException {
+    ConnectionProxy proxy = proxy();
+    proxy.sampleClaimSite(1);
+    proxy.close();
+    assertNull(proxy.getClaimSite());
+  }
+
+  @Test public void
+  mustReplaceDelegateWhenIdle() throws SQLException {
+    Jdbc41ConnectionDelegate newCon = mock(Jdbc41ConnectionDelegate.class);
+    when(newCon.getMetaData()).thenReturn(metaData);
+    ConnectionProxy proxy = proxy();
+    Jdbc41ConnectionDelegate oldCon = proxy.replaceDelegate(newCon);
+    assertThat(oldCon._stormpot_delegate(), is((Connection) con));
+    proxy.reopen();
+    proxy.commit();
+    verify(newCon).commit();
+  }
+  
+  @Test public void
+  mustNotReplaceDelegateWhenClaimed() throws SQLException {
+    Jdbc41ConnectionDelegate newCon = mock(Jdbc41ConnectionDelegate.class);
+    when(newCon.getMetaData()).thenReturn(metaData);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    assertNull(proxy.replaceDelegate(newCon));
+    proxy.close();
+    assertNotNull(proxy.replaceDelegate(newCon));
+  }
+  
+  @Test public void
+  mustNotReplaceDelegateWhenDead() throws SQLException {
+    Jdbc41ConnectionDelegate newCon = mock(Jdbc41ConnectionDelegate.class);
+    when(newCon.getMetaData()).thenReturn(metaData);
+    ConnectionProxy proxy = proxy();
+    proxy.closeDelegateConnection();
+    assertNull(proxy.replaceDelegate(newCon));
+  }
+
+  @Test public void
+  statementsMustGetQueryTimeoutFromDeadline() throws SQLException {
+    Statement statement = mock(Statement.class);
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    CallableStatement callable = mock(CallableStatement.class);
+    when(con.createStatement()).thenReturn(statement);
+    when(con.prepareStatement("select 1")).thenReturn(prepared);
+    when(con.prepareCall("call x()")).thenReturn(callable);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2500));
+    proxy.createStatement();
+    proxy.prepareStatement("select 1");
+    proxy.prepareCall("call x()");
+    verify(statement).setQueryTimeout(3);
+    verify(prepared).setQueryTimeout(3);
+    verify(callable).setQueryTimeout(3);
+  }
+  
+  @Test public void
+  statementsMustNotGetQueryTimeoutWithoutDeadline() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.createStatement();
+    verify(statement, never()).setQueryTimeout(anyInt());
+  }
+  
+  @Test public void
+  creatingStatementsAfterTheDeadlineMustThrow() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.setDeadline(System.nanoTime() - 1);
+    try {
+      proxy.createStatement();
+      fail("createStatement should have thrown");
+    } catch (SQLTimeoutException ignore) {}
+    verify(statement).close();
+  }
+  
+  @Test public void
+  statementMustBeClosedWhenSettingTheQueryTimeoutFails()
+      throws SQLException {
+    Statement statement = mock(Statement.class);
+    SQLException failure = new SQLException("not supported");
+    doThrow(failure).when(statement).setQueryTimeout(anyInt());
+    when(con.createStatement()).thenReturn(statement);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.setDeadline(System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+    try {
+      proxy.createStatement();
+      fail("createStatement should have thrown");
+    } catch (SQLException e) {
+      assertSame(failure, e);
+    }
+    verify(statement).close();
+  }
+  
+  @Test public void
+  releaseMustClearTheDeadline() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    ConnectionProxy proxy = proxy();
+    proxy.reopen();
+    proxy.setDeadline(System.nanoTime() - 1);
+    proxy.close();
+    proxy.reopen();
+    proxy.createStatement();
+    verify(statement, never()).setQueryTimeout(anyInt());
+  }
+
   // TODO must roll back uncommitted transaction on close
   // TODO must not roll back on close when autocommit is on
 }
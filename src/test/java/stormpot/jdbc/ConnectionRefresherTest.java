@@ -0,0 +1,136 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Expiration;
+import stormpot.Slot;
+import stormpot.TimeExpiration;
+
+public class ConnectionRefresherTest {
+  DataSource delegate;
+  DataSourceAllocator allocator;
+  StormpotDataSource dataSource;
+  Connection oldCon;
+  Connection newCon;
+  
+  @Before public void
+  setUp() throws SQLException {
+    delegate = mock(DataSource.class);
+    oldCon = connection();
+    newCon = connection();
+    when(delegate.getConnection()).thenReturn(oldCon, newCon);
+    allocator = new DataSourceAllocator(delegate);
+    
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(mock(DataSource.class));
+    dataSource = new StormpotDataSource(config);
+  }
+
+  private Connection connection() throws SQLException {
+    Connection con = mock(Connection.class);
+    when(con.getMetaData()).thenReturn(mock(DatabaseMetaData.class));
+    return con;
+  }
+  
+  private ConnectionRefresher refresher(long refreshAheadMinutes) {
+    MaxLifetimeExpiration lifetime =
+        new MaxLifetimeExpiration(10, 0, TimeUnit.MINUTES);
+    return new ConnectionRefresher(dataSource, allocator, lifetime,
+        TimeUnit.MINUTES.toMillis(refreshAheadMinutes));
+  }
+  
+  @Test public void
+  mustFindMaxLifetimeExpiration() {
+    MaxLifetimeExpiration lifetime =
+        new MaxLifetimeExpiration(10, 0, TimeUnit.MINUTES);
+    assertThat(ConnectionRefresher.findMaxLifetime(lifetime),
+        sameInstance(lifetime));
+  }
+  
+  @Test public void
+  mustFindMaxLifetimeExpirationInComposites() {
+    MaxLifetimeExpiration lifetime =
+        new MaxLifetimeExpiration(10, 0, TimeUnit.MINUTES);
+    Expiration<ConnectionProxy> idle =
+        new IdleExpiration(10, 0, TimeUnit.MINUTES);
+    Expiration<ConnectionProxy> composite = new CompositeExpiration(
+        idle, new CompositeExpiration(lifetime, idle));
+    assertThat(ConnectionRefresher.findMaxLifetime(composite),
+        sameInstance(lifetime));
+  }
+  
+  @Test public void
+  mustNotFindMaxLifetimeInOtherExpirations() {
+    assertThat(ConnectionRefresher.findMaxLifetime(
+        new TimeExpiration(1, TimeUnit.SECONDS)), nullValue());
+  }
+  
+  @Test public void
+  mustReplaceIdleConnectionsCloseToTheirMaxLifetime() throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    refresher(11).refresh();
+    verify(oldCon).close();
+    proxy.isDelegateValid(1);
+    verify(newCon).isValid(1);
+  }
+  
+  @Test public void
+  mustNotReplaceConnectionsFarFromTheirMaxLifetime() throws Exception {
+    allocator.allocate(mock(Slot.class));
+    refresher(5).refresh();
+    verify(oldCon, never()).close();
+    verify(delegate, times(1)).getConnection();
+  }
+  
+  @Test public void
+  mustNotReplaceClaimedConnections() throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    proxy.reopen();
+    refresher(11).refresh();
+    verify(oldCon, never()).close();
+  }
+  
+  @Test public void
+  mustNotReplaceEvictedConnections() throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    proxy.evict();
+    refresher(11).refresh();
+    verify(oldCon, never()).close();
+  }
+  
+  @Test(timeout = 5000) public void
+  mustRefreshOnTheExecutorOfTheAllocator() throws Exception {
+    final Thread caller = Thread.currentThread();
+    final CountDownLatch connected = new CountDownLatch(1);
+    final AtomicReference<Thread> connector = new AtomicReference<Thread>();
+    when(delegate.getConnection()).thenReturn(oldCon).thenAnswer(
+        new Answer<Connection>() {
+          public Connection answer(InvocationOnMock invocation) {
+            connector.set(Thread.currentThread());
+            connected.countDown();
+            return newCon;
+          }
+        });
+    allocator.allocate(mock(Slot.class));
+    refresher(11).run();
+    connected.await();
+    assertThat(connector.get(), not(sameInstance(caller)));
+    verify(oldCon, timeout(1000)).close();
+  }
+}
@@ -0,0 +1,160 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Slot;
+
+public class ConnectionWatchdogTest {
+  DataSource delegate;
+  DataSourceAllocator allocator;
+  StormpotDataSource dataSource;
+  StringWriter log;
+  Connection con;
+  
+  @Before public void
+  setUp() throws SQLException {
+    delegate = mock(DataSource.class);
+    con = mock(Connection.class);
+    DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+    when(con.getMetaData()).thenReturn(metaData);
+    when(delegate.getConnection()).thenReturn(con);
+    allocator = new DataSourceAllocator(delegate);
+    
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(mock(DataSource.class));
+    dataSource = new StormpotDataSource(config);
+    log = new StringWriter();
+    dataSource.setLogWriter(new PrintWriter(log));
+  }
+  
+  private ConnectionWatchdog watchdog(boolean abort) {
+    return new ConnectionWatchdog(dataSource, allocator, 1, abort);
+  }
+  
+  private ConnectionProxy claimedProxy() throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    proxy.reopen();
+    // Make sure the connection has been held for more than a nanosecond:
+    Thread.sleep(1);
+    return proxy;
+  }
+  
+  @Test public void
+  mustLogConnectionsHeldPastMaxHoldTime() throws Exception {
+    claimedProxy();
+    watchdog(false).run();
+    assertThat(log.toString(), containsString(
+        "has been held by thread '" + Thread.currentThread().getName()));
+  }
+  
+  @Test public void
+  mustLogStackOfClaimingThread() throws Exception {
+    claimedProxy();
+    watchdog(false).run();
+    assertThat(log.toString(), containsString(
+        "ConnectionWatchdogTest.mustLogStackOfClaimingThread"));
+  }
+  
+  @Test public void
+  mustOnlyReportEachClaimOnce() throws Exception {
+    claimedProxy();
+    ConnectionWatchdog watchdog = watchdog(false);
+    watchdog.run();
+    int length = log.toString().length();
+    watchdog.run();
+    assertThat(log.toString().length(), is(length));
+  }
+  
+  @Test public void
+  mustNotReportReleasedConnections() throws Exception {
+    claimedProxy().close();
+    watchdog(false).run();
+    assertThat(log.toString(), is(""));
+  }
+  
+  @Test public void
+  mustNotReportConnectionsHeldShorterThanMaxHoldTime() throws Exception {
+    claimedProxy();
+    long maxHoldTime = TimeUnit.MINUTES.toNanos(1);
+    new ConnectionWatchdog(dataSource, allocator, maxHoldTime, true).run();
+    assertThat(log.toString(), is(""));
+    verify(con, never()).abort(isA(Executor.class));
+  }
+  
+  @Test public void
+  mustNotAbortConnectionsUnlessConfiguredTo() throws Exception {
+    ConnectionProxy proxy = claimedProxy();
+    watchdog(false).run();
+    verify(con, never()).abort(isA(Executor.class));
+    assertFalse(proxy.isEvicted());
+  }
+  
+  @Test public void
+  mustAbortAndEvictConnectionsWhenConfiguredTo() throws Exception {
+    ConnectionProxy proxy = claimedProxy();
+    watchdog(true).run();
+    verify(con).abort(isA(Executor.class));
+    assertTrue(proxy.isEvicted());
+  }
+  
+  @Test public void
+  mustNotAbortConnectionsThatHaveBeenClaimedAgain() throws Exception {
+    ConnectionProxy proxy = claimedProxy();
+    long claimedAt = proxy.getClaimedAt();
+    proxy.close();
+    Thread.sleep(1);
+    proxy.reopen();
+    assertFalse(proxy.abortClaim(claimedAt));
+    verify(con, never()).abort(isA(Executor.class));
+    assertFalse(proxy.isEvicted());
+    assertTrue(proxy.abortClaim(proxy.getClaimedAt()));
+    verify(con).abort(isA(Executor.class));
+  }
+  
+  @Test(timeout = 5000) public void
+  releaseMustWaitForAnAbortInProgress() throws Exception {
+    final ConnectionProxy proxy = claimedProxy();
+    final CountDownLatch aborting = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Exception {
+        aborting.countDown();
+        // The release must not finish while the abort is in progress:
+        assertFalse(released.await(50, TimeUnit.MILLISECONDS));
+        return null;
+      }
+    }).when(con).abort(isA(Executor.class));
+    Thread releaser = new Thread() {
+      public void run() {
+        try {
+          aborting.await();
+          proxy.close();
+          released.countDown();
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    releaser.start();
+    assertTrue(proxy.abortClaim(proxy.getClaimedAt()));
+    assertTrue(released.await(1, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,190 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Completion;
+import stormpot.LifecycledPool;
+import stormpot.Timeout;
+import stormpot.TimeExpiration;
+import stormpot.jdbc.stubs.ConnectionStub;
+
+public class CredentialPoolsTest {
+  private static final Timeout TIMEOUT = new Timeout(1, TimeUnit.SECONDS);
+  
+  DataSource delegate;
+  CredentialPools pools;
+  
+  @Before public void
+  setUp() throws SQLException {
+    delegate = mock(DataSource.class);
+    when(delegate.getConnection(anyString(), anyString())).thenAnswer(
+        new Answer<Connection>() {
+          public Connection answer(InvocationOnMock invocation) {
+            return new ConnectionStub();
+          }
+        });
+    pools = pools(2, 4);
+  }
+  
+  @After public void
+  tearDown() {
+    pools.shutdown();
+  }
+  
+  private CredentialPools pools(int poolSize, int maxConnections) {
+    return new CredentialPools(
+        new DataSourceAllocator(delegate),
+        new TimeExpiration(10, TimeUnit.MINUTES),
+        poolSize,
+        maxConnections);
+  }
+  
+  @Test(timeout = 2000) public void
+  mustConnectWithTheGivenCredentials() throws Exception {
+    pools.claim("alice", "secret", TIMEOUT).release();
+    verify(delegate, atLeastOnce()).getConnection("alice", "secret");
+    verify(delegate, never()).getConnection();
+  }
+  
+  @Test(timeout = 2000) public void
+  sameCredentialsMustShareAPool() throws Exception {
+    ConnectionProxy a = pools.claim("alice", "secret", TIMEOUT);
+    a.release();
+    ConnectionProxy b = pools.claim("alice", "secret", TIMEOUT);
+    b.release();
+    assertThat(pools.getPoolCount(), is(1));
+  }
+  
+  @Test(timeout = 2000) public void
+  differentPasswordsMustNotShareAPool() throws Exception {
+    pools.claim("alice", "secret", TIMEOUT).release();
+    pools.claim("alice", "guess", TIMEOUT).release();
+    assertThat(pools.getPoolCount(), is(2));
+  }
+  
+  @Test(timeout = 2000) public void
+  credentialsMustNotCollideWhenConcatenated() throws Exception {
+    pools.claim("ab", "c", TIMEOUT).release();
+    pools.claim("a", "bc", TIMEOUT).release();
+    assertThat(pools.getPoolCount(), is(2));
+  }
+  
+  @Test(timeout = 2000) public void
+  mustShutDownLeastRecentlyUsedIdlePoolToMakeRoom() throws Exception {
+    pools.shutdown();
+    pools = pools(1, 2);
+    pools.claim("alice", "a", TIMEOUT).release();
+    pools.claim("bob", "b", TIMEOUT).release();
+    pools.claim("alice", "a", TIMEOUT).release();
+    // Bob is the least recently used, so his pool makes room for Carol's:
+    pools.claim("carol", "c", TIMEOUT).release();
+    assertThat(pools.getPoolCount(), is(2));
+    pools.claim("alice", "a", TIMEOUT).release();
+    verify(delegate, times(1)).getConnection("alice", "a");
+    pools.claim("bob", "b", TIMEOUT).release();
+    verify(delegate, times(2)).getConnection("bob", "b");
+  }
+  
+  @Test(timeout = 2000) public void
+  mustNotShutDownPoolsWithClaimedConnections() throws Exception {
+    ConnectionProxy alice = pools.claim("alice", "a", TIMEOUT);
+    ConnectionProxy bob = pools.claim("bob", "b", TIMEOUT);
+    try {
+      pools.claim("carol", "c", TIMEOUT);
+      fail("There should be no room for another pool");
+    } catch (SQLTransientConnectionException ignore) {}
+    bob.release();
+    pools.claim("carol", "c", TIMEOUT).release();
+    alice.release();
+  }
+  
+  @Test(timeout = 2000) public void
+  claimMustReturnNullOnTimeout() throws Exception {
+    ConnectionProxy a = pools.claim("alice", "a", TIMEOUT);
+    ConnectionProxy b = pools.claim("alice", "a", TIMEOUT);
+    Timeout shortTimeout = new Timeout(10, TimeUnit.MILLISECONDS);
+    assertThat(pools.claim("alice", "a", shortTimeout), nullValue());
+    a.release();
+    b.release();
+  }
+  
+  @Test(expected = IllegalStateException.class) public void
+  claimMustThrowAfterShutdown() throws Exception {
+    pools.shutdown();
+    pools.claim("alice", "a", TIMEOUT);
+  }
+  
+  @Test(timeout = 2000) public void
+  shutdownMustWaitForTheConnectionsToBeClosed() throws Exception {
+    final AtomicInteger opened = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+    when(delegate.getConnection(anyString(), anyString())).thenAnswer(
+        new Answer<Connection>() {
+          public Connection answer(InvocationOnMock invocation) {
+            opened.incrementAndGet();
+            return new ConnectionStub() {
+              public void close() {
+                closed.incrementAndGet();
+              }
+            };
+          }
+        });
+    ConnectionProxy con = pools.claim("alice", "a", TIMEOUT);
+    Completion completion = pools.shutdown();
+    Timeout shortTimeout = new Timeout(10, TimeUnit.MILLISECONDS);
+    assertFalse(completion.await(shortTimeout));
+    con.release();
+    assertTrue(completion.await(TIMEOUT));
+    assertThat(closed.get(), is(opened.get()));
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test(timeout = 2000) public void
+  shutdownMustKeepTheExecutorUntilThePoolHasShutDown() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    Completion completion = mock(Completion.class);
+    when(completion.await(isA(Timeout.class))).thenAnswer(
+        new Answer<Boolean>() {
+          public Boolean answer(InvocationOnMock invocation)
+              throws InterruptedException {
+            done.await();
+            return true;
+          }
+        });
+    LifecycledPool<ConnectionProxy> pool = mock(LifecycledPool.class);
+    when(pool.shutdown()).thenReturn(completion);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    new CredentialPools.CredentialPool(allocator, pool).shutdown();
+    // The connections that are still claimed can use the executor:
+    allocator.execute(new Runnable() {
+      public void run() {}
+    });
+    done.countDown();
+    try {
+      while (true) {
+        allocator.execute(new Runnable() {
+          public void run() {}
+        });
+        Thread.sleep(1);
+      }
+    } catch (RejectedExecutionException ignore) {}
+  }
+}
@@ -6,19 +6,27 @@ import static org.junit.Assert.*;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
-import stormpot.Allocator;
 import stormpot.Slot;
+import stormpot.Timeout;
 
 public class DataSourceAllocatorTest {
   DataSource delegate;
-  Allocator<ConnectionProxy> allocator;
+  DataSourceAllocator allocator;
   Connection con;
   
   @Before public void
@@ -62,4 +70,232 @@ public class DataSourceAllocatorTest {
     ConnectionProxy proxy = allocator.allocate(slot);
     allocator.deallocate(proxy);
   }
+  
+  @Test public void
+  allocationMustApplyNetworkTimeout() throws Exception {
+    allocator.setNetworkTimeout(13);
+    when(delegate.getConnection()).thenReturn(con);
+    allocator.allocate(mock(Slot.class));
+    verify(con).setNetworkTimeout(isA(Executor.class), eq(13));
+  }
+  
+  @Test public void
+  allocationMustNotTouchNetworkTimeoutByDefault() throws Exception {
+    when(delegate.getConnection()).thenReturn(con);
+    allocator.allocate(mock(Slot.class));
+    verify(con, never()).setNetworkTimeout(isA(Executor.class), anyInt());
+  }
+  
+  @Test public void
+  allocationMustCloseConnectionIfNetworkTimeoutCannotBeSet()
+      throws Exception {
+    allocator.setNetworkTimeout(13);
+    when(delegate.getConnection()).thenReturn(con);
+    doThrow(new SQLException()).when(con).setNetworkTimeout(
+        isA(Executor.class), anyInt());
+    try {
+      allocator.allocate(mock(Slot.class));
+      fail("Expected the allocation to throw");
+    } catch (SQLException _) {}
+    verify(con).close();
+  }
+  
+  @Test public void
+  mustTrackAllocatedConnections() throws Exception {
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    when(delegate.getConnection()).thenReturn(con);
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    assertThat(allocator.allocatedConnections(), hasItem(proxy));
+    allocator.deallocate(proxy);
+    assertThat(allocator.allocatedConnections(), not(hasItem(proxy)));
+  }
+  
+  @Test public void
+  parallelDeallocationMustCloseConnections() throws Exception {
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    when(delegate.getConnection()).thenReturn(con);
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    allocator.deallocateInParallel();
+    allocator.deallocate(proxy);
+    assertTrue(allocator.awaitDeallocations(new Timeout(1, TimeUnit.SECONDS)));
+    verify(con).close();
+  }
+  
+  @Test public void
+  allocationMustRecordFailuresAndSuccessesInCircuitBreaker() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, TimeUnit.HOURS.toNanos(1));
+    allocator.setCircuitBreaker(breaker);
+    SQLException exception = new SQLException("Boom!");
+    when(delegate.getConnection()).thenThrow(exception).thenReturn(con);
+    Slot slot = mock(Slot.class);
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLException ignore) {}
+    assertThat(breaker.getConsecutiveFailures(), is(1));
+    assertThat(breaker.getLastFailure(), sameInstance((Throwable) exception));
+    allocator.allocate(slot);
+    assertThat(breaker.getConsecutiveFailures(), is(0));
+  }
+  
+  @Test public void
+  allocationMustFailFastWhileTheCircuitBreakerIsOpen() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, TimeUnit.HOURS.toNanos(1));
+    allocator.setCircuitBreaker(breaker);
+    SQLException exception = new SQLException("Boom!");
+    when(delegate.getConnection()).thenThrow(exception).thenReturn(con);
+    Slot slot = mock(Slot.class);
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLException ignore) {}
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLTransientConnectionException e) {
+      assertThat(e.getCause(), sameInstance((Throwable) exception));
+    }
+    verify(delegate, times(1)).getConnection();
+    assertThat(breaker.getConsecutiveFailures(), is(1));
+  }
+  
+  @Test(timeout = 5000) public void
+  allocationMustReleaseThrottlePermitOnFailure() throws Exception {
+    AllocationThrottle throttle = new AllocationThrottle(1, 0, 0);
+    allocator.setAllocationThrottle(throttle);
+    when(delegate.getConnection())
+        .thenThrow(new SQLException("Boom!")).thenReturn(con);
+    Slot slot = mock(Slot.class);
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLException ignore) {}
+    // This would block forever if the permit was not released:
+    assertThat(allocator.allocate(slot), not(nullValue()));
+  }
+  
+  @Test public void
+  allocationMustFailFastDuringTheBackoff() throws Exception {
+    long hour = TimeUnit.HOURS.toNanos(1);
+    AllocationThrottle throttle = new AllocationThrottle(0, hour, hour);
+    CircuitBreaker breaker = new CircuitBreaker(5, hour);
+    allocator.setCircuitBreaker(breaker);
+    allocator.setAllocationThrottle(throttle);
+    when(delegate.getConnection()).thenThrow(new SQLException("Boom!"));
+    Slot slot = mock(Slot.class);
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLException ignore) {}
+    try {
+      allocator.allocate(slot);
+      fail("allocate should have thrown");
+    } catch (SQLTransientConnectionException ignore) {}
+    // The refusal is neither an attempt to connect, nor a new failure:
+    verify(delegate, times(1)).getConnection();
+    assertThat(breaker.getConsecutiveFailures(), is(1));
+  }
+  
+  @Test(timeout = 5000) public void
+  prefillMustCreateConnectionsInParallel() throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(3);
+    when(delegate.getConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) throws Exception {
+        // Only completes if all three connections are created at once:
+        barrier.await();
+        return con;
+      }
+    });
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.prefill(3);
+    Slot slot = mock(Slot.class);
+    allocator.allocate(slot);
+    allocator.allocate(slot);
+    allocator.allocate(slot);
+    verify(delegate, times(3)).getConnection();
+  }
+  
+  @Test public void
+  awaitReadyMustWaitForThePrefilledConnections() throws Exception {
+    when(delegate.getConnection()).thenReturn(con);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.prefill(2);
+    Timeout timeout = new Timeout(10, TimeUnit.MILLISECONDS);
+    Slot slot = mock(Slot.class);
+    assertFalse(allocator.awaitReady(timeout));
+    allocator.allocate(slot);
+    assertFalse(allocator.awaitReady(timeout));
+    allocator.allocate(slot);
+    assertTrue(allocator.awaitReady(timeout));
+  }
+  
+  @Test public void
+  awaitReadyMustNotWaitWithoutPrefill() throws Exception {
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    assertTrue(allocator.awaitReady(new Timeout(1, TimeUnit.MILLISECONDS)));
+  }
+  
+  @Test public void
+  allocationMustRethrowPrefillFailures() throws Exception {
+    SQLException exception = new SQLException("Boom!");
+    when(delegate.getConnection()).thenThrow(exception);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.prefill(1);
+    try {
+      allocator.allocate(mock(Slot.class));
+      fail("allocate should have thrown");
+    } catch (SQLException e) {
+      assertThat(e, sameInstance(exception));
+    }
+  }
+  
+  @Test public void
+  discardingPrefilledConnectionsMustCloseThem() throws Exception {
+    when(delegate.getConnection()).thenReturn(con);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.prefill(2);
+    allocator.discardPrefilled();
+    assertTrue(allocator.awaitDeallocations(new Timeout(1, TimeUnit.SECONDS)));
+    verify(con, times(2)).close();
+  }
+  
+  @Test public void
+  allocationMustExecuteInitSql() throws Exception {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    when(delegate.getConnection()).thenReturn(con);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.setInitSql("set search_path to app");
+    allocator.allocate(mock(Slot.class));
+    verify(statement).execute("set search_path to app");
+    verify(statement).close();
+  }
+  
+  @Test public void
+  allocationMustPrepareWarmUpStatements() throws Exception {
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(con.prepareStatement(anyString())).thenReturn(statement);
+    when(delegate.getConnection()).thenReturn(con);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.setWarmUpStatements(new String[] {"select 1", "select 2"});
+    allocator.allocate(mock(Slot.class));
+    verify(con).prepareStatement("select 1");
+    verify(con).prepareStatement("select 2");
+    verify(statement, times(2)).close();
+  }
+  
+  @Test public void
+  allocationMustCloseConnectionIfInitSqlFails() throws Exception {
+    Statement statement = mock(Statement.class);
+    when(statement.execute(anyString())).thenThrow(new SQLException());
+    when(con.createStatement()).thenReturn(statement);
+    when(delegate.getConnection()).thenReturn(con);
+    DataSourceAllocator allocator = new DataSourceAllocator(delegate);
+    allocator.setInitSql("boom");
+    try {
+      allocator.allocate(mock(Slot.class));
+      fail("Expected the allocation to throw");
+    } catch (SQLException _) {}
+    verify(con).close();
+  }
 }
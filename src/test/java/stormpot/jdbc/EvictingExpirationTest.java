@@ -0,0 +1,42 @@
+package stormpot.jdbc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.Expiration;
+import stormpot.SlotInfo;
+
+public class EvictingExpirationTest {
+  Expiration<ConnectionProxy> delegate;
+  SlotInfo<ConnectionProxy> info;
+  ConnectionProxy proxy;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() throws SQLException {
+    delegate = mock(Expiration.class);
+    info = mock(SlotInfo.class);
+    proxy = mock(ConnectionProxy.class);
+    when(info.getPoolable()).thenReturn(proxy);
+  }
+  
+  @Test public void
+  mustDelegateForConnectionsThatAreNotEvicted() {
+    Expiration<ConnectionProxy> expiration = new EvictingExpiration(delegate);
+    when(delegate.hasExpired(info)).thenReturn(false, true);
+    assertFalse(expiration.hasExpired(info));
+    assertTrue(expiration.hasExpired(info));
+  }
+  
+  @Test public void
+  evictedConnectionsMustBeExpired() {
+    Expiration<ConnectionProxy> expiration = new EvictingExpiration(delegate);
+    when(proxy.isEvicted()).thenReturn(true);
+    assertTrue(expiration.hasExpired(info));
+  }
+}
@@ -0,0 +1,87 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailoverDataSourceTest {
+  DataSource first;
+  DataSource second;
+  Connection firstCon;
+  Connection secondCon;
+  FailoverDataSource failover;
+  
+  @Before public void
+  setUp() throws SQLException {
+    first = mock(DataSource.class);
+    second = mock(DataSource.class);
+    firstCon = mock(Connection.class);
+    secondCon = mock(Connection.class);
+    when(first.getConnection()).thenReturn(firstCon);
+    when(second.getConnection()).thenReturn(secondCon);
+    failover = new FailoverDataSource(first, second);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  mustHaveAtLeastOneDataSource() {
+    new FailoverDataSource();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  dataSourcesCannotBeNull() {
+    new FailoverDataSource(first, null);
+  }
+  
+  @Test public void
+  mustConnectToTheFirstDataSourceByDefault() throws SQLException {
+    assertThat(failover.getConnection(), sameInstance(firstCon));
+    assertThat(failover.endpointOf(firstCon), is(0));
+  }
+  
+  @Test public void
+  mustConnectToTheActiveDataSource() throws SQLException {
+    failover.setActiveEndpoint(1);
+    assertThat(failover.getConnection(), sameInstance(secondCon));
+    assertThat(failover.endpointOf(secondCon), is(1));
+  }
+  
+  @Test public void
+  unknownConnectionsMustHaveNoEndpoint() {
+    assertThat(failover.endpointOf(mock(Connection.class)), is(-1));
+  }
+  
+  @Test public void
+  endpointIsHealthyWhenItsConnectionsAreValid() throws SQLException {
+    when(firstCon.isValid(1)).thenReturn(true);
+    assertTrue(failover.isHealthy(0, 1));
+    verify(firstCon).close();
+  }
+  
+  @Test public void
+  endpointIsUnhealthyWhenItCannotConnect() throws SQLException {
+    when(first.getConnection()).thenThrow(new SQLException("Down"));
+    assertFalse(failover.isHealthy(0, 1));
+  }
+  
+  @Test public void
+  endpointIsUnhealthyWhenItsConnectionsAreInvalid() throws SQLException {
+    when(firstCon.isValid(1)).thenReturn(false);
+    assertFalse(failover.isHealthy(0, 1));
+    verify(firstCon).close();
+  }
+  
+  @Test public void
+  setLoginTimeoutMustApplyToAllDataSources() throws SQLException {
+    failover.setLoginTimeout(7);
+    verify(first).setLoginTimeout(7);
+    verify(second).setLoginTimeout(7);
+  }
+}
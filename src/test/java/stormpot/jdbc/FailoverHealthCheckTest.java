@@ -0,0 +1,173 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Slot;
+
+public class FailoverHealthCheckTest {
+  DataSource first;
+  DataSource second;
+  FailoverDataSource failover;
+  DataSourceAllocator allocator;
+  StormpotDataSource dataSource;
+  StringWriter log;
+  boolean firstHealthy;
+  boolean secondHealthy;
+  
+  @Before public void
+  setUp() throws SQLException {
+    firstHealthy = true;
+    secondHealthy = true;
+    first = endpoint(true);
+    second = endpoint(false);
+    failover = new FailoverDataSource(first, second);
+    allocator = new DataSourceAllocator(failover);
+    
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(mock(DataSource.class));
+    dataSource = new StormpotDataSource(config);
+    log = new StringWriter();
+    dataSource.setLogWriter(new PrintWriter(log));
+  }
+  
+  private DataSource endpoint(final boolean isFirst) throws SQLException {
+    DataSource endpoint = mock(DataSource.class);
+    when(endpoint.getConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation)
+          throws SQLException {
+        Connection con = mock(Connection.class);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(con.getMetaData()).thenReturn(metaData);
+        when(con.isValid(anyInt())).thenReturn(
+            isFirst? firstHealthy : secondHealthy);
+        return con;
+      }
+    });
+    return endpoint;
+  }
+  
+  private FailoverHealthCheck healthCheck() {
+    return new FailoverHealthCheck(dataSource, allocator, failover, 1, 3);
+  }
+  
+  @Test public void
+  mustFailOverWhenTheActiveEndpointIsUnhealthy() throws Exception {
+    firstHealthy = false;
+    healthCheck().check();
+    assertThat(failover.getActiveEndpoint(), is(1));
+    assertThat(log.toString(), containsString("Failing over"));
+  }
+  
+  @Test public void
+  mustFailBackWhenAnEarlierEndpointRecovers() throws Exception {
+    failover.setActiveEndpoint(1);
+    FailoverHealthCheck healthCheck = healthCheck();
+    healthCheck.check();
+    healthCheck.check();
+    assertThat(failover.getActiveEndpoint(), is(1));
+    healthCheck.check();
+    assertThat(failover.getActiveEndpoint(), is(0));
+  }
+  
+  @Test public void
+  mustOnlyFailBackAfterHealthyChecksInARow() throws Exception {
+    failover.setActiveEndpoint(1);
+    FailoverHealthCheck healthCheck = healthCheck();
+    healthCheck.check();
+    healthCheck.check();
+    firstHealthy = false;
+    healthCheck.check();
+    firstHealthy = true;
+    healthCheck.check();
+    healthCheck.check();
+    assertThat(failover.getActiveEndpoint(), is(1));
+    healthCheck.check();
+    assertThat(failover.getActiveEndpoint(), is(0));
+  }
+  
+  @Test public void
+  mustFailBackRightAwayWhenTheActiveEndpointIsUnhealthy() throws Exception {
+    failover.setActiveEndpoint(1);
+    secondHealthy = false;
+    healthCheck().check();
+    assertThat(failover.getActiveEndpoint(), is(0));
+  }
+  
+  @Test(timeout = 5000) public void
+  endpointsThatDoNotConnectInTimeMustBeUnhealthy() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    doAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation)
+          throws InterruptedException {
+        done.await();
+        return mock(Connection.class);
+      }
+    }).when(first).getConnection();
+    try {
+      healthCheck().check();
+      assertThat(failover.getActiveEndpoint(), is(1));
+    } finally {
+      done.countDown();
+    }
+  }
+  
+  @Test(timeout = 5000) public void
+  mustCheckOnTheExecutorOfTheAllocator() throws Exception {
+    final Thread caller = Thread.currentThread();
+    final AtomicReference<Thread> checker = new AtomicReference<Thread>();
+    final CountDownLatch checked = new CountDownLatch(1);
+    doAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) {
+        checker.set(Thread.currentThread());
+        checked.countDown();
+        return mock(Connection.class);
+      }
+    }).when(first).getConnection();
+    healthCheck().run();
+    checked.await();
+    assertThat(checker.get(), not(sameInstance(caller)));
+  }
+  
+  @Test public void
+  mustKeepTheActiveEndpointWhenNoneAreHealthy() throws Exception {
+    firstHealthy = false;
+    secondHealthy = false;
+    healthCheck().check();
+    assertThat(failover.getActiveEndpoint(), is(0));
+  }
+  
+  @Test public void
+  mustEvictConnectionsToOtherEndpointsWhenFailingOver() throws Exception {
+    ConnectionProxy old = allocator.allocate(mock(Slot.class));
+    firstHealthy = false;
+    healthCheck().check();
+    ConnectionProxy current = allocator.allocate(mock(Slot.class));
+    assertTrue(old.isEvicted());
+    assertFalse(current.isEvicted());
+    assertThat(failover.endpointOf(current.getDelegateConnection()), is(1));
+  }
+  
+  @Test public void
+  mustNotEvictAnythingWhenNotFailingOver() throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    healthCheck().check();
+    assertFalse(proxy.isEvicted());
+  }
+}
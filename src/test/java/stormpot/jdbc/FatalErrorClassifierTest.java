@@ -0,0 +1,61 @@
+package stormpot.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class FatalErrorClassifierTest {
+  private static final String[] NO_STATES = new String[0];
+  private static final int[] NO_CODES = new int[0];
+  
+  @Test public void
+  mustMatchSqlStatePrefix() {
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(new String[] {"08"}, NO_CODES);
+    assertTrue(classifier.isFatal(new SQLException("boom", "08S01")));
+    assertTrue(classifier.isFatal(new SQLException("boom", "08003")));
+  }
+  
+  @Test public void
+  mustNotMatchOtherSqlStates() {
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(new String[] {"08"}, NO_CODES);
+    assertFalse(classifier.isFatal(new SQLException("boom", "23505")));
+    assertFalse(classifier.isFatal(new SQLException("boom", "80800")));
+  }
+  
+  @Test public void
+  mustNotMatchMissingSqlState() {
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(new String[] {"08"}, NO_CODES);
+    assertFalse(classifier.isFatal(new SQLException("boom")));
+  }
+  
+  @Test public void
+  mustMatchVendorCodes() {
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(NO_STATES, new int[] {17002, 1089});
+    assertTrue(classifier.isFatal(new SQLException("boom", "XX000", 1089)));
+    assertFalse(classifier.isFatal(new SQLException("boom", "XX000", 1090)));
+  }
+  
+  @Test public void
+  mustLookThroughNextExceptionChain() {
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(new String[] {"08"}, NO_CODES);
+    SQLException exception = new SQLException("batch failed", "22000");
+    exception.setNextException(new SQLException("socket closed", "08006"));
+    assertTrue(classifier.isFatal(exception));
+  }
+  
+  @Test public void
+  mustNotBeAffectedByChangesToTheGivenArrays() {
+    String[] states = new String[] {"08"};
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(states, NO_CODES);
+    states[0] = "23";
+    assertTrue(classifier.isFatal(new SQLException("boom", "08006")));
+  }
+}
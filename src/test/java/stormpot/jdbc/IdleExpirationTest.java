@@ -0,0 +1,76 @@
+package stormpot.jdbc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.SlotInfo;
+
+public class IdleExpirationTest {
+  ConnectionProxy proxy;
+  SlotInfo<ConnectionProxy> info;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() {
+    proxy = mock(ConnectionProxy.class);
+    info = mock(SlotInfo.class);
+    when(info.getPoolable()).thenReturn(proxy);
+  }
+  
+  private void idleFor(long minutes) {
+    long now = MillisClock.currentTimeMillis();
+    when(proxy.getReleasedAt()).thenReturn(
+        now - TimeUnit.MINUTES.toMillis(minutes));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  unitCannotBeNull() {
+    new IdleExpiration(10, 1, null);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  idleTimeMustBePositive() {
+    new IdleExpiration(0, 0, TimeUnit.MINUTES);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  jitterMustBeLessThanIdleTime() {
+    new IdleExpiration(10, 10, TimeUnit.MINUTES);
+  }
+  
+  @Test public void
+  connectionsIdleForLessThanIdleTimeMustNotExpire() {
+    idleFor(9);
+    assertFalse(new IdleExpiration(10, 0, TimeUnit.MINUTES).hasExpired(info));
+  }
+  
+  @Test public void
+  connectionsIdleForLongerThanIdleTimeMustExpire() {
+    idleFor(11);
+    assertTrue(new IdleExpiration(10, 0, TimeUnit.MINUTES).hasExpired(info));
+  }
+  
+  @Test public void
+  jitterMustMakeConnectionsExpireEarlier() {
+    idleFor(9);
+    when(proxy.getJitter()).thenReturn(0.5);
+    assertTrue(new IdleExpiration(10, 4, TimeUnit.MINUTES).hasExpired(info));
+    when(proxy.getJitter()).thenReturn(0.1);
+    assertFalse(new IdleExpiration(10, 4, TimeUnit.MINUTES).hasExpired(info));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  idleTimeMustBeAtLeastAMillisecond() {
+    new IdleExpiration(999, 0, TimeUnit.MICROSECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  jitterMustBeLessThanIdleTimeInMilliseconds() {
+    new IdleExpiration(1500, 1200, TimeUnit.MICROSECONDS);
+  }
+}
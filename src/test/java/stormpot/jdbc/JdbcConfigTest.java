@@ -6,6 +6,8 @@ import static org.mockito.Mockito.*;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
@@ -86,4 +88,421 @@ public class JdbcConfigTest {
     config.setDataSource(new DataSourceStub());
     config.validate();
   }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnPoolSizeBelowOne() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setPoolSize(0);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNullExpiration() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setExpiration(null);
+    config.validate();
+  }
+  
+  @Test public void
+  validateMustNotBuildAnAllocator() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.validate();
+    assertThat(config.config.getAllocator(), is(nullValue()));
+  }
+  
+  @Test public void
+  mustRememberNetworkTimeout() {
+    JdbcConfig config = new JdbcConfig();
+    config.setNetworkTimeout(13);
+    assertThat(config.getNetworkTimeout(), is(13));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNegativeNetworkTimeout() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setNetworkTimeout(-1);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberMaxHoldTime() {
+    JdbcConfig config = new JdbcConfig();
+    config.setMaxHoldTime(13, TimeUnit.SECONDS);
+    assertThat(config.getMaxHoldTime(TimeUnit.MILLISECONDS), is(13000L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  maxHoldTimeUnitCannotBeNull() {
+    new JdbcConfig().setMaxHoldTime(1, null);
+  }
+  
+  @Test public void
+  mustRememberAbortHeldConnections() {
+    JdbcConfig config = new JdbcConfig();
+    assertFalse(config.isAbortHeldConnections());
+    config.setAbortHeldConnections(true);
+    assertTrue(config.isAbortHeldConnections());
+  }
+  
+  @Test public void
+  mustRememberLeakDetectionThreshold() {
+    JdbcConfig config = new JdbcConfig();
+    config.setLeakDetectionThreshold(2, TimeUnit.MINUTES);
+    assertThat(config.getLeakDetectionThreshold(TimeUnit.SECONDS), is(120L));
+  }
+  
+  @Test public void
+  mustRememberLeakDetectionSampleRate() {
+    JdbcConfig config = new JdbcConfig();
+    config.setLeakDetectionSampleRate(13);
+    assertThat(config.getLeakDetectionSampleRate(), is(13));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNonPositiveLeakDetectionSampleRate() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setLeakDetectionSampleRate(0);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberRefreshAhead() {
+    JdbcConfig config = new JdbcConfig();
+    config.setRefreshAhead(2, TimeUnit.MINUTES);
+    assertThat(config.getRefreshAhead(TimeUnit.SECONDS), is(120L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  refreshAheadRequiresMaxLifetimeExpiration() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setRefreshAhead(2, TimeUnit.MINUTES);
+    config.validate();
+  }
+  
+  @Test public void
+  refreshAheadIsValidWithMaxLifetimeExpiration() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setExpiration(new MaxLifetimeExpiration(1, 0, TimeUnit.HOURS));
+    config.setRefreshAhead(2, TimeUnit.MINUTES);
+    config.validate();
+  }
+  
+  @Test public void
+  fatalSqlStatesMustDefaultToConnectionExceptions() {
+    JdbcConfig config = new JdbcConfig();
+    assertThat(config.getFatalSqlStates().length, is(0));
+    assertThat(config.getFatalVendorCodes().length, is(0));
+  }
+  
+  @Test public void
+  mustRememberFatalSqlStatesAndVendorCodes() {
+    JdbcConfig config = new JdbcConfig();
+    config.setFatalSqlStates("08", "57P01");
+    config.setFatalVendorCodes(17002);
+    assertThat(config.getFatalSqlStates(), is(new String[] {"08", "57P01"}));
+    assertThat(config.getFatalVendorCodes(), is(new int[] {17002}));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  fatalSqlStatesCannotBeNull() {
+    new JdbcConfig().setFatalSqlStates((String[]) null);
+  }
+  
+  @Test public void
+  mustRememberCircuitBreakerSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setCircuitBreakerThreshold(3);
+    config.setCircuitBreakerOpenTime(2, TimeUnit.SECONDS);
+    assertThat(config.getCircuitBreakerThreshold(), is(3));
+    assertThat(config.getCircuitBreakerOpenTime(TimeUnit.MILLISECONDS),
+        is(2000L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNegativeCircuitBreakerThreshold() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setCircuitBreakerThreshold(-1);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNonPositiveCircuitBreakerOpenTime() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setCircuitBreakerOpenTime(0, TimeUnit.SECONDS);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberAllocationThrottleSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setMaxConcurrentAllocations(4);
+    config.setAllocationBackoff(100, TimeUnit.MILLISECONDS);
+    config.setMaxAllocationBackoff(10, TimeUnit.SECONDS);
+    assertThat(config.getMaxConcurrentAllocations(), is(4));
+    assertThat(config.getAllocationBackoff(TimeUnit.MILLISECONDS), is(100L));
+    assertThat(config.getMaxAllocationBackoff(TimeUnit.SECONDS), is(10L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNegativeMaxConcurrentAllocations() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMaxConcurrentAllocations(-1);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenMaxBackoffIsLessThanInitialBackoff() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setAllocationBackoff(2, TimeUnit.MINUTES);
+    config.setMaxAllocationBackoff(1, TimeUnit.MINUTES);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberWarmUpSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setPrefillSize(5);
+    config.setInitSql("select 1");
+    config.setWarmUpStatements("select 2", "select 3");
+    assertThat(config.getPrefillSize(), is(5));
+    assertThat(config.getInitSql(), is("select 1"));
+    assertThat(config.getWarmUpStatements(),
+        is(new String[] {"select 2", "select 3"}));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenPrefillSizeIsGreaterThanPoolSize() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setPoolSize(2);
+    config.setPrefillSize(3);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberElasticSizingSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setMinPoolSize(2);
+    config.setMaxPoolSize(20);
+    config.setResizeInterval(5, TimeUnit.SECONDS);
+    config.setGrowClaimWait(3, TimeUnit.MILLISECONDS);
+    assertThat(config.getMinPoolSize(), is(2));
+    assertThat(config.getMaxPoolSize(), is(20));
+    assertThat(config.getResizeInterval(TimeUnit.MILLISECONDS), is(5000L));
+    assertThat(config.getGrowClaimWait(TimeUnit.MICROSECONDS), is(3000L));
+  }
+  
+  @Test public void
+  growClaimWaitMustDefaultToOneMillisecond() {
+    JdbcConfig config = new JdbcConfig();
+    assertThat(config.getGrowClaimWait(TimeUnit.MICROSECONDS), is(1000L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNegativeGrowClaimWait() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMaxPoolSize(20);
+    config.setMinPoolSize(1);
+    config.setGrowClaimWait(-1, TimeUnit.MILLISECONDS);
+    config.validate();
+  }
+  
+  @Test public void
+  elasticPoolMustValidateWithSizeBetweenMinAndMax() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMinPoolSize(2);
+    config.setPoolSize(5);
+    config.setMaxPoolSize(20);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenPoolSizeIsGreaterThanMaxPoolSize() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMinPoolSize(2);
+    config.setPoolSize(30);
+    config.setMaxPoolSize(20);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenMinPoolSizeIsSetWithoutMax() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMinPoolSize(2);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberConcurrencyLimits() {
+    JdbcConfig config = new JdbcConfig();
+    config.setMinConcurrencyLimit(2);
+    config.setMaxConcurrencyLimit(50);
+    assertThat(config.getMinConcurrencyLimit(), is(2));
+    assertThat(config.getMaxConcurrencyLimit(), is(50));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenMinConcurrencyLimitIsGreaterThanMax() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMinConcurrencyLimit(10);
+    config.setMaxConcurrencyLimit(5);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberLoadSheddingSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setLoadSheddingTarget(5, TimeUnit.MILLISECONDS);
+    config.setLoadSheddingInterval(200, TimeUnit.MILLISECONDS);
+    assertThat(config.getLoadSheddingTarget(TimeUnit.MICROSECONDS), is(5000L));
+    assertThat(config.getLoadSheddingInterval(TimeUnit.MILLISECONDS), is(200L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNonPositiveLoadSheddingInterval() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setLoadSheddingInterval(0, TimeUnit.MILLISECONDS);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberClaimTimeout() {
+    JdbcConfig config = new JdbcConfig();
+    assertFalse(config.isClaimTimeoutSet());
+    config.setClaimTimeout(50, TimeUnit.MILLISECONDS);
+    assertTrue(config.isClaimTimeoutSet());
+    assertThat(config.getClaimTimeout(TimeUnit.MICROSECONDS), is(50000L));
+  }
+  
+  @Test public void
+  mustRememberStacklessRejections() {
+    JdbcConfig config = new JdbcConfig();
+    assertFalse(config.isStacklessRejections());
+    config.setStacklessRejections(true);
+    assertTrue(config.isStacklessRejections());
+  }
+  
+  @Test public void
+  mustRememberPartitions() {
+    JdbcConfig config = new JdbcConfig();
+    config.setPartition("oltp", 4, 10);
+    config.setPartition("batch", 0, 2);
+    assertThat(new ArrayList<String>(config.getPartitionNames()),
+        is(Arrays.asList("oltp", "batch")));
+    assertThat(config.getPartitionReserved("oltp"), is(4));
+    assertThat(config.getPartitionMax("batch"), is(2));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  partitionReservedCannotExceedMax() {
+    new JdbcConfig().setPartition("oltp", 4, 3);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  partitionNameCannotBeNull() {
+    new JdbcConfig().setPartition(null, 0, 3);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenPartitionsReserveMoreThanThePoolSize() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setPoolSize(5);
+    config.setPartition("oltp", 4, 5);
+    config.setPartition("batch", 2, 5);
+    config.validate();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenPartitionsReserveMoreThanTheMinPoolSize() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setMinPoolSize(2);
+    config.setPoolSize(5);
+    config.setMaxPoolSize(10);
+    config.setPartition("oltp", 3, 5);
+    config.validate();
+  }
+  
+  @Test public void
+  mustRememberPrioritizedClaims() {
+    JdbcConfig config = new JdbcConfig();
+    assertFalse(config.isPrioritizedClaims());
+    config.setPrioritizedClaims(true);
+    assertTrue(config.isPrioritizedClaims());
+  }
+  
+  @Test public void
+  mustRememberCredentialPoolSettings() {
+    JdbcConfig config = new JdbcConfig();
+    config.setCredentialPoolSize(2);
+    config.setMaxCredentialConnections(20);
+    assertThat(config.getCredentialPoolSize(), is(2));
+    assertThat(config.getMaxCredentialConnections(), is(20));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowWhenMaxCredentialConnectionsIsLessThanPoolSize() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setCredentialPoolSize(2);
+    config.setMaxCredentialConnections(1);
+    config.validate();
+  }
+  
+  @Test public void
+  setDataSourcesMustConfigureFailover() {
+    JdbcConfig config = new JdbcConfig();
+    DataSource first = new DataSourceStub();
+    DataSource second = new DataSourceStub();
+    config.setDataSources(first, second);
+    assertThat(config.getDataSource(), instanceOf(FailoverDataSource.class));
+    assertThat(config.getDataSources(), is(new DataSource[] {first, second}));
+  }
+  
+  @Test public void
+  getDataSourcesMustReturnTheSingleDataSourceWithoutFailover() {
+    JdbcConfig config = new JdbcConfig();
+    DataSource ds = new DataSourceStub();
+    config.setDataSource(ds);
+    assertThat(config.getDataSources(), is(new DataSource[] {ds}));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnNonPositiveFailoverCheckInterval() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setFailoverCheckInterval(0, TimeUnit.SECONDS);
+    config.validate();
+  }
+  
+  @Test public void
+  failbackCheckCountMustDefaultToThree() {
+    assertThat(new JdbcConfig().getFailbackCheckCount(), is(3));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  validateMustThrowOnFailbackCheckCountBelowOne() {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub());
+    config.setFailbackCheckCount(0);
+    config.validate();
+  }
 }
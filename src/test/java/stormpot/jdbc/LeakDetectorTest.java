@@ -0,0 +1,89 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.Slot;
+
+public class LeakDetectorTest {
+  DataSourceAllocator allocator;
+  StormpotDataSource dataSource;
+  StringWriter log;
+  
+  @Before public void
+  setUp() throws SQLException {
+    DataSource delegate = mock(DataSource.class);
+    Connection con = mock(Connection.class);
+    DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+    when(con.getMetaData()).thenReturn(metaData);
+    when(delegate.getConnection()).thenReturn(con);
+    allocator = new DataSourceAllocator(delegate);
+    
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(mock(DataSource.class));
+    dataSource = new StormpotDataSource(config);
+    log = new StringWriter();
+    dataSource.setLogWriter(new PrintWriter(log));
+  }
+  
+  private LeakDetector leakDetector() {
+    return new LeakDetector(dataSource, allocator, 1);
+  }
+  
+  private ConnectionProxy claimedProxy(int sampleRate) throws Exception {
+    ConnectionProxy proxy = allocator.allocate(mock(Slot.class));
+    proxy.reopen();
+    proxy.sampleClaimSite(sampleRate);
+    // Make sure the connection has been held for more than a nanosecond:
+    Thread.sleep(1);
+    return proxy;
+  }
+  
+  @Test public void
+  mustReportSampledClaimSitesOfLeakedConnections() throws Exception {
+    claimedProxy(1);
+    leakDetector().run();
+    assertThat(log.toString(), containsString("Possible connection leak"));
+    assertThat(log.toString(), containsString(
+        "LeakDetectorTest.claimedProxy"));
+  }
+  
+  @Test public void
+  mustReportClaimsThatWereNotSampledWithoutClaimSite() throws Exception {
+    claimedProxy(2);
+    leakDetector().run();
+    assertThat(log.toString(), containsString("Possible connection leak"));
+    assertThat(log.toString(), containsString("was not sampled"));
+    assertThat(log.toString(), not(containsString(
+        "LeakDetectorTest.claimedProxy")));
+  }
+  
+  @Test public void
+  mustNotReportClosedConnections() throws Exception {
+    claimedProxy(1).close();
+    leakDetector().run();
+    assertThat(log.toString(), is(""));
+  }
+  
+  @Test public void
+  mustOnlyReportEachLeakOnce() throws Exception {
+    claimedProxy(1);
+    LeakDetector leakDetector = leakDetector();
+    leakDetector.run();
+    int length = log.toString().length();
+    leakDetector.run();
+    assertThat(log.toString().length(), is(length));
+  }
+}
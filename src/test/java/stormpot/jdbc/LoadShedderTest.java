@@ -0,0 +1,62 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import stormpot.Timeout;
+
+public class LoadShedderTest {
+  private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long SHORT = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long LONG = TimeUnit.MILLISECONDS.toNanos(50);
+  
+  // An interval of zero ends the interval on every sample:
+  private LoadShedder shedder() {
+    return new LoadShedder(TARGET, 0);
+  }
+  
+  @Test public void
+  mustNotBeOverloadedInitially() {
+    assertFalse(shedder().isOverloaded());
+  }
+  
+  @Test public void
+  mustBeOverloadedWhenAllWaitsInTheIntervalAreAboveTarget() {
+    LoadShedder shedder = shedder();
+    shedder.recordClaimWait(LONG);
+    assertTrue(shedder.isOverloaded());
+  }
+  
+  @Test public void
+  mustRecoverWhenAWaitIsBelowTarget() {
+    LoadShedder shedder = shedder();
+    shedder.recordClaimWait(LONG);
+    shedder.recordClaimWait(SHORT);
+    assertFalse(shedder.isOverloaded());
+  }
+  
+  @Test public void
+  mustUseTheMinimumWaitOfTheInterval() throws InterruptedException {
+    LoadShedder shedder =
+        new LoadShedder(TARGET, TimeUnit.MILLISECONDS.toNanos(20));
+    shedder.recordClaimWait(SHORT);
+    shedder.recordClaimWait(LONG);
+    Thread.sleep(25);
+    shedder.recordClaimWait(LONG); // Ends the interval with the SHORT min.
+    assertFalse(shedder.isOverloaded());
+    Thread.sleep(25);
+    shedder.recordClaimWait(LONG); // Ends the interval with the LONG min.
+    assertTrue(shedder.isOverloaded());
+  }
+  
+  @Test public void
+  sheddingTimeoutMustBeTheTarget() {
+    LoadShedder shedder = shedder();
+    Timeout timeout = shedder.getSheddingTimeout();
+    assertThat(timeout.getUnit().toNanos(timeout.getTimeout()), is(TARGET));
+  }
+}
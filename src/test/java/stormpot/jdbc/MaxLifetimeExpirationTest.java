@@ -0,0 +1,83 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.SlotInfo;
+
+public class MaxLifetimeExpirationTest {
+  ConnectionProxy proxy;
+  SlotInfo<ConnectionProxy> info;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() {
+    proxy = mock(ConnectionProxy.class);
+    info = mock(SlotInfo.class);
+    when(info.getPoolable()).thenReturn(proxy);
+  }
+  
+  private void aged(long minutes) {
+    long now = MillisClock.currentTimeMillis();
+    when(proxy.getCreatedAt()).thenReturn(
+        now - TimeUnit.MINUTES.toMillis(minutes));
+  }
+  
+  private MaxLifetimeExpiration expiration(long jitterMinutes) {
+    return new MaxLifetimeExpiration(30, jitterMinutes, TimeUnit.MINUTES);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  unitCannotBeNull() {
+    new MaxLifetimeExpiration(10, 1, null);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  lifetimeMustBePositive() {
+    new MaxLifetimeExpiration(0, 0, TimeUnit.MINUTES);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  jitterCannotBeNegative() {
+    new MaxLifetimeExpiration(10, -1, TimeUnit.MINUTES);
+  }
+  
+  @Test public void
+  youngConnectionsMustNotExpire() {
+    aged(29);
+    assertFalse(expiration(0).hasExpired(info));
+  }
+  
+  @Test public void
+  oldConnectionsMustExpire() {
+    aged(31);
+    assertTrue(expiration(0).hasExpired(info));
+  }
+  
+  @Test public void
+  jitterMustSpreadOutDeadlines() {
+    aged(0);
+    MaxLifetimeExpiration expiration = expiration(10);
+    when(proxy.getJitter()).thenReturn(0.0);
+    long early = expiration.getDeadline(proxy);
+    when(proxy.getJitter()).thenReturn(0.5);
+    long late = expiration.getDeadline(proxy);
+    assertThat(early - late, is(TimeUnit.MINUTES.toMillis(5)));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  lifetimeMustBeAtLeastAMillisecond() {
+    new MaxLifetimeExpiration(999, 0, TimeUnit.MICROSECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  jitterMustBeLessThanLifetimeInMilliseconds() {
+    new MaxLifetimeExpiration(1500, 1200, TimeUnit.MICROSECONDS);
+  }
+}
@@ -0,0 +1,25 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MillisClockTest {
+  @Test(timeout = 2000) public void
+  clockMustAdvance() throws InterruptedException {
+    long start = MillisClock.currentTimeMillis();
+    Thread.sleep(30);
+    assertThat(MillisClock.currentTimeMillis(), greaterThan(start));
+  }
+  
+  @Test public void
+  clockMustNotGoBackwards() {
+    long previous = MillisClock.currentTimeMillis();
+    for (int i = 0; i < 100000; i++) {
+      long now = MillisClock.currentTimeMillis();
+      assertThat(now, greaterThanOrEqualTo(previous));
+      previous = now;
+    }
+  }
+}
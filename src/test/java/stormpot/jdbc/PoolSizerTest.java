@@ -0,0 +1,127 @@
+package stormpot.jdbc;
+
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.ResizablePool;
+import stormpot.Slot;
+
+public class PoolSizerTest {
+  private static final long LONG_WAIT = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long SHORT_WAIT = TimeUnit.MICROSECONDS.toNanos(5);
+  private static final long GROW_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+  
+  ResizablePool<ConnectionProxy> pool;
+  DataSourceAllocator allocator;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() throws SQLException {
+    pool = mock(ResizablePool.class);
+    DataSource delegate = mock(DataSource.class);
+    Connection con = mock(Connection.class);
+    when(con.getMetaData()).thenReturn(mock(DatabaseMetaData.class));
+    when(delegate.getConnection()).thenReturn(con);
+    allocator = new DataSourceAllocator(delegate);
+  }
+  
+  private PoolSizer sizer(int min, int max, int target) {
+    return sizer(min, max, target, GROW_WAIT);
+  }
+  
+  private PoolSizer sizer(int min, int max, int target, long growWait) {
+    when(pool.getTargetSize()).thenReturn(target);
+    return new PoolSizer(pool, allocator, min, max, growWait);
+  }
+  
+  private void allocate(int idle, int claimed) throws Exception {
+    for (int i = 0; i < idle; i++) {
+      allocator.allocate(mock(Slot.class));
+    }
+    for (int i = 0; i < claimed; i++) {
+      allocator.allocate(mock(Slot.class)).reopen();
+    }
+  }
+  
+  @Test public void
+  mustGrowWhenClaimsWait() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 10);
+    allocate(0, 10);
+    sizer.recordClaimWait(LONG_WAIT);
+    sizer.run();
+    verify(pool).setTargetSize(15);
+  }
+  
+  @Test public void
+  mustOnlyGrowWhenClaimsWaitLongerThanTheGrowWait() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 10, 2 * LONG_WAIT);
+    allocate(0, 10);
+    sizer.recordClaimWait(LONG_WAIT);
+    sizer.run();
+    verify(pool, never()).setTargetSize(anyInt());
+    sizer.recordClaimWait(3 * LONG_WAIT);
+    sizer.run();
+    verify(pool).setTargetSize(15);
+  }
+  
+  @Test public void
+  mustNotGrowPastMaxSize() throws Exception {
+    PoolSizer sizer = sizer(2, 12, 10);
+    sizer.recordClaimWait(LONG_WAIT);
+    sizer.run();
+    verify(pool).setTargetSize(12);
+  }
+  
+  @Test public void
+  mustGrowByAtLeastOne() throws Exception {
+    PoolSizer sizer = sizer(1, 10, 1);
+    sizer.recordClaimWait(LONG_WAIT);
+    sizer.run();
+    verify(pool).setTargetSize(2);
+  }
+  
+  @Test public void
+  mustShrinkByOneWhenMostConnectionsAreIdle() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 10);
+    allocate(8, 2);
+    sizer.recordClaimWait(SHORT_WAIT);
+    sizer.run();
+    verify(pool).setTargetSize(9);
+  }
+  
+  @Test public void
+  mustNotShrinkBelowMinSize() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 2);
+    allocate(2, 0);
+    sizer.run();
+    verify(pool, never()).setTargetSize(anyInt());
+  }
+  
+  @Test public void
+  mustNotResizeWhenBusyWithoutWaiting() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 10);
+    allocate(2, 8);
+    sizer.recordClaimWait(SHORT_WAIT);
+    sizer.run();
+    verify(pool, never()).setTargetSize(anyInt());
+  }
+  
+  @Test public void
+  mustOnlyConsiderWaitsSinceTheLastRun() throws Exception {
+    PoolSizer sizer = sizer(2, 20, 10);
+    allocate(2, 8);
+    sizer.recordClaimWait(LONG_WAIT);
+    sizer.run();
+    sizer.run();
+    verify(pool, times(1)).setTargetSize(anyInt());
+  }
+}
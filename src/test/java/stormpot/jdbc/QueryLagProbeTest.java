@@ -0,0 +1,67 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryLagProbeTest {
+  private static final String SQL = "select lag";
+  
+  Connection con;
+  Statement statement;
+  ResultSet resultSet;
+  
+  @Before public void
+  setUp() throws SQLException {
+    con = mock(Connection.class);
+    statement = mock(Statement.class);
+    resultSet = mock(ResultSet.class);
+    when(con.createStatement()).thenReturn(statement);
+    when(statement.executeQuery(SQL)).thenReturn(resultSet);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  queryCannotBeNull() {
+    new QueryLagProbe(null);
+  }
+  
+  @Test public void
+  mustConvertSecondsToMillis() throws SQLException {
+    when(resultSet.next()).thenReturn(true);
+    when(resultSet.getDouble(1)).thenReturn(1.5);
+    assertThat(new QueryLagProbe(SQL).measureLagMillis(con), is(1500L));
+    verify(statement).close();
+  }
+  
+  @Test public void
+  negativeLagMustCountAsNoLag() throws SQLException {
+    when(resultSet.next()).thenReturn(true);
+    when(resultSet.getDouble(1)).thenReturn(-0.2);
+    assertThat(new QueryLagProbe(SQL).measureLagMillis(con), is(0L));
+  }
+  
+  @Test(expected = SQLException.class) public void
+  noRowsMustThrow() throws SQLException {
+    when(resultSet.next()).thenReturn(false);
+    new QueryLagProbe(SQL).measureLagMillis(con);
+  }
+  
+  @Test public void
+  nullLagMustThrowAndCloseTheStatement() throws SQLException {
+    when(resultSet.next()).thenReturn(true);
+    when(resultSet.wasNull()).thenReturn(true);
+    try {
+      new QueryLagProbe(SQL).measureLagMillis(con);
+      fail("A NULL lag should have thrown");
+    } catch (SQLException ignore) {}
+    verify(statement).close();
+  }
+}
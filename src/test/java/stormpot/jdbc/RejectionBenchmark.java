@@ -0,0 +1,69 @@
+package stormpot.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import stormpot.jdbc.stubs.ConnectionStub;
+import stormpot.jdbc.stubs.DataSourceStub;
+
+/**
+ * Measures how many claims per second the pool can reject, with and without
+ * stack traces on the rejection exceptions. The pool is overloaded by
+ * holding the only connection that the concurrency limiter allows, so every
+ * other claim is rejected right away. Run it with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=stormpot.jdbc.RejectionBenchmark
+ * </pre>
+ */
+public class RejectionBenchmark {
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 5;
+  private static final long ROUND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public static void main(String[] args) throws Exception {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      measure(false);
+      measure(true);
+    }
+    for (int i = 0; i < ROUNDS; i++) {
+      System.out.printf("with stack traces: %,12d rejections/sec%n",
+          measure(false));
+      System.out.printf("stackless:         %,12d rejections/sec%n",
+          measure(true));
+    }
+  }
+
+  private static long measure(boolean stackless) throws Exception {
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(new DataSourceStub() {
+      @Override
+      public Connection getConnection() throws SQLException {
+        return new ConnectionStub();
+      }
+    });
+    config.setPoolSize(1);
+    config.setMaxConcurrencyLimit(1);
+    config.setStacklessRejections(stackless);
+    StormpotDataSource ds = new StormpotDataSource(config);
+    Connection held = ds.getConnection();
+    long rejections = 0;
+    long start = System.nanoTime();
+    long end = start + ROUND_NANOS;
+    long now;
+    do {
+      for (int i = 0; i < 1000; i++) {
+        try {
+          ds.getConnection().close();
+        } catch (SQLException e) {
+          rejections++;
+        }
+      }
+      now = System.nanoTime();
+    } while (now < end);
+    held.close();
+    ds.close();
+    return rejections * TimeUnit.SECONDS.toNanos(1) / (now - start);
+  }
+}
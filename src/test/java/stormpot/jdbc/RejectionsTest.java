@@ -0,0 +1,48 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class RejectionsTest {
+  private static final Exception CAUSE = new Exception("boom");
+  
+  @Test public void
+  timeoutsMustHaveStackTracesByDefault() {
+    SQLException e = new Rejections(false).timeout("msg");
+    assertThat(e.getStackTrace().length, greaterThan(0));
+    assertThat(e.getMessage(), is("msg"));
+  }
+  
+  @Test public void
+  stacklessTimeoutsMustHaveNoStackTrace() {
+    SQLException e = new Rejections(true).timeout("msg");
+    assertThat(e.getStackTrace().length, is(0));
+    assertThat(e.getMessage(), is("msg"));
+  }
+  
+  @Test public void
+  overloadsMustHaveStackTracesByDefault() {
+    SQLException e = new Rejections(false).overload("msg", "08001", CAUSE);
+    assertThat(e.getStackTrace().length, greaterThan(0));
+  }
+  
+  @Test public void
+  stacklessOverloadsMustKeepMessageStateAndCause() {
+    SQLException e = new Rejections(true).overload("msg", "08001", CAUSE);
+    assertThat(e.getStackTrace().length, is(0));
+    assertThat(e.getMessage(), is("msg"));
+    assertThat(e.getSQLState(), is("08001"));
+    assertThat(e.getCause(), sameInstance((Throwable) CAUSE));
+  }
+  
+  @Test public void
+  rejectionsMustNotBeShared() {
+    Rejections rejections = new Rejections(true);
+    assertThat(rejections.timeout("msg"),
+        not(sameInstance(rejections.timeout("msg"))));
+  }
+}
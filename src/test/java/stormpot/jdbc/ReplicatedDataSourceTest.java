@@ -0,0 +1,294 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Timeout;
+import stormpot.jdbc.stubs.ConnectionStub;
+
+public class ReplicatedDataSourceTest {
+  private static final Timeout SHUTDOWN_TIMEOUT =
+      new Timeout(10, TimeUnit.SECONDS);
+  
+  ReplicatedDataSource ds;
+  
+  @After public void
+  tearDown() throws InterruptedException {
+    if (ds != null) {
+      ds.shutdown(SHUTDOWN_TIMEOUT);
+    }
+  }
+  
+  private JdbcConfig config(DataSource delegate) throws SQLException {
+    when(delegate.getConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) {
+        return new ConnectionStub();
+      }
+    });
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSource(delegate);
+    config.setPoolSize(2);
+    return config;
+  }
+  
+  @Test public void
+  getConnectionMustClaimFromThePrimary() throws Exception {
+    DataSource primary = mock(DataSource.class);
+    DataSource replica = mock(DataSource.class);
+    ds = new ReplicatedDataSource(config(primary), config(replica));
+    ds.getConnection().close();
+    assertThat(ds.getPrimary().getClaimedCount(), is(0));
+    verify(primary, atLeastOnce()).getConnection();
+  }
+  
+  @Test public void
+  closeMustShutDownThePrimaryAndTheReplicas() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.close();
+    try {
+      ds.getPrimary().getConnection();
+      fail("The primary should have been shut down");
+    } catch (SQLNonTransientConnectionException ignore) {}
+    try {
+      ds.getReplicas()[0].getConnection();
+      fail("The replica should have been shut down");
+    } catch (SQLNonTransientConnectionException ignore) {}
+  }
+  
+  @Test public void
+  readOnlyConnectionsMustBeClaimedFromReplicas() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    Connection con = ds.getReadOnlyConnection();
+    assertThat(ds.getReplicas()[0].getClaimedCount(), is(1));
+    assertThat(ds.getPrimary().getClaimedCount(), is(0));
+    con.close();
+    assertThat(ds.getReplicas()[0].getClaimedCount(), is(0));
+  }
+  
+  @Test public void
+  readOnlyHintMustRouteGetConnectionToReplicas() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setReadOnlyHint(true);
+    try {
+      Connection con = ds.getConnection();
+      assertThat(ds.getReplicas()[0].getClaimedCount(), is(1));
+      con.close();
+    } finally {
+      ds.setReadOnlyHint(false);
+    }
+    assertFalse(ds.isReadOnlyHint());
+  }
+  
+  @Test public void
+  readOnlyConnectionsMustGoToTheLeastLoadedReplica() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)),
+        config(mock(DataSource.class)),
+        config(mock(DataSource.class)));
+    Connection a = ds.getReadOnlyConnection();
+    Connection b = ds.getReadOnlyConnection();
+    StormpotDataSource[] replicas = ds.getReplicas();
+    assertThat(replicas[0].getClaimedCount(), is(1));
+    assertThat(replicas[1].getClaimedCount(), is(1));
+    a.close();
+    // The first replica is now the only idle one:
+    for (int i = 0; i < 5; i++) {
+      assertThat(ds.leastLoadedReplica(), sameInstance(replicas[0]));
+    }
+    b.close();
+  }
+  
+  @Test public void
+  readOnlyConnectionsMustUseThePrimaryWhenThereAreNoReplicas()
+      throws Exception {
+    ds = new ReplicatedDataSource(config(mock(DataSource.class)));
+    Connection con = ds.getReadOnlyConnection();
+    assertThat(ds.getPrimary().getClaimedCount(), is(1));
+    con.close();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  primaryConfigCannotBeNull() {
+    new ReplicatedDataSource(null);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  replicaConfigsCannotBeNull() throws SQLException {
+    new ReplicatedDataSource(config(mock(DataSource.class)), null, null);
+  }
+  
+  @Test public void
+  mustUnwrapToThePoolOfThePrimary() throws SQLException {
+    ds = new ReplicatedDataSource(config(mock(DataSource.class)));
+    assertThat(ds.unwrap(StormpotDataSource.class),
+        sameInstance(ds.getPrimary()));
+  }
+  
+  // Reports the lags in the order the replicas are probed, and a failure
+  // for a negative lag:
+  private static ReplicaLagProbe lags(final long... lags) {
+    return new ReplicaLagProbe() {
+      int next;
+      public long measureLagMillis(Connection connection)
+          throws SQLException {
+        long lag = lags[next++ % lags.length];
+        if (lag < 0) {
+          throw new SQLException("Probe failed");
+        }
+        return lag;
+      }
+    };
+  }
+  
+  @Test public void
+  readsMustAvoidReplicasThatLagTooFarBehind() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)),
+        config(mock(DataSource.class)),
+        config(mock(DataSource.class)));
+    ds.setMaxReplicaLag(1, TimeUnit.SECONDS);
+    ds.probeLag(lags(5000, 10));
+    StormpotDataSource[] replicas = ds.getReplicas();
+    for (int i = 0; i < 5; i++) {
+      assertThat(ds.leastLoadedReplica(), sameInstance(replicas[1]));
+    }
+    assertThat(ds.getReplicaLag(0, TimeUnit.MILLISECONDS), is(5000L));
+  }
+  
+  @Test public void
+  readsMustGoToThePrimaryWhenAllReplicasLag() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setMaxReplicaLag(1, TimeUnit.SECONDS);
+    ds.probeLag(lags(5000));
+    Connection con = ds.getReadOnlyConnection();
+    assertThat(ds.getPrimary().getClaimedCount(), is(1));
+    con.close();
+  }
+  
+  @Test public void
+  failedLagProbeMustCountAsTooMuchLag() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setMaxReplicaLag(1, TimeUnit.SECONDS);
+    ds.probeLag(lags(-1));
+    assertThat(ds.getReplicaLag(0, TimeUnit.MILLISECONDS),
+        is(Long.MAX_VALUE));
+    assertThat(ds.leastLoadedReplica(), sameInstance(ds.getPrimary()));
+  }
+  
+  @Test public void
+  lagMustBeIgnoredWithoutMaxReplicaLag() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.probeLag(lags(5000));
+    assertThat(ds.leastLoadedReplica(),
+        sameInstance(ds.getReplicas()[0]));
+  }
+  
+  @Test(timeout = 5000) public void
+  lagProbeMustRunInTheBackground() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setLagProbe(lags(1234), 10, TimeUnit.MILLISECONDS);
+    while (ds.getReplicaLag(0, TimeUnit.MILLISECONDS) != 1234) {
+      Thread.sleep(1);
+    }
+    ds.setLagProbe(null, 0, null);
+    assertThat(ds.getReplicaLag(0, TimeUnit.MILLISECONDS),
+        is(Long.MAX_VALUE));
+  }
+  
+  @Test public void
+  readsMustGoToThePrimaryUntilTheLagIsMeasured() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setMaxReplicaLag(1, TimeUnit.SECONDS);
+    assertThat(ds.leastLoadedReplica(), sameInstance(ds.getPrimary()));
+    ds.probeLag(lags(10));
+    assertThat(ds.leastLoadedReplica(), sameInstance(ds.getReplicas()[0]));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  lagProbeIntervalMustBePositive() throws Exception {
+    ds = new ReplicatedDataSource(config(mock(DataSource.class)));
+    ds.setLagProbe(lags(0), 0, TimeUnit.SECONDS);
+  }
+  
+  @Test public void
+  readsMustGoToThePrimaryWhileAWriteConnectionIsHeld() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setReadYourWritesWindow(1, TimeUnit.MILLISECONDS);
+    Connection write = ds.getConnection();
+    Connection read = ds.getReadOnlyConnection();
+    assertThat(ds.getPrimary().getClaimedCount(), is(2));
+    read.close();
+    write.close();
+  }
+  
+  @Test(timeout = 5000) public void
+  readsMustStickToThePrimaryForTheWindowAfterAWrite() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setReadYourWritesWindow(200, TimeUnit.MILLISECONDS);
+    ds.getConnection().close();
+    Connection read = ds.getReadOnlyConnection();
+    assertThat(ds.getPrimary().getClaimedCount(), is(1));
+    read.close();
+    Thread.sleep(300);
+    read = ds.getReadOnlyConnection();
+    assertThat(ds.getReplicas()[0].getClaimedCount(), is(1));
+    read.close();
+  }
+  
+  @Test(timeout = 5000) public void
+  writesOfOtherThreadsMustNotExtendTheWindow() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.setReadYourWritesWindow(50, TimeUnit.MILLISECONDS);
+    ds.getConnection().close();
+    Thread.sleep(100);
+    // The other thread likely claims the same connection of the primary:
+    Thread writer = new Thread() {
+      public void run() {
+        try {
+          ds.getConnection().close();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    writer.start();
+    writer.join();
+    Connection read = ds.getReadOnlyConnection();
+    assertThat(ds.getReplicas()[0].getClaimedCount(), is(1));
+    read.close();
+  }
+  
+  @Test public void
+  readsMustNotStickToThePrimaryWithoutAWindow() throws Exception {
+    ds = new ReplicatedDataSource(
+        config(mock(DataSource.class)), config(mock(DataSource.class)));
+    ds.getConnection().close();
+    Connection read = ds.getReadOnlyConnection();
+    assertThat(ds.getReplicas()[0].getClaimedCount(), is(1));
+    read.close();
+  }
+}
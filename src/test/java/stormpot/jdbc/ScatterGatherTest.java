@@ -0,0 +1,344 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ScatterGatherTest {
+  ScatterGather sg;
+  
+  @After public void
+  tearDown() {
+    if (sg != null) {
+      sg.shutdown();
+    }
+  }
+  
+  /**
+   * A mocked DataSource, whose query returns the given single-column rows,
+   * after the given delay.
+   */
+  private static class Shard {
+    final DataSource pool = mock(DataSource.class);
+    final Connection con = mock(Connection.class);
+    final PreparedStatement statement = mock(PreparedStatement.class);
+    final ResultSet resultSet = mock(ResultSet.class);
+  
+    Shard(final long delayMillis, final Object... values) throws SQLException {
+      when(pool.getConnection()).thenReturn(con);
+      when(con.prepareStatement(anyString())).thenReturn(statement);
+      when(statement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+        public ResultSet answer(InvocationOnMock invocation)
+            throws InterruptedException {
+          Thread.sleep(delayMillis);
+          return resultSet;
+        }
+      });
+      ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+      when(metaData.getColumnCount()).thenReturn(1);
+      when(resultSet.getMetaData()).thenReturn(metaData);
+      final AtomicInteger row = new AtomicInteger();
+      when(resultSet.next()).thenAnswer(new Answer<Boolean>() {
+        public Boolean answer(InvocationOnMock invocation) {
+          return row.incrementAndGet() <= values.length;
+        }
+      });
+      when(resultSet.getObject(1)).thenAnswer(new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) {
+          return values[row.get() - 1];
+        }
+      });
+    }
+  }
+  
+  private static List<Object> readAll(GatheredRows rows) throws SQLException {
+    List<Object> values = new ArrayList<Object>();
+    while (rows.next()) {
+      values.add(rows.getObject(1));
+    }
+    return values;
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  parallelismMustBePositive() {
+    new ScatterGather(0, mock(DataSource.class));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  mustHaveAtLeastOnePool() {
+    new ScatterGather(1);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  poolsCannotBeNull() {
+    new ScatterGather(1, mock(DataSource.class), null);
+  }
+  
+  @Test(expected = IllegalStateException.class) public void
+  queryMergedMustRequireAThreadForEveryPool() throws Exception {
+    Shard a = new Shard(0, 1, 3, 5);
+    Shard b = new Shard(0, 2, 4, 6);
+    sg = new ScatterGather(1, a.pool, b.pool);
+    sg.setRowBufferSize(1);
+    sg.queryMerged(ScatterGather.byColumns(1), "select x from t order by x");
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  shardTimeoutMustBePositive() {
+    sg = new ScatterGather(1, mock(DataSource.class));
+    sg.setShardTimeout(0, TimeUnit.SECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  rowBufferSizeMustBePositive() {
+    sg = new ScatterGather(1, mock(DataSource.class));
+    sg.setRowBufferSize(0);
+  }
+  
+  @Test(timeout = 5000) public void
+  queryMustReturnTheRowsOfAllTheShards() throws Exception {
+    Shard a = new Shard(0, 1, 2, 3);
+    Shard b = new Shard(0, 4, 5);
+    Shard c = new Shard(0);
+    sg = new ScatterGather(3, a.pool, b.pool, c.pool);
+    List<Object> values = readAll(sg.query("select x from t"));
+    Collections.sort(values, new Comparator<Object>() {
+      public int compare(Object x, Object y) {
+        return ((Integer) x).compareTo((Integer) y);
+      }
+    });
+    assertThat(values, is(Arrays.<Object>asList(1, 2, 3, 4, 5)));
+  }
+  
+  @Test(timeout = 5000) public void
+  queryMustBindTheParametersAndReleaseTheConnections() throws Exception {
+    Shard a = new Shard(0, 1);
+    Shard b = new Shard(0, 2);
+    sg = new ScatterGather(2, a.pool, b.pool);
+    sg.setShardTimeout(1500, TimeUnit.MILLISECONDS);
+    readAll(sg.query("select x from t where y = ?", "z"));
+    for (Shard shard : Arrays.asList(a, b)) {
+      verify(shard.con).prepareStatement("select x from t where y = ?");
+      verify(shard.statement).setObject(1, "z");
+      verify(shard.statement).setQueryTimeout(2);
+      verify(shard.statement).setFetchSize(sg.getRowBufferSize());
+      verify(shard.resultSet).close();
+      verify(shard.statement).close();
+      verify(shard.con).close();
+    }
+  }
+  
+  @Test(timeout = 5000) public void
+  queryMergedMustMergeTheSortedRowsOfTheShards() throws Exception {
+    Shard a = new Shard(0, 1, 4, 7, 10);
+    Shard b = new Shard(10, 2, 5, 8);
+    Shard c = new Shard(0, 3, 6, 9, 11, 12);
+    sg = new ScatterGather(3, a.pool, b.pool, c.pool);
+    // A small buffer makes the merge stream through the queries:
+    sg.setRowBufferSize(1);
+    GatheredRows rows = sg.queryMerged(
+        ScatterGather.byColumns(1), "select x from t order by x");
+    assertThat(readAll(rows), is(Arrays.<Object>asList(
+        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12)));
+  }
+  
+  @Test(timeout = 5000) public void
+  mergedRowsThatAreEqualMustComeInTheOrderOfTheShards() throws Exception {
+    Shard a = new Shard(20, 1, 2);
+    Shard b = new Shard(0, 1, 2);
+    sg = new ScatterGather(2, a.pool, b.pool);
+    GatheredRows rows = sg.queryMerged(
+        ScatterGather.byColumns(1), "select x from t order by x");
+    List<Integer> shards = new ArrayList<Integer>();
+    while (rows.next()) {
+      shards.add(rows.getShard());
+    }
+    assertThat(shards, is(Arrays.asList(0, 1, 0, 1)));
+  }
+  
+  @Test(timeout = 5000) public void
+  theShardsMustBeQueriedInParallel() throws Exception {
+    DataSource[] pools = new DataSource[4];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = new Shard(300, i).pool;
+    }
+    sg = new ScatterGather(pools.length, pools);
+    long start = System.nanoTime();
+    assertThat(readAll(sg.query("select x from t")).size(), is(4));
+    long elapsed = System.nanoTime() - start;
+    assertThat(elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+  }
+  
+  @Test(timeout = 5000) public void
+  parallelismMustBoundTheNumberOfRunningQueries() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    DataSource[] pools = new DataSource[6];
+    for (int i = 0; i < pools.length; i++) {
+      final Shard shard = new Shard(0, i);
+      when(shard.statement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+        public ResultSet answer(InvocationOnMock invocation)
+            throws InterruptedException {
+          int now = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(now, maxRunning.get()));
+          }
+          Thread.sleep(50);
+          running.decrementAndGet();
+          return shard.resultSet;
+        }
+      });
+      pools[i] = shard.pool;
+    }
+    sg = new ScatterGather(2, pools);
+    assertThat(readAll(sg.query("select x from t")).size(), is(6));
+    assertThat(maxRunning.get(), is(2));
+  }
+  
+  @Test(timeout = 5000) public void
+  aSlowShardMustTimeOutAndBeCancelled() throws Exception {
+    Shard fast = new Shard(0, 1);
+    final Shard slow = new Shard(0, 2);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    when(slow.statement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+      public ResultSet answer(InvocationOnMock invocation)
+          throws InterruptedException, SQLException {
+        cancelled.await();
+        throw new SQLException("Cancelled");
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        cancelled.countDown();
+        return null;
+      }
+    }).when(slow.statement).cancel();
+    sg = new ScatterGather(2, fast.pool, slow.pool);
+    sg.setShardTimeout(100, TimeUnit.MILLISECONDS);
+    GatheredRows rows = sg.query("select x from t");
+    try {
+      readAll(rows);
+      fail("The slow shard should have timed out");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getMessage(), containsString("shard 1"));
+    }
+    assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+    verify(slow.con, timeout(1000)).close();
+  }
+  
+  @Test(timeout = 5000) public void
+  waitingForAThreadMustCountTowardsTheShardTimeout() throws Exception {
+    Shard first = new Shard(150, 1);
+    Shard queued = new Shard(100, 2);
+    sg = new ScatterGather(1, first.pool, queued.pool);
+    sg.setShardTimeout(200, TimeUnit.MILLISECONDS);
+    GatheredRows rows = sg.query("select x from t");
+    try {
+      readAll(rows);
+      fail("The queued shard should have timed out");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getMessage(), containsString("shard 1"));
+    }
+  }
+  
+  @Test(timeout = 5000) public void
+  waitingForTheReaderMustNotCountTowardsTheShardTimeout() throws Exception {
+    Shard shard = new Shard(0, 1, 2, 3, 4);
+    sg = new ScatterGather(1, shard.pool);
+    sg.setShardTimeout(100, TimeUnit.MILLISECONDS);
+    sg.setRowBufferSize(1);
+    GatheredRows rows = sg.query("select x from t");
+    assertTrue(rows.next());
+    Thread.sleep(300);
+    assertThat(readAll(rows), is(Arrays.<Object>asList(2, 3, 4)));
+  }
+  
+  @Test(timeout = 5000) public void
+  aFailingShardMustFailTheRows() throws Exception {
+    Shard good = new Shard(0, 1);
+    Shard bad = new Shard(0, 2);
+    SQLException failure = new SQLException("Boom", "08006");
+    when(bad.statement.executeQuery()).thenThrow(failure);
+    sg = new ScatterGather(2, good.pool, bad.pool);
+    try {
+      readAll(sg.query("select x from t"));
+      fail("The failing shard should have failed the rows");
+    } catch (SQLException e) {
+      assertThat(e.getCause(), sameInstance((Throwable) failure));
+      assertThat(e.getSQLState(), is("08006"));
+      assertThat(e.getMessage(), containsString("shard 1"));
+    }
+    verify(bad.con).close();
+  }
+  
+  @Test(timeout = 5000) public void
+  closingTheRowsEarlyMustReleaseTheConnections() throws Exception {
+    Object[] values = new Object[100];
+    Arrays.fill(values, 1);
+    Shard a = new Shard(0, values);
+    Shard b = new Shard(0, values);
+    sg = new ScatterGather(2, a.pool, b.pool);
+    sg.setRowBufferSize(1);
+    GatheredRows rows = sg.query("select x from t");
+    assertTrue(rows.next());
+    // Wait for both queries to start, since a query that has not started
+    // when the rows are closed, never claims a connection.
+    verify(a.statement, timeout(1000)).executeQuery();
+    verify(b.statement, timeout(1000)).executeQuery();
+    rows.close();
+    rows.close();
+    verify(a.con, timeout(1000)).close();
+    verify(b.con, timeout(1000)).close();
+  }
+  
+  @Test(expected = SQLException.class) public void
+  thereIsNoCurrentRowBeforeNext() throws Exception {
+    sg = new ScatterGather(1, new Shard(0, 1).pool);
+    sg.query("select x from t").getObject(1);
+  }
+  
+  @Test(expected = IllegalStateException.class) public void
+  queryMustThrowAfterShutdown() throws Exception {
+    sg = new ScatterGather(1, new Shard(0, 1).pool);
+    sg.shutdown();
+    sg.query("select x from t");
+  }
+  
+  @Test public void
+  byColumnsMustCompareTheColumnsInOrderWithNullsFirst() {
+    Comparator<Object[]> order = ScatterGather.byColumns(2, 1);
+    List<Object[]> rows = new ArrayList<Object[]>(Arrays.asList(
+        new Object[] {"b", 1},
+        new Object[] {"a", 2},
+        new Object[] {"a", 1},
+        new Object[] {"c", null}));
+    Collections.sort(rows, order);
+    assertThat(rows.get(0), is(new Object[] {"c", null}));
+    assertThat(rows.get(1), is(new Object[] {"a", 1}));
+    assertThat(rows.get(2), is(new Object[] {"b", 1}));
+    assertThat(rows.get(3), is(new Object[] {"a", 2}));
+  }
+}
@@ -0,0 +1,190 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import stormpot.Timeout;
+import stormpot.jdbc.stubs.ConnectionStub;
+
+public class ShardedStormpotDataSourceTest {
+  private static final int KEYS = 100000;
+  
+  ShardedStormpotDataSource ds;
+  
+  @After public void
+  tearDown() throws InterruptedException {
+    if (ds != null) {
+      ds.shutdown(new Timeout(10, TimeUnit.SECONDS));
+    }
+  }
+  
+  private static JdbcConfig[] configs(int count) throws SQLException {
+    JdbcConfig[] configs = new JdbcConfig[count];
+    for (int i = 0; i < count; i++) {
+      DataSource delegate = mock(DataSource.class);
+      when(delegate.getConnection()).thenAnswer(new Answer<Connection>() {
+        public Connection answer(InvocationOnMock invocation) {
+          return new ConnectionStub();
+        }
+      });
+      configs[i] = new JdbcConfig();
+      configs[i].setDataSource(delegate);
+      configs[i].setPoolSize(1);
+    }
+    return configs;
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  mustHaveAtLeastOneShard() {
+    new ShardedStormpotDataSource();
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  mustHaveAtLeastOneVirtualNode() throws SQLException {
+    new ShardedStormpotDataSource(0, configs(1));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  shardKeyCannotBeNull() throws SQLException {
+    ds = new ShardedStormpotDataSource(configs(2));
+    ds.shardFor(null);
+  }
+  
+  @Test public void
+  keysMustBeSpreadEvenlyOverTheShards() throws SQLException {
+    ds = new ShardedStormpotDataSource(configs(16));
+    int[] counts = new int[16];
+    for (long key = 0; key < KEYS; key++) {
+      counts[ds.shardFor(key)]++;
+    }
+    int mean = KEYS / 16;
+    for (int count : counts) {
+      assertThat(count, allOf(greaterThan(mean * 7 / 10),
+          lessThan(mean * 13 / 10)));
+    }
+  }
+  
+  @Test public void
+  addingAShardMustOnlyMoveKeysToTheNewShard() throws SQLException {
+    ds = new ShardedStormpotDataSource(configs(16));
+    ShardedStormpotDataSource grown =
+        new ShardedStormpotDataSource(configs(17));
+    try {
+      int moved = 0;
+      for (long key = 0; key < KEYS; key++) {
+        int before = ds.shardFor(key);
+        int after = grown.shardFor(key);
+        if (before != after) {
+          assertThat(after, is(16));
+          moved++;
+        }
+      }
+      // Roughly one in 17 keys should move:
+      assertThat(moved, allOf(greaterThan(KEYS / 17 / 2),
+          lessThan(KEYS / 17 * 2)));
+    } finally {
+      grown.close();
+    }
+  }
+  
+  @Test public void
+  objectKeysMustRouteByHashCode() throws SQLException {
+    ds = new ShardedStormpotDataSource(configs(16));
+    assertThat(ds.shardFor("customer-42"),
+        is(ds.shardFor((long) "customer-42".hashCode())));
+  }
+  
+  @Test public void
+  boxedKeysMustRouteLikeTheirPrimitiveValues() throws SQLException {
+    ds = new ShardedStormpotDataSource(configs(16));
+    // Long.hashCode folds the upper half into the lower half:
+    long key = 0x123456789L;
+    for (int i = 0; i < 100; i++) {
+      assertThat(ds.shardFor(Long.valueOf(key + i)), is(ds.shardFor(key + i)));
+      assertThat(ds.shardFor(Integer.valueOf(i)), is(ds.shardFor((long) i)));
+      assertThat(ds.shardFor(Long.valueOf(-i)), is(ds.shardFor((long) -i)));
+    }
+  }
+  
+  @Test public void
+  routingMustNotAllocate() throws SQLException {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    ds = new ShardedStormpotDataSource(configs(16));
+    long id = Thread.currentThread().getId();
+    int sum = 0;
+    // Warm up, so the measurement is not disturbed by class loading:
+    for (long key = 0; key < KEYS; key++) {
+      sum += ds.shardFor(key);
+    }
+    long before = threads.getThreadAllocatedBytes(id);
+    for (long key = 0; key < KEYS; key++) {
+      sum += ds.shardFor(key);
+    }
+    long allocated = threads.getThreadAllocatedBytes(id) - before;
+    assertThat(sum, greaterThan(0));
+    // Allow for the odd allocation by the measurement itself:
+    assertThat(allocated, lessThan(1024L));
+  }
+  
+  @Test(timeout = 5000) public void
+  getConnectionMustClaimFromTheOwningShardAndCountIt() throws Exception {
+    ds = new ShardedStormpotDataSource(configs(4));
+    long key = 42;
+    int shard = ds.shardFor(key);
+    Connection con = ds.getConnection(key);
+    ShardMetrics metrics = ds.getShardMetrics(shard);
+    assertThat(metrics.getClaims(), is(1L));
+    assertThat(metrics.getClaimedConnections(), is(1));
+    assertThat(ds.getShard(shard).getClaimedCount(), is(1));
+    con.close();
+    assertThat(metrics.getClaimedConnections(), is(0));
+  }
+  
+  @Test(timeout = 5000) public void
+  meteredShardsMustCountTheirClaims() throws Exception {
+    ds = new ShardedStormpotDataSource(configs(4));
+    Connection con = ds.getMeteredShard(2).getConnection();
+    ShardMetrics metrics = ds.getShardMetrics(2);
+    assertThat(metrics.getClaims(), is(1L));
+    assertThat(ds.getShard(2).getClaimedCount(), is(1));
+    con.close();
+    assertThat(metrics.getClaimedConnections(), is(0));
+  }
+  
+  @Test(timeout = 5000) public void
+  failedClaimsMustBeCounted() throws Exception {
+    ds = new ShardedStormpotDataSource(configs(4));
+    long key = 42;
+    int shard = ds.shardFor(key);
+    ds.getShard(shard).setClaimTimeout(1, TimeUnit.MILLISECONDS);
+    Connection con = ds.getConnection(key);
+    try {
+      ds.getConnection(key);
+      fail("The claim should have timed out");
+    } catch (SQLException ignore) {}
+    ShardMetrics metrics = ds.getShardMetrics(shard);
+    assertThat(metrics.getFailedClaims(), is(1L));
+    assertThat(metrics.getClaimWait(TimeUnit.NANOSECONDS),
+        greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(1)));
+    con.close();
+  }
+}
@@ -0,0 +1,145 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.Slot;
+
+public class StatementInterceptorTest {
+  private static final AdaptorFactory adaptor =
+      AdaptorMetaFactory.getAdaptorFactory();
+  Jdbc41Connection con;
+  ConnectionProxy proxy;
+  
+  @Before public void
+  setUp() throws SQLException {
+    con = mock(Jdbc41ConnectionDelegate.class);
+    when(con.getMetaData()).thenReturn(mock(DatabaseMetaData.class));
+    FatalErrorClassifier classifier =
+        new FatalErrorClassifier(new String[] {"08"}, new int[0]);
+    proxy = new ConnectionProxy(
+        mock(Slot.class), adaptor.adapt(con), null, classifier);
+    proxy.reopen();
+  }
+  
+  @Test public void
+  mustDelegateToTheStatement() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(statement.execute("select 1")).thenReturn(true);
+    when(con.createStatement()).thenReturn(statement);
+    Statement wrapped = proxy.createStatement();
+    assertTrue(wrapped.execute("select 1"));
+    verify(statement).execute("select 1");
+  }
+  
+  @Test public void
+  getConnectionMustReturnTheConnectionProxy() throws SQLException {
+    when(con.prepareStatement("select 1")).thenReturn(
+        mock(PreparedStatement.class));
+    PreparedStatement statement = proxy.prepareStatement("select 1");
+    assertThat(statement.getConnection(), sameInstance((Connection) proxy));
+  }
+  
+  @Test public void
+  fatalStatementErrorsMustEvictTheConnection() throws SQLException {
+    CallableStatement statement = mock(CallableStatement.class);
+    SQLException exception = new SQLException("connection reset", "08S01");
+    when(statement.execute()).thenThrow(exception);
+    when(con.prepareCall("call x()")).thenReturn(statement);
+    try {
+      proxy.prepareCall("call x()").execute();
+      fail("execute should have thrown");
+    } catch (SQLException e) {
+      assertThat(e, sameInstance(exception));
+    }
+    assertTrue(proxy.isEvicted());
+  }
+  
+  @Test public void
+  nonFatalStatementErrorsMustNotEvictTheConnection() throws SQLException {
+    Statement statement = mock(Statement.class);
+    SQLException exception = new SQLException("duplicate key", "23505");
+    when(statement.executeUpdate("insert")).thenThrow(exception);
+    when(con.createStatement()).thenReturn(statement);
+    try {
+      proxy.createStatement().executeUpdate("insert");
+      fail("executeUpdate should have thrown");
+    } catch (SQLException e) {
+      assertThat(e, sameInstance(exception));
+    }
+    assertFalse(proxy.isEvicted());
+  }
+  
+  @Test public void
+  fatalConnectionErrorsMustEvictTheConnection() throws SQLException {
+    doThrow(new SQLException("gone", "08003")).when(con).commit();
+    try {
+      proxy.commit();
+      fail("commit should have thrown");
+    } catch (SQLException ignore) {}
+    assertTrue(proxy.isEvicted());
+  }
+  
+  @Test public void
+  wrappedStatementsMustUseIdentityEquality() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    Statement a = proxy.createStatement();
+    Statement b = proxy.createStatement();
+    assertTrue(a.equals(a));
+    assertFalse(a.equals(b));
+    assertThat(a.hashCode(), is(System.identityHashCode(a)));
+  }
+  
+  @Test public void
+  statementsMustNotBeWrappedWithoutClassifier() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(con.createStatement()).thenReturn(statement);
+    ConnectionProxy bare = new ConnectionProxy(
+        mock(Slot.class), adaptor.adapt(con));
+    bare.reopen();
+    assertThat(bare.createStatement(), sameInstance(statement));
+  }
+  
+  @Test public void
+  fatalResultSetErrorsMustEvictTheConnection() throws SQLException {
+    PreparedStatement statement = mock(PreparedStatement.class);
+    ResultSet resultSet = mock(ResultSet.class);
+    SQLException exception = new SQLException("connection reset", "08S01");
+    when(resultSet.next()).thenThrow(exception);
+    when(statement.executeQuery()).thenReturn(resultSet);
+    when(con.prepareStatement("select 1")).thenReturn(statement);
+    ResultSet wrapped = proxy.prepareStatement("select 1").executeQuery();
+    try {
+      wrapped.next();
+      fail("next should have thrown");
+    } catch (SQLException e) {
+      assertThat(e, sameInstance(exception));
+    }
+    assertTrue(proxy.isEvicted());
+  }
+  
+  @Test public void
+  resultSetsMustReturnTheWrappedStatement() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(statement.getResultSet()).thenReturn(mock(ResultSet.class));
+    when(con.createStatement()).thenReturn(statement);
+    Statement wrapped = proxy.createStatement();
+    assertThat(wrapped.getResultSet().getStatement(), sameInstance(wrapped));
+  }
+  
+  @Test public void
+  wrappedStatementsMustUnwrapToTheDriverStatement() throws SQLException {
+    Statement statement = mock(Statement.class);
+    when(statement.unwrap(Statement.class)).thenReturn(statement);
+    when(con.createStatement()).thenReturn(statement);
+    assertThat(proxy.createStatement().unwrap(Statement.class),
+        sameInstance(statement));
+  }
+}
@@ -7,9 +7,15 @@ import static org.hamcrest.Matchers.*;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
 import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
@@ -24,6 +30,7 @@ import stormpot.LifecycledResizablePool;
 import stormpot.Pool;
 import stormpot.ResizablePool;
 import stormpot.Slot;
+import stormpot.Timeout;
 import stormpot.jdbc.stubs.BlockingDataSourceStub;
 import stormpot.jdbc.stubs.ConnectionStub;
 import stormpot.jdbc.stubs.DataSourceStub;
@@ -354,6 +361,63 @@ public class StormpotDataSourceTest {
     con.close();
   }
 
+  @Test public void
+  mustSampleClaimSitesWhenLeakDetectionIsEnabled() throws SQLException {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setLeakDetectionThreshold(1, TimeUnit.MINUTES);
+    fixture.config.setLeakDetectionSampleRate(1);
+    DataSource ds = fixture.pool();
+    ConnectionProxy con = (ConnectionProxy) ds.getConnection();
+    assertThat(con.getClaimSite(), not(nullValue()));
+  }
+  
+  @Test public void
+  mustNotSampleClaimSitesByDefault() throws SQLException {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    DataSource ds = fixture.pool();
+    ConnectionProxy con = (ConnectionProxy) ds.getConnection();
+    assertThat(con.getClaimSite(), nullValue());
+  }
+
+  @Test(timeout = 2000) public void
+  shutdownMustCloseAllConnections() throws Exception {
+    Connection con = mock(Connection.class);
+    when(con.getMetaData()).thenReturn(mock(DatabaseMetaData.class));
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenReturn(con);
+    fixture.config.setPoolSize(3);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    Connection a = ds.getConnection();
+    Connection b = ds.getConnection();
+    Connection c = ds.getConnection();
+    a.close();
+    b.close();
+    c.close();
+    assertTrue(ds.shutdown(new Timeout(1, TimeUnit.SECONDS)));
+    verify(con, times(3)).close();
+  }
+  
+  @Test(timeout = 2000) public void
+  shutdownMustWaitForClaimedConnections() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    Connection con = ds.getConnection();
+    assertFalse(ds.shutdown(new Timeout(10, TimeUnit.MILLISECONDS)));
+    con.close();
+    assertTrue(ds.shutdown(new Timeout(1, TimeUnit.SECONDS)));
+  }
+  
+  @Test(expected = SQLNonTransientConnectionException.class) public void
+  getConnectionMustThrowAfterClose() throws SQLException {
+    StormpotDataSource ds = (StormpotDataSource) fixture().pool();
+    ds.close();
+    ds.getConnection();
+  }
+
   private Answer<Connection> newConnectionStub() {
     return new Answer<Connection>() {
       public Connection answer(InvocationOnMock invocation) throws Throwable {
@@ -382,4 +446,508 @@ public class StormpotDataSourceTest {
     
     verify(proxy).reopen();
   }
+  
+  @Test public void
+  mustEvictAndReleaseConnectionsThatFailToReopen() throws Exception {
+    ConnectionProxy proxy = mock(ConnectionProxy.class);
+    SQLException exception = new SQLException("Boom!", "08006");
+    doThrow(exception).when(proxy).reopen();
+    final DataSourceAllocator alloc = mock(DataSourceAllocator.class);
+    when(alloc.allocate(isA(Slot.class))).thenReturn(proxy);
+    
+    Fixture fixture = fixture();
+    fixture.config = new JdbcConfig() {
+      Config<ConnectionProxy> buildPoolConfig() {
+        config.setAllocator(alloc);
+        return config;
+      }
+    };
+    fixture.config.setDataSource(new DataSourceStub()); // makes it validate
+    
+    DataSource ds = fixture.pool();
+    try {
+      ds.getConnection();
+      fail("getConnection should have thrown");
+    } catch (SQLException e) {
+      assertThat(e, sameInstance(exception));
+    }
+    verify(proxy).evict();
+    verify(proxy).release();
+  }
+  
+  @Test public void
+  openCircuitBreakerMustMakeClaimsFailFast() throws Exception {
+    Fixture fixture = fixture();
+    SQLException exception = new SQLException("Boom!");
+    when(fixture.delegate().getConnection()).thenThrow(exception);
+    fixture.config.setPoolSize(1);
+    fixture.config.setCircuitBreakerThreshold(1);
+    fixture.config.setCircuitBreakerOpenTime(1, TimeUnit.HOURS);
+    DataSource ds = fixture.pool();
+    try {
+      // The first claim goes to the pool, and sees the failed allocation:
+      ds.getConnection();
+      fail("The call to getConnection should have thrown!");
+    } catch (SQLException ignore) {}
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have thrown!");
+    } catch (SQLTransientConnectionException e) {
+      assertThat(e.getCause(), sameInstance((Throwable) exception));
+    }
+  }
+  
+  @Test public void
+  circuitBreakerMustCloseWhenTheDatabaseComesBack() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection())
+        .thenThrow(new SQLException("Boom!"))
+        .thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setCircuitBreakerThreshold(1);
+    fixture.config.setCircuitBreakerOpenTime(10, TimeUnit.MILLISECONDS);
+    DataSource ds = fixture.pool();
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have thrown!");
+    } catch (SQLException ignore) {}
+    Thread.sleep(20);
+    // If the breaker opened before the first claim reached the pool, then the
+    // first probe gets the failed slot, and the next one gets the connection:
+    try {
+      ds.getConnection().close();
+    } catch (SQLException ignore) {
+      Thread.sleep(20);
+    }
+    ds.getConnection().close();
+    ds.getConnection().close();
+  }
+  
+  @Test public void
+  awaitReadyMustReturnTrueWhenThePoolIsPrefilled() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(3);
+    fixture.config.setPrefillSize(3);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    assertTrue(ds.awaitReady(new Timeout(10, TimeUnit.SECONDS)));
+    verify(fixture.delegate(), times(3)).getConnection();
+  }
+  
+  @Test public void
+  awaitReadyMustReturnFalseWhenTheDatabaseIsDown() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenThrow(new SQLException());
+    fixture.config.setPoolSize(1);
+    fixture.config.setPrefillSize(1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    assertFalse(ds.awaitReady(new Timeout(10, TimeUnit.MILLISECONDS)));
+  }
+  
+  @Test(timeout = 10000) public void
+  elasticPoolMustGrowWhenClaimsWait() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setMinPoolSize(1);
+    fixture.config.setPoolSize(1);
+    fixture.config.setMaxPoolSize(4);
+    fixture.config.setResizeInterval(10, TimeUnit.MILLISECONDS);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setLoginTimeout(1);
+    Connection held = ds.getConnection();
+    // This claim has to wait for a connection, so the pool will grow. The
+    // pool may also have grown already, if the first claim had to wait:
+    Connection second;
+    try {
+      second = ds.getConnection();
+    } catch (SQLTimeoutException ignore) {
+      second = ds.getConnection();
+    }
+    // Both connections are claimed at the same time, so the pool has grown:
+    ResizablePool<?> pool = ds.unwrap(ResizablePool.class);
+    assertThat(pool.getTargetSize(), greaterThan(1));
+    held.close();
+    second.close();
+  }
+  
+  @Test public void
+  concurrencyLimiterMustRefuseClaimsOverTheLimit() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setMaxConcurrencyLimit(1);
+    DataSource ds = fixture.pool();
+    Connection con = ds.getConnection();
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have thrown!");
+    } catch (SQLTransientConnectionException ignore) {}
+    con.close();
+    ds.getConnection().close();
+  }
+  
+  @Test public void
+  concurrencyLimiterMustGetPermitsBackFromFailedClaims() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection())
+        .thenThrow(new SQLException("Boom!"))
+        .thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setMaxConcurrencyLimit(1);
+    DataSource ds = fixture.pool();
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have thrown!");
+    } catch (SQLException e) {
+      assertThat(e, not(instanceOf(SQLTransientConnectionException.class)));
+    }
+    ds.getConnection().close();
+  }
+  
+  @Test(timeout = 10000) public void
+  overloadedPoolMustShedClaimsAfterTheTarget() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setLoadSheddingTarget(5, TimeUnit.MILLISECONDS);
+    fixture.config.setLoadSheddingInterval(1, TimeUnit.NANOSECONDS);
+    DataSource ds = fixture.pool();
+    ds.setLoginTimeout(1);
+    Connection con = ds.getConnection();
+    try {
+      // This claim waits its full timeout, which is way over the target:
+      ds.getConnection();
+      fail("The call to getConnection should have timed out!");
+    } catch (SQLTimeoutException ignore) {}
+    long start = System.nanoTime();
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have been shed!");
+    } catch (SQLTransientConnectionException ignore) {}
+    long elapsed = System.nanoTime() - start;
+    assertThat(elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(500)));
+    con.close();
+  }
+  
+  @Test(timeout = 10000) public void
+  sheddingMustNotLengthenShorterClaimTimeouts() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setLoadSheddingTarget(5, TimeUnit.MILLISECONDS);
+    fixture.config.setLoadSheddingInterval(1, TimeUnit.NANOSECONDS);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setClaimTimeout(50, TimeUnit.MILLISECONDS);
+    Connection con = ds.getConnection();
+    // Every claim that waits out its timeout makes the pool overloaded:
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have timed out!");
+    } catch (SQLTimeoutException ignore) {}
+    assertThat(ds.tryGetConnection(), nullValue());
+    try {
+      ds.getConnection();
+      fail("The call to getConnection should have timed out!");
+    } catch (SQLTimeoutException ignore) {}
+    try {
+      ds.getConnection(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1));
+      fail("The call to getConnection should have timed out!");
+    } catch (SQLTimeoutException ignore) {}
+    con.close();
+  }
+  
+  @Test(expected = SQLTimeoutException.class) public void
+  getConnectionWithPassedDeadlineMustThrow() throws Exception {
+    StormpotDataSource ds = (StormpotDataSource) fixture().pool();
+    ds.getConnection(System.nanoTime() - 1);
+  }
+  
+  @Test(timeout = 10000) public void
+  getConnectionWithDeadlineMustClaimWithinTheRemainingTime()
+      throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    long budget = TimeUnit.MILLISECONDS.toNanos(50);
+    Connection con = ds.getConnection(System.nanoTime() + budget);
+    try {
+      ds.getConnection(System.nanoTime() + budget);
+      fail("The call to getConnection should have timed out!");
+    } catch (SQLTimeoutException ignore) {}
+    con.close();
+  }
+  
+  @Test public void
+  claimTimeoutMustFollowLoginTimeoutByDefault() throws SQLException {
+    StormpotDataSource ds = (StormpotDataSource) fixture().pool();
+    ds.setLoginTimeout(10);
+    assertThat(ds.getClaimTimeout(TimeUnit.SECONDS), is(10L));
+  }
+  
+  @Test public void
+  claimTimeoutMustBeIndependentOfLoginTimeoutOnceSet() throws SQLException {
+    StormpotDataSource ds = (StormpotDataSource) fixture().pool();
+    ds.setClaimTimeout(50, TimeUnit.MICROSECONDS);
+    ds.setLoginTimeout(10);
+    assertThat(ds.getClaimTimeout(TimeUnit.MICROSECONDS), is(50L));
+    assertThat(ds.getLoginTimeout(), is(10));
+  }
+  
+  @Test public void
+  claimTimeoutFromJdbcConfigMustBeUsed() throws SQLException {
+    Fixture fixture = fixture();
+    fixture.config.setClaimTimeout(250, TimeUnit.MICROSECONDS);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setLoginTimeout(10);
+    assertThat(ds.getClaimTimeout(TimeUnit.NANOSECONDS), is(250000L));
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  claimTimeoutCannotBeNegative() throws SQLException {
+    StormpotDataSource ds = (StormpotDataSource) fixture().pool();
+    ds.setClaimTimeout(-1, TimeUnit.MILLISECONDS);
+  }
+  
+  @Test(timeout = 2000) public void
+  mustUseClaimTimeoutInsteadOfLoginTimeout() throws SQLException {
+    Fixture fixture = fixture();
+    fixture.delegate(new BlockingDataSourceStub());
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setLoginTimeout(10);
+    ds.setClaimTimeout(500, TimeUnit.MICROSECONDS);
+    long start = System.nanoTime();
+    try {
+      ds.getConnection();
+      fail("Should have thrown an exception about timeout!");
+    } catch (SQLTimeoutException _) {}
+    assertThat(System.nanoTime() - start,
+        lessThan(TimeUnit.SECONDS.toNanos(1)));
+  }
+  
+  @Test(timeout = 2000) public void
+  tryGetConnectionMustReturnNullWhenNoConnectionIsAvailable()
+      throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    Connection con = ds.getConnection();
+    assertThat(ds.tryGetConnection(), nullValue());
+    con.close();
+    Connection again = ds.tryGetConnection();
+    assertThat(again, sameInstance(con));
+    again.close();
+  }
+  
+  @Test(timeout = 2000) public void
+  tryGetConnectionMustGiveLimiterPermitBackWhenNull() throws Exception {
+    Fixture fixture = fixture();
+    // The pool never gets a connection, so there is never one available:
+    fixture.delegate(new BlockingDataSourceStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setMaxConcurrencyLimit(1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    assertThat(ds.tryGetConnection(), nullValue());
+    // Would throw if the limiter did not get its permit back:
+    assertThat(ds.tryGetConnection(), nullValue());
+  }
+  
+  @Test(timeout = 2000) public void
+  claimTimeoutExceptionsMustBeStacklessWhenConfigured() throws SQLException {
+    Fixture fixture = fixture();
+    fixture.delegate(new BlockingDataSourceStub());
+    fixture.config.setStacklessRejections(true);
+    fixture.config.setClaimTimeout(1, TimeUnit.MILLISECONDS);
+    DataSource ds = fixture.pool();
+    try {
+      ds.getConnection();
+      fail("Should have thrown an exception about timeout!");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getStackTrace().length, is(0));
+      assertThat(e.getMessage(), containsString("Timeout of 1000000"));
+    }
+  }
+  
+  @Test(timeout = 2000) public void
+  claimTimeoutExceptionsMustHaveStackTracesByDefault() throws SQLException {
+    Fixture fixture = fixture();
+    fixture.delegate(new BlockingDataSourceStub());
+    fixture.config.setClaimTimeout(1, TimeUnit.MILLISECONDS);
+    DataSource ds = fixture.pool();
+    try {
+      ds.getConnection();
+      fail("Should have thrown an exception about timeout!");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getStackTrace().length, greaterThan(0));
+    }
+  }
+  
+  @Test(timeout = 2000) public void
+  claimTimeoutMessageMustFollowChangesToTheClaimTimeout()
+      throws SQLException {
+    Fixture fixture = fixture();
+    fixture.delegate(new BlockingDataSourceStub());
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setClaimTimeout(1, TimeUnit.MILLISECONDS);
+    try {
+      ds.getConnection();
+      fail("Should have thrown an exception about timeout!");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getMessage(), containsString("1 milliseconds"));
+    }
+    ds.setClaimTimeout(500, TimeUnit.MICROSECONDS);
+    try {
+      ds.getConnection();
+      fail("Should have thrown an exception about timeout!");
+    } catch (SQLTimeoutException e) {
+      assertThat(e.getMessage(), containsString("500 microseconds"));
+    }
+  }
+  
+  @Test(expected = SQLException.class) public void
+  getConnectionMustThrowForUnknownPartition() throws SQLException {
+    Fixture fixture = fixture();
+    fixture.config.setPartition("oltp", 0, 1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.getConnection("batch");
+  }
+  
+  @Test(timeout = 2000) public void
+  partitionMustKeepItsReservedConnections() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(3);
+    fixture.config.setPartition("oltp", 1, 3);
+    fixture.config.setPartition("batch", 0, 3);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setClaimTimeout(10, TimeUnit.MILLISECONDS);
+    Connection batch1 = ds.getConnection("batch");
+    Connection batch2 = ds.getConnection("batch");
+    try {
+      ds.getConnection("batch");
+      fail("The batch partition should not get the reserved connection!");
+    } catch (SQLTimeoutException ignore) {}
+    Connection oltp = ds.getConnection("oltp");
+    oltp.close();
+    batch1.close();
+    batch2.close();
+  }
+  
+  @Test(timeout = 2000) public void
+  closingConnectionMustReturnItToItsPartition() throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(2);
+    fixture.config.setPartition("batch", 0, 1);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.setClaimTimeout(10, TimeUnit.MILLISECONDS);
+    ds.getConnection("batch").close();
+    Connection con = ds.getConnection("batch");
+    try {
+      ds.getConnection("batch");
+      fail("The batch partition should be at its max!");
+    } catch (SQLTimeoutException ignore) {}
+    // Unpartitioned claims go to the default partition, and can borrow:
+    ds.getConnection().close();
+    con.close();
+  }
+  
+  @Test(timeout = 10000) public void
+  prioritizedClaimsMustGiveReleasedConnectionToTheMostUrgentWaiter()
+      throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection()).thenAnswer(newConnectionStub());
+    fixture.config.setPoolSize(1);
+    fixture.config.setPrioritizedClaims(true);
+    final StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+    Connection held = ds.getConnection();
+    Thread[] threads = new Thread[3];
+    for (int i = 0; i < threads.length; i++) {
+      final int priority = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            Connection con = ds.getConnection(deadline, priority);
+            order.add(priority);
+            con.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      };
+      threads[i].start();
+      // Give each thread time to start waiting, in order:
+      Thread.sleep(50);
+    }
+    held.close();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(order, is(Arrays.asList(2, 1, 0)));
+  }
+  
+  @Test(timeout = 2000) public void
+  getConnectionByUsernameAndPasswordMustBePooledWhenConfigured()
+      throws Exception {
+    Fixture fixture = fixture();
+    when(fixture.delegate().getConnection("alice", "secret"))
+        .thenAnswer(newConnectionStub());
+    fixture.config.setCredentialPoolSize(1);
+    fixture.config.setMaxCredentialConnections(10);
+    DataSource ds = fixture.pool();
+    Connection first = ds.getConnection("alice", "secret");
+    first.close();
+    Connection second = ds.getConnection("alice", "secret");
+    assertThat(second, sameInstance(first));
+    second.close();
+    verify(fixture.delegate(), times(1)).getConnection("alice", "secret");
+  }
+  
+  @Test(expected = SQLNonTransientConnectionException.class) public void
+  getConnectionByUsernameAndPasswordMustThrowAfterShutdown()
+      throws Exception {
+    Fixture fixture = fixture();
+    fixture.config.setCredentialPoolSize(1);
+    fixture.config.setMaxCredentialConnections(10);
+    StormpotDataSource ds = (StormpotDataSource) fixture.pool();
+    ds.close();
+    ds.getConnection("alice", "secret");
+  }
+  
+  @Test(timeout = 10000) public void
+  failoverMustMoveNewConnectionsToTheNextHealthyDataSource()
+      throws Exception {
+    DataSource first = mock(DataSource.class);
+    DataSource second = mock(DataSource.class);
+    when(first.getConnection()).thenThrow(new SQLException("Down"));
+    when(second.getConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) {
+        return new ConnectionStub() {
+          @Override
+          public boolean isValid(int timeout) {
+            return true;
+          }
+        };
+      }
+    });
+    JdbcConfig config = new JdbcConfig();
+    config.setDataSources(first, second);
+    config.setPoolSize(1);
+    config.setFailoverCheckInterval(10, TimeUnit.MILLISECONDS);
+    StormpotDataSource ds = new StormpotDataSource(config);
+    Connection con = null;
+    while (con == null) {
+      try {
+        con = ds.getConnection();
+      } catch (SQLException ignore) {
+        // The first DataSource is down, until the health check notices.
+        Thread.sleep(10);
+      }
+    }
+    con.close();
+    ds.close();
+  }
 }
@@ -0,0 +1,103 @@
+package stormpot.jdbc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import stormpot.Expiration;
+import stormpot.Slot;
+import stormpot.SlotInfo;
+
+public class ValidationExpirationTest {
+  Jdbc41ConnectionDelegate con;
+  ConnectionProxy proxy;
+  SlotInfo<ConnectionProxy> info;
+  
+  @SuppressWarnings("unchecked")
+  @Before public void
+  setUp() throws SQLException {
+    con = mock(Jdbc41ConnectionDelegate.class);
+    when(con.getMetaData()).thenReturn(mock(DatabaseMetaData.class));
+    proxy = new ConnectionProxy(mock(Slot.class), con);
+    info = mock(SlotInfo.class);
+    when(info.getPoolable()).thenReturn(proxy);
+  }
+  
+  private Expiration<ConnectionProxy> expiration(long intervalMillis) {
+    return new ValidationExpiration(13, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  timeoutCannotBeNegative() {
+    new ValidationExpiration(-1, 1, TimeUnit.SECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  intervalCannotBeNegative() {
+    new ValidationExpiration(1, -1, TimeUnit.SECONDS);
+  }
+  
+  @Test(expected = IllegalArgumentException.class) public void
+  unitCannotBeNull() {
+    new ValidationExpiration(1, 1, null);
+  }
+  
+  @Test public void
+  validConnectionsMustNotExpire() throws SQLException {
+    when(con.isValid(13)).thenReturn(true);
+    assertFalse(expiration(0).hasExpired(info));
+    verify(con).isValid(13);
+  }
+  
+  @Test public void
+  invalidConnectionsMustExpire() throws SQLException {
+    when(con.isValid(13)).thenReturn(false);
+    assertTrue(expiration(0).hasExpired(info));
+  }
+  
+  @Test public void
+  connectionsThatFailValidationMustExpire() throws SQLException {
+    when(con.isValid(13)).thenThrow(new SQLException());
+    assertTrue(expiration(0).hasExpired(info));
+  }
+  
+  @Test public void
+  closedProxiesMustStillBeValidatedByTheirDelegate() throws SQLException {
+    when(con.isValid(13)).thenReturn(true);
+    proxy.close();
+    assertFalse(expiration(0).hasExpired(info));
+  }
+  
+  @Test public void
+  mustNotValidateConnectionsUsedWithinTheInterval() throws SQLException {
+    proxy.close();
+    assertFalse(expiration(60000).hasExpired(info));
+    verify(con, never()).isValid(anyInt());
+  }
+  
+  @Test public void
+  mustValidateConnectionsUnusedForLongerThanTheInterval() throws Exception {
+    when(con.isValid(13)).thenReturn(true);
+    proxy.close();
+    proxy.setLastUsedAt(MillisClock.currentTimeMillis() - 2);
+    expiration(1).hasExpired(info);
+    verify(con).isValid(13);
+  }
+  
+  @Test public void
+  successfulValidationCountsAsUse() throws SQLException {
+    when(con.isValid(13)).thenReturn(true);
+    proxy.setLastUsedAt(
+        MillisClock.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    Expiration<ConnectionProxy> expiration = expiration(60000);
+    expiration.hasExpired(info);
+    expiration.hasExpired(info);
+    verify(con, times(1)).isValid(13);
+  }
+}
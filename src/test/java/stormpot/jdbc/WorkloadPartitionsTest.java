@@ -0,0 +1,118 @@
+package stormpot.jdbc;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import stormpot.ResizablePool;
+
+public class WorkloadPartitionsTest {
+  private static final long NO_WAIT = 0;
+  
+  // A pool of 10, with 4 reserved for oltp, and batch capped at 8:
+  private WorkloadPartitions partitions() {
+    Map<String, int[]> quotas = new LinkedHashMap<String, int[]>();
+    quotas.put("oltp", new int[] {4, 10});
+    quotas.put("batch", new int[] {2, 8});
+    ResizablePool<?> pool = mock(ResizablePool.class);
+    when(pool.getTargetSize()).thenReturn(10);
+    return new WorkloadPartitions(quotas, pool);
+  }
+  
+  private int acquireAll(
+      WorkloadPartitions partitions, String name) throws Exception {
+    WorkloadPartitions.Partition partition = partitions.get(name);
+    int count = 0;
+    while (partitions.acquire(partition, NO_WAIT)) {
+      count++;
+    }
+    return count;
+  }
+  
+  @Test public void
+  mustAddDefaultPartitionWithNothingReserved() {
+    WorkloadPartitions.Partition partition =
+        partitions().get(WorkloadPartitions.DEFAULT_PARTITION);
+    assertThat(partition.reserved, is(0));
+    assertThat(partition.max, is(Integer.MAX_VALUE));
+  }
+  
+  @Test public void
+  mustReturnNullForUnknownPartitions() {
+    assertThat(partitions().get("reporting"), nullValue());
+  }
+  
+  @Test public void
+  partitionMustNotBorrowOtherPartitionsReservations() throws Exception {
+    // batch can have its own 2, plus the 4 that nobody reserved:
+    assertThat(acquireAll(partitions(), "batch"), is(6));
+  }
+  
+  @Test public void
+  partitionMustNotExceedItsMax() throws Exception {
+    WorkloadPartitions partitions = partitions();
+    WorkloadPartitions.Partition oltp = partitions.get("oltp");
+    for (int i = 0; i < 4; i++) {
+      assertTrue(partitions.acquire(oltp, NO_WAIT));
+    }
+    // oltp is using its reservation, so batch can now have up to its max:
+    assertThat(acquireAll(partitions, "batch"), is(6));
+    assertThat(partitions.getInUse("batch"), is(6));
+  }
+  
+  @Test public void
+  reservationsMustBeAvailableWhenOthersHaveBorrowed() throws Exception {
+    WorkloadPartitions partitions = partitions();
+    acquireAll(partitions, WorkloadPartitions.DEFAULT_PARTITION);
+    assertThat(acquireAll(partitions, "oltp"), is(4));
+    assertThat(acquireAll(partitions, "batch"), is(2));
+  }
+  
+  @Test public void
+  releaseMustLetOtherPartitionsBorrow() throws Exception {
+    WorkloadPartitions partitions = partitions();
+    WorkloadPartitions.Partition batch = partitions.get("batch");
+    WorkloadPartitions.Partition oltp = partitions.get("oltp");
+    assertThat(acquireAll(partitions, "oltp"), is(8));
+    assertThat(acquireAll(partitions, "batch"), is(2));
+    assertFalse(partitions.acquire(batch, NO_WAIT));
+    partitions.release(oltp);
+    assertTrue(partitions.acquire(batch, NO_WAIT));
+  }
+  
+  @Test(timeout = 2000) public void
+  acquireMustWaitForRelease() throws Exception {
+    final WorkloadPartitions partitions = partitions();
+    final WorkloadPartitions.Partition batch = partitions.get("batch");
+    acquireAll(partitions, "batch");
+    Thread releaser = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException ignore) {}
+        partitions.release(batch);
+      }
+    };
+    releaser.start();
+    assertTrue(partitions.acquire(batch, TimeUnit.SECONDS.toNanos(1)));
+    releaser.join();
+  }
+  
+  @Test(timeout = 2000) public void
+  acquireMustTimeOut() throws Exception {
+    WorkloadPartitions partitions = partitions();
+    WorkloadPartitions.Partition batch = partitions.get("batch");
+    acquireAll(partitions, "batch");
+    long start = System.nanoTime();
+    assertFalse(partitions.acquire(batch, TimeUnit.MILLISECONDS.toNanos(20)));
+    assertThat(System.nanoTime() - start,
+        greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20)));
+    assertThat(partitions.getInUse("batch"), is(6));
+  }
+}